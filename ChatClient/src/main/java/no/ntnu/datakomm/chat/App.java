@@ -1,9 +1,14 @@
 package no.ntnu.datakomm.chat;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URL;
+import java.util.concurrent.CompletableFuture;
 
+import javafx.animation.AnimationTimer;
 import javafx.application.Application;
+import javafx.application.Platform;
+import javafx.css.CssParser;
 import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
@@ -12,13 +17,46 @@ import javafx.stage.Stage;
 
 /**
  * Class representing the main Graphical User Interface (GUI). JavaFX interface.
+ * <p>
+ * By default the window is built in code (see {@link MainLayout}). Start with -Dchat.fxml=true to
+ * load layout.fxml with the FXMLLoader instead. Start with -Dchat.startupBenchmark=true to print
+ * the time from process start to the first rendered frame and exit (used by StartupBenchmark).
+ * Start with -Dchat.replay=&lt;capture file&gt; to replay recorded traffic into the window, at the speed
+ * given by -Dchat.replaySpeed (1 = original timing, default 0 = as fast as possible).
  */
 public class App extends Application {
 
+    private static final ChatLog LOG = ChatLog.get();
+
+    // Window icon, decoded in the background while the window is being built
+    private Image icon;
+    // The stylesheet, parsed for the first time in the background while the window is being built
+    private CompletableFuture<String> stylesheet;
+
     public static void main(String[] args) {
         launch(args);
     }
 
+    /**
+     * Called by JavaFX before start(), on the launcher thread. Start decoding the icon and parsing
+     * the stylesheet here so that they do not delay the first frame.
+     */
+    @Override
+    public void init() {
+        icon = new Image("styles/ntnu.png", true);
+        URL css = getClass().getClassLoader().getResource("styles/style.css");
+        stylesheet = CompletableFuture.supplyAsync(() -> {
+            // The first parse loads and warms up the CSS parser, which is most of its cost. The
+            // scene parses the file again, quickly, from the same URL.
+            try {
+                new CssParser().parse(css);
+            } catch (IOException e) {
+                LOG.warn("Could not parse the stylesheet: {}", e.getMessage());
+            }
+            return css.toExternalForm();
+        });
+    }
+
     /**
      * This method is called automatically by JavaFX when the application is
      * launched
@@ -27,20 +65,100 @@ public class App extends Application {
      */
     @Override
     public void start(Stage primaryStage) {
-        URL r = getClass().getClassLoader().getResource("layout.fxml");
-        Parent root = null;
-        try {
-            root = FXMLLoader.load(r);
-        } catch (IOException e) {
-            System.out.println("Error while loading FXML");
-            return;
+        Parent root;
+        GUIController controller;
+        if (Boolean.getBoolean("chat.fxml")) {
+            FXMLLoader loader = loadFxml();
+            if (loader == null) {
+                return;
+            }
+            root = loader.getRoot();
+            controller = loader.getController();
+        } else {
+            MainLayout layout = new MainLayout();
+            controller = new GUIController();
+            controller.bind(layout);
+            root = layout.getRoot();
+        }
+        String replayFile = System.getProperty("chat.replay");
+        if (replayFile != null) {
+            controller.startReplay(replayFile, Double.parseDouble(System.getProperty("chat.replaySpeed", "0")));
         }
         Scene scene = new Scene(root, 600, 400);
-        scene.getStylesheets().add("styles/style.css");
+        addStylesheetWhenLoaded(scene);
         primaryStage.setTitle("NTNU Ålesund - ID203012 - ChatClient");
         primaryStage.setScene(scene);
-        Image anotherIcon = new Image("styles/ntnu.png");
-        primaryStage.getIcons().add(anotherIcon);
+        addIconWhenLoaded(primaryStage);
+        if (Boolean.getBoolean("chat.startupBenchmark")) {
+            reportFirstFrame();
+        }
         primaryStage.show();
     }
-}
\ No newline at end of file
+
+    /**
+     * Load the layout with the FXMLLoader
+     *
+     * @return The loader, with the root node and the controller, or null on error
+     */
+    private FXMLLoader loadFxml() {
+        FXMLLoader loader = new FXMLLoader(getClass().getClassLoader().getResource("layout.fxml"));
+        try {
+            loader.load();
+            return loader;
+        } catch (IOException e) {
+            System.out.println("Error while loading FXML");
+            return null;
+        }
+    }
+
+    /**
+     * Add the stylesheet once the background parsing is done: at once if it is done already,
+     * otherwise when it is, without the FX thread waiting for it
+     *
+     * @param scene The scene to add the stylesheet to
+     */
+    private void addStylesheetWhenLoaded(Scene scene) {
+        if (stylesheet.isDone()) {
+            scene.getStylesheets().add(stylesheet.join());
+        } else {
+            stylesheet.thenAccept(css -> Platform.runLater(() -> scene.getStylesheets().add(css)));
+        }
+    }
+
+    /**
+     * Add the window icon once the background decoding is done
+     *
+     * @param stage The stage to add the icon to
+     */
+    private void addIconWhenLoaded(Stage stage) {
+        if (icon.getProgress() >= 1.0 && !icon.isError()) {
+            stage.getIcons().add(icon);
+        } else {
+            icon.progressProperty().addListener((observable, oldValue, newValue) -> {
+                if (newValue.doubleValue() >= 1.0 && !icon.isError()) {
+                    stage.getIcons().add(icon);
+                }
+            });
+        }
+    }
+
+    /**
+     * Print the time from JVM process start to the first rendered frame, then exit. The first
+     * animation pulse is the one that renders the first frame, so we measure in the second one.
+     */
+    private void reportFirstFrame() {
+        new AnimationTimer() {
+            private int pulses = 0;
+
+            @Override
+            public void handle(long now) {
+                if (++pulses == 2) {
+                    stop();
+                    long startTime = ManagementFactory.getRuntimeMXBean().getStartTime();
+                    System.out.println("First frame after ms: " + (System.currentTimeMillis() - startTime));
+                    Platform.exit();
+                }
+            }
+        }.start();
+    }
+}
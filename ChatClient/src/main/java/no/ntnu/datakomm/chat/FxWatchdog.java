@@ -0,0 +1,73 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.TimeUnit;
+
+import javafx.application.Platform;
+
+/**
+ * Measures how long the GUI thread is blocked. Every interval a small task is posted to the GUI
+ * thread; the delay until it runs is how long the thread was busy with other work. Long delays are
+ * freezes the user sees, and are logged. Runs on the shared timer wheel.
+ */
+class FxWatchdog {
+
+    private static final ChatLog LOG = ChatLog.get();
+
+    private final long intervalNanos;
+    private final long warnNanos;
+    private final LatencyHistogram delays = new LatencyHistogram();
+    // A task is posted and has not run yet
+    private volatile boolean waiting = false;
+    private volatile long postedNanos;
+
+    /**
+     * @param intervalMillis Time between measurements
+     * @param warnMillis     Delays of at least this are logged
+     */
+    FxWatchdog(long intervalMillis, long warnMillis) {
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.warnNanos = TimeUnit.MILLISECONDS.toNanos(warnMillis);
+    }
+
+    /**
+     * Start measuring
+     */
+    void start() {
+        TimerWheel.shared().schedule(this::tick, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return Delays of the GUI thread over the last minute
+     */
+    LatencyHistogram getDelays() {
+        return delays;
+    }
+
+    /**
+     * Runs on the timer wheel thread
+     */
+    private void tick() {
+        long now = System.nanoTime();
+        if (!waiting) {
+            waiting = true;
+            postedNanos = now;
+            Platform.runLater(this::ping);
+        } else if (now - postedNanos >= warnNanos && now - postedNanos < warnNanos + intervalNanos) {
+            // Still blocked: say so once, while it happens
+            LOG.warn("GUI thread blocked for {} ms so far", TimeUnit.NANOSECONDS.toMillis(now - postedNanos));
+        }
+        TimerWheel.shared().schedule(this::tick, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Runs on the GUI thread
+     */
+    private void ping() {
+        long delay = System.nanoTime() - postedNanos;
+        delays.record(delay);
+        waiting = false;
+        if (delay >= warnNanos) {
+            LOG.warn("GUI thread was blocked for {} ms", TimeUnit.NANOSECONDS.toMillis(delay));
+        }
+    }
+}
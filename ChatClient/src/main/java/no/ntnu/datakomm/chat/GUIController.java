@@ -2,6 +2,8 @@ package no.ntnu.datakomm.chat;
 
 import javafx.application.Platform;
 import javafx.fxml.FXML;
+import javafx.geometry.Side;
+import javafx.scene.Node;
 import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
 import javafx.scene.layout.HBox;
@@ -9,6 +11,16 @@ import javafx.scene.layout.Pane;
 import javafx.scene.layout.Priority;
 import javafx.scene.layout.VBox;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import static java.lang.Thread.sleep;
 
 import javafx.collections.ObservableList;
@@ -60,23 +72,150 @@ public class GUIController implements ChatListener {
     @FXML
     private ScrollPane outputScroll;
 
-    // The TCP client that can connect, send commands, etc.
+    // The TCP client that can connect, send commands, etc. Created on first use, not at startup.
     private TCPClient tcpClient;
+    // The connection through the server pool, which fails over to another server. Null before connecting.
+    private FailoverSession session;
+    // One pool for each server list typed in, kept across reconnects so the health the pool has
+    // learned about the servers is not lost
+    private final Map<String, ServerPool> serverPools = new ConcurrentHashMap<>();
 
     // Active user list will be refreshed periodically. This will be done on a separate CPU Thread to avoid blocking
     // the GUI.
     private Thread userPollThread;
 
+    private static final ChatLog LOG = ChatLog.get();
+
+    // Command prefix for private messages, and the maximum number of recipient suggestions shown
+    private static final String PRIVMSG_CMD = "/privmsg ";
+    private static final int MAX_SUGGESTIONS = 10;
+    // Messages are stored in the history in pages of this many messages. The chat window holds a
+    // few pages, and older ones are read back from disk when the user scrolls up.
+    private static final int HISTORY_PAGE_SIZE = 200;
+
+    // The message history on disk (null until it is open, or if it can't be opened), and the part
+    // shown in the window
+    private MessageHistory history;
+    private ScrollBack scrollBack;
+    // Replayed traffic is shown, but not stored in the history
+    private volatile boolean replaying = false;
+
+    // Usernames for /privmsg autocomplete. Updated on the TcpClient thread, searched on the GUI thread
+    private final UsernameIndex usernameIndex = new UsernameIndex();
+    private final ContextMenu suggestions = new ContextMenu();
+
+    // Blocks, mutes and highlights incoming messages. The rules are read from the file given with
+    // -Dchat.filterRules=<file>, and our own username is always highlighted.
+    private final MessageFilter messageFilter = new MessageFilter();
+    // The username we last tried to log in with
+    private volatile String loginName = null;
+    // The server status without the round-trip time
+    private String statusText = "Server - disconnected";
+    // Commands to the server are written here, never on the GUI thread
+    private final GuiOutbox outbox = new GuiOutbox();
+    // Measures how long the GUI thread is blocked
+    private final FxWatchdog watchdog = new FxWatchdog(100, 250);
+    // Details of the latency, shown over the server status
+    private final Tooltip latencyDetails = new Tooltip();
+
+    /**
+     * Take the controls from a layout built in code (instead of having them injected by the FXML
+     * loader), then initialize as usual.
+     *
+     * @param layout The main window layout
+     */
+    void bind(MainLayout layout) {
+        submitBtn = layout.submitBtn;
+        connectBtn = layout.connectBtn;
+        loginBtn = layout.loginBtn;
+        helpBtn = layout.helpBtn;
+        userList = layout.userList;
+        textOutput = layout.textOutput;
+        textInput = layout.textInput;
+        hostInput = layout.hostInput;
+        portInput = layout.portInput;
+        loginInput = layout.loginInput;
+        serverStatus = layout.serverStatus;
+        outputScroll = layout.outputScroll;
+        initialize();
+    }
+
     /**
      * Called by the FXML loader after the labels declared above are injected:
      */
     public void initialize() {
-        tcpClient = new TCPClient();
+        // Several servers can be given, separated by commas: "host1, host2:1301"
         hostInput.setText("datakomm.work");
         portInput.setText("1300");
-        textOutput.heightProperty().addListener((observable, oldValue, newValue)
-                -> outputScroll.setVvalue(1.0));
+        scrollBack = new ScrollBack(HISTORY_PAGE_SIZE, outputScroll, textOutput,
+                record -> createMessageNode(record.isSent(), record.getMessage(), false, false));
+        scrollBack.start(this::openHistory, h -> history = h);
         setKeyAndClickListeners();
+        watchdog.start();
+    }
+
+    /**
+     * Open the message history in the directory given with -Dchat.historyDir, by default
+     * .chatclient/history in the home directory. Runs on the ScrollBack loader thread.
+     *
+     * @return The history, or null when it can't be opened
+     */
+    private MessageHistory openHistory() {
+        File dir = new File(System.getProperty("chat.historyDir",
+                System.getProperty("user.home") + File.separator + ".chatclient" + File.separator + "history"));
+        try {
+            MessageHistory h = new MessageHistory(dir, HISTORY_PAGE_SIZE);
+            // Write the buffered messages when the application exits
+            Runtime.getRuntime().addShutdownHook(new Thread(h::close));
+            return h;
+        } catch (IOException e) {
+            LOG.warn("Message history disabled: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @return The TCP client, created when it is needed for the first time
+     */
+    private TCPClient getTcpClient() {
+        if (tcpClient == null) {
+            tcpClient = new TCPClient();
+            // Notice a dead network path within about half a minute, instead of never
+            tcpClient.setHeartbeat(20000, 10000);
+            // Measure the round-trip time all the time, so the status shows where slowness comes from
+            tcpClient.setRttProbe(5000);
+            tcpClient.setMessageFilter(messageFilter);
+        }
+        return tcpClient;
+    }
+
+    /**
+     * Replay a traffic capture into this window, without a server. Used to reproduce message storms
+     * and to measure how the GUI copes with them.
+     *
+     * @param file  Capture file written by TCPClient.startCapture()
+     * @param speed 1 for the original timing, 10 for ten times faster, 0 or less for maximum speed
+     */
+    void startReplay(String file, double speed) {
+        setStatus("Replaying " + file);
+        replaying = true;
+        Thread replayThread = new Thread(() -> {
+            CaptureReplayer replayer = new CaptureReplayer();
+            replayer.addListener(this);
+            long start = System.nanoTime();
+            try {
+                replayer.replay(new FileInputStream(file), speed);
+            } catch (IOException e) {
+                LOG.warn("Replay error: {}", e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            long ms = (System.nanoTime() - start) / 1000000;
+            Platform.runLater(() -> setStatus("Replayed " + replayer.getReplayedLines()
+                    + " lines in " + ms + " ms"));
+        });
+        replayThread.setDaemon(true);
+        replayThread.start();
     }
 
     /**
@@ -85,8 +224,11 @@ public class GUIController implements ChatListener {
     private void setKeyAndClickListeners() {
         connectBtn.setOnMouseClicked(event -> {
             // Mouse clicked on "Connect" button
-            if (tcpClient.isConnectionActive()) {
-                tcpClient.disconnect();
+            if (getTcpClient().isConnectionActive()) {
+                // Not through the outbox: closing the socket is what ends a write stuck there
+                Thread closer = new Thread(session::close, "GUI-disconnect");
+                closer.setDaemon(true);
+                closer.start();
                 updateButtons(false);
             } else {
                 setupConnection(hostInput.getText(), portInput.getText());
@@ -94,11 +236,24 @@ public class GUIController implements ChatListener {
         });
         loginBtn.setOnMouseClicked(event -> {
             // Mouse clicked on "Login" button
-            tcpClient.tryLogin(loginInput.getText());
+            if (session != null) {
+                String name = loginInput.getText();
+                FailoverSession s = session;
+                loginName = name;
+                outbox.submit(System.nanoTime(), "login", () -> {
+                    s.login(name);
+                    return true;
+                }, null);
+            }
             loginInput.setText("");
         });
+        textInput.textProperty().addListener((observable, oldValue, newValue) -> showSuggestions(newValue));
         textInput.setOnKeyPressed(event -> {
-            if (event.getCode().equals(KeyCode.ENTER) && event.isShiftDown()) {
+            if (event.getCode().equals(KeyCode.TAB) && suggestions.isShowing()) {
+                // When "Tab" is pressed while recipients are suggested: take the first suggestion
+                suggestions.getItems().get(0).fire();
+                event.consume();
+            } else if (event.getCode().equals(KeyCode.ENTER) && event.isShiftDown()) {
                 // When Shift+"Enter" is pressed in the message input box: start a new line in the message
                 textInput.setText(textInput.getText() + "\n");
                 textInput.requestFocus();
@@ -115,36 +270,113 @@ public class GUIController implements ChatListener {
             textInput.requestFocus();
         });
         // Mouse clicked on "Help" button
-        helpBtn.setOnMouseClicked(event -> tcpClient.askSupportedCommands());
+        helpBtn.setOnMouseClicked(event -> {
+            TCPClient client = getTcpClient();
+            outbox.submit(System.nanoTime(), "help", () -> {
+                client.askSupportedCommands();
+                return true;
+            }, null);
+        });
     }
 
     /**
-     * Take the message from the text input box, send it to the server
+     * While the user types the recipient of a /privmsg, show the usernames starting with what has
+     * been typed so far under the input box.
+     *
+     * @param text Current text of the input box
+     */
+    private void showSuggestions(String text) {
+        String prefix = null;
+        if (text.startsWith(PRIVMSG_CMD) && text.indexOf(' ', PRIVMSG_CMD.length()) < 0) {
+            prefix = text.substring(PRIVMSG_CMD.length());
+        }
+        List<String> matches = prefix == null || prefix.isEmpty() ? null
+                : usernameIndex.complete(prefix, MAX_SUGGESTIONS);
+        if (matches == null || matches.isEmpty()) {
+            suggestions.hide();
+            return;
+        }
+        suggestions.getItems().clear();
+        for (String user : matches) {
+            MenuItem item = new MenuItem(user);
+            item.setOnAction(event -> {
+                textInput.setText(PRIVMSG_CMD + user + " ");
+                textInput.requestFocus();
+                textInput.end();
+            });
+            suggestions.getItems().add(item);
+        }
+        if (!suggestions.isShowing()) {
+            suggestions.show(textInput, Side.BOTTOM, 0, 0);
+        }
+    }
+
+    /**
+     * Take the message from the text input box, send it to the server. The message is shown at once
+     * as pending, and as sent when it has been written to the socket. Only then it is stored in the
+     * history.
      */
     private void inputSubmit() {
+        long start = System.nanoTime();
         String msgToSend = textInput.getText();
         if (!msgToSend.isEmpty()) {
-            TextMessage msg;
-            if (tcpClient.isConnectionActive()) {
+            TCPClient client = getTcpClient();
+            if (client.isConnectionActive()) {
+                HBox node = createMessageNode(true, new TextMessage("", false, msgToSend), false, false);
+                scrollBack.add(node, 0);
+                setSendState(node, "pendingMessage");
+                String sender = loginName;
                 // Split the message in max 3 parts. If the first one is "/privmsg", then recipient is the second
                 // part and the text to send is the third. Otherwise, the whole message is sent as a public message.
                 String[] msgParts = msgToSend.split(" ", 3);
                 if (msgParts.length == 3 && msgParts[0].equals("/privmsg")) {
                     String recipient = msgParts[1];
                     String message = msgParts[2];
-                    tcpClient.sendPrivateMessage(recipient, message);
+                    outbox.submit(start, "privmsg", () -> client.sendPrivateMessage(recipient, message),
+                            sent -> sendDone(node, sender, msgToSend, sent));
                 } else {
-                    tcpClient.sendPublicMessage(msgToSend);
+                    outbox.submit(start, "msg", () -> client.sendPublicMessage(msgToSend),
+                            sent -> sendDone(node, sender, msgToSend, sent));
                 }
-                msg = new TextMessage("", false, msgToSend);
             } else {
-                msg = new TextMessage("you", false, msgToSend);
+                addMsgToGui(true, new TextMessage("you", false, msgToSend), false);
             }
-            addMsgToGui(true, msg, false);
             textInput.setText("");
         }
     }
 
+    /**
+     * A message we sent has been written to the socket, or the write failed: show it, and store it
+     * in the history if it was sent. It is stored with our username as the sender, so it counts
+     * for us in the analytics; before any login the server refuses it, so it is not stored.
+     *
+     * @param node   The message node
+     * @param sender The username we logged in with, or null
+     * @param text   The message as typed
+     * @param sent   True if the message was written
+     */
+    private void sendDone(HBox node, String sender, String text, boolean sent) {
+        setSendState(node, sent ? "sentMessage" : "failedMessage");
+        if (sent && sender != null && history != null && !replaying) {
+            TextMessage message = new TextMessage(sender, false, text);
+            scrollBack.stored(history.appendSent(System.currentTimeMillis(), message));
+        }
+    }
+
+    /**
+     * Show whether a message we sent is waiting to be written, sent, or failed
+     *
+     * @param message The message node
+     * @param state   Style class: "pendingMessage", "sentMessage" or "failedMessage"
+     */
+    private static void setSendState(HBox message, String state) {
+        Node text = message.lookup(".message");
+        if (text != null) {
+            text.getStyleClass().removeAll("pendingMessage", "sentMessage", "failedMessage");
+            text.getStyleClass().add(state);
+        }
+    }
+
     /**
      * Add a message to the GUI chat window
      *
@@ -152,11 +384,36 @@ public class GUIController implements ChatListener {
      *                received from another user
      * @param msg     The message to be displayed
      * @param warning When true, this message is a warning that must be displayed to the user
+     * @return The message node
      */
-    private void addMsgToGui(boolean local, TextMessage msg, boolean warning) {
-        // Create GUI elements, set their text and style according to what 
-        // type of message this is
+    private HBox addMsgToGui(boolean local, TextMessage msg, boolean warning) {
+        boolean failed = local && !warning && !getTcpClient().isConnectionActive();
+        if (failed) {
+            // Trying to send a message without an active connection
+            setStatus("Please login to send messages to server");
+        }
+        HBox message = createMessageNode(local, msg, warning, failed);
+        // Received chat messages are stored in the history; warnings and failed messages are only
+        // shown. Messages we send are stored when they have been written (see sendDone()).
+        int page = 0;
+        if (history != null && !local && !warning && !replaying) {
+            page = history.append(System.currentTimeMillis(), msg);
+        }
+        scrollBack.add(message, page);
+        return message;
+    }
 
+    /**
+     * Create the GUI elements for a message, and set their text and style according to what type
+     * of message this is
+     *
+     * @param local   When true, this message was sent by us
+     * @param msg     The message
+     * @param warning When true, this message is a warning
+     * @param failed  When true, this message was not sent because there was no connection
+     * @return The message node
+     */
+    private HBox createMessageNode(boolean local, TextMessage msg, boolean warning, boolean failed) {
         HBox message = new HBox();
         VBox messageContent = new VBox();
         String senderText;
@@ -172,6 +429,10 @@ public class GUIController implements ChatListener {
         Label messageText = new Label(msg.getText());
         ObservableList<String> textStyle = messageText.getStyleClass();
         textStyle.add("message");
+        if (msg.getHighlights().length > 0) {
+            // The message mentions us, or a keyword from the filter rules
+            textStyle.add("highlight");
+        }
         messageText.setWrapText(true);
         Pane spacer = new Pane();
         HBox.setHgrow(spacer, Priority.ALWAYS);
@@ -188,13 +449,7 @@ public class GUIController implements ChatListener {
         } else {
             // Regular message
             if (local) {
-                if (tcpClient.isConnectionActive()) {
-                    textStyle.add("sentMessage");
-                } else {
-                    // Trying to send a message without an active connection
-                    serverStatus.setText("Please login to send messages to server");
-                    textStyle.add("failedMessage");
-                }
+                textStyle.add(failed ? "failedMessage" : "sentMessage");
                 // Add empty space first (left), then the message (right)
                 messageContent.getChildren().addAll(messageText);
                 message.getChildren().addAll(spacer, messageContent);
@@ -205,28 +460,35 @@ public class GUIController implements ChatListener {
                 message.getChildren().addAll(messageContent, spacer);
             }
         }
-        textOutput.getChildren().add(message);
+        return message;
     }
 
     /**
      * Start a connection to the server: try to connect Socket, log in and start
      * listening for incoming messages
      *
-     * @param host The host to connect to (domain name or IP address)
-     * @param port Remote TCP port
+     * @param host The host to connect to (domain name or IP address), or several separated by
+     *             commas, optionally with ":port". The best healthy one is used.
+     * @param port Remote TCP port, for hosts given without one
      */
     private void setupConnection(String host, String port) {
-        serverStatus.setText("Trying to connect...");
+        setStatus("Trying to connect...");
         connectBtn.setText("Connecting...");
         connectBtn.setDisable(true);
 
         // Run the connection in a new background thread to avoid GUI freeze
         Thread connThread = new Thread(() -> {
-            boolean connected = tcpClient.connect(host, Integer.parseInt(port));
+            if (session != null) {
+                session.close();
+            }
+            int defaultPort = Integer.parseInt(port);
+            ServerPool pool = serverPools.computeIfAbsent(host.trim() + " " + defaultPort,
+                    key -> ServerPool.parse(host, defaultPort));
+            session = pool.newSession(getTcpClient(), false);
+            session.addListener(this);
+            // Connects to the best server and starts listening
+            boolean connected = session.open();
             if (connected) {
-                // Connection established, start listening processes
-                tcpClient.addListener(this);
-                tcpClient.startListenThread();
                 startUserPolling();
             }
             updateButtons(connected);
@@ -248,13 +510,13 @@ public class GUIController implements ChatListener {
             status = "Connection to server established";
             connBtnText = "Disconnect";
         } else {
-            status = "Not connected: " + tcpClient.getLastError();
+            status = "Not connected: " + getTcpClient().getLastError();
             connBtnText = "Connect";
         }
         // Make sure this will be executed on GUI thread
         Platform.runLater(() -> {
             // Update button texts
-            serverStatus.setText(status);
+            setStatus(status);
             connectBtn.setText(connBtnText);
             // Connection button was disabled while connection was in progress, 
             // now we enable it
@@ -274,6 +536,65 @@ public class GUIController implements ChatListener {
     // from the server.
     ///////////////////////////////////////////////////////////////////////
 
+    /**
+     * Show a status text in the server status pane, followed by the round-trip time while connected.
+     * Must be called on the GUI thread.
+     *
+     * @param status The status text
+     */
+    private void setStatus(String status) {
+        statusText = status;
+        showLatency();
+    }
+
+    /**
+     * Update the round-trip time and jitter in the server status pane: the latest probe and the 95th
+     * percentile of the last minute. A high RTT with a low jitter points to the network path, spikes
+     * (a high percentile and jitter) to a busy server. Must be called on the GUI thread.
+     */
+    private void showLatency() {
+        String text = statusText;
+        if (tcpClient != null && tcpClient.isConnectionActive()) {
+            LatencyHistogram latency = tcpClient.getLatencyHistogram();
+            double last = latency.getLastMillis();
+            if (last >= 0) {
+                text += String.format(" - RTT %.0f ms (p95 %.0f ms), jitter %.1f ms",
+                        last, latency.getPercentileMillis(95), latency.getJitterMillis());
+            }
+        }
+        serverStatus.setText(text);
+        showLatencyDetails();
+    }
+
+    /**
+     * Update the latency details over the server status: the network round trip, the time from a
+     * key press until the command is written (pending messages), and how long the GUI thread was
+     * blocked, each over the last minute. Must be called on the GUI thread.
+     */
+    private void showLatencyDetails() {
+        StringBuilder details = new StringBuilder();
+        if (tcpClient != null) {
+            details.append(describe("Round trip", tcpClient.getLatencyHistogram())).append('\n');
+        }
+        details.append(describe("Key press to wire", outbox.getKeyToWireLatency())).append('\n');
+        details.append(describe("GUI thread blocked", watchdog.getDelays()));
+        if (outbox.getPendingCount() > 0) {
+            details.append('\n').append(outbox.getPendingCount()).append(" commands waiting");
+        }
+        latencyDetails.setText(details.toString());
+        if (serverStatus.getTooltip() == null) {
+            serverStatus.setTooltip(latencyDetails);
+        }
+    }
+
+    private static String describe(String name, LatencyHistogram h) {
+        if (h.getCount() == 0) {
+            return name + ": -";
+        }
+        return String.format("%s: p50 %.1f ms, p95 %.1f ms, max %.1f ms", name,
+                h.getPercentileMillis(50), h.getPercentileMillis(95), h.getMaxMillis());
+    }
+
     /**
      * Start a new thread that will poll the server for currently active users
      */
@@ -286,19 +607,19 @@ public class GUIController implements ChatListener {
                 // This block of code will run in the polling thread
                 ////////////////////////////////////////////////////////////////
                 long threadId = Thread.currentThread().getId();
-                System.out.println("Started user polling in Thread "
-                        + threadId);
-                while (tcpClient.isConnectionActive()) {
+                LOG.debug("Started user polling in thread {}", threadId);
+                while (getTcpClient().isConnectionActive()) {
                     // TcpClient will ask server to send the latest user list. The response from the server will
                     // not be handled here! Here we only ask for update and go to sleep. Then repeat.
-                    tcpClient.refreshUserList();
+                    getTcpClient().refreshUserList();
+                    Platform.runLater(this::showLatency);
                     try {
                         sleep(3000);
                     } catch (InterruptedException e) {
                         Thread.currentThread().interrupt();
                     }
                 }
-                System.out.println("User polling thread " + threadId + " exiting...");
+                LOG.debug("User polling thread {} exiting", threadId);
                 // Make sure we start the thread again next time
                 userPollThread = null;
                 ////////////////////////////////////////////////////////////////
@@ -321,17 +642,43 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onLoginResult(boolean success, String errMsg) {
+        if (success) {
+            updateFilterRules();
+        }
         // Update the GUI. Do it on the GUI thread with Platform.runLater()
         Platform.runLater(() -> {
             if (success) {
-                serverStatus.setText("Server - login successful");
+                setStatus("Server - login successful");
+                // After a failover the polling may have stopped while there was no connection
+                startUserPolling();
             } else {
-                serverStatus.setText("Server - login failed");
+                setStatus("Server - login failed");
                 addMsgToGui(true, new TextMessage("err", false, errMsg), true);
             }
         });
     }
 
+    /**
+     * Give the message filter the rules from the rules file, plus a highlight of our own username.
+     * The filter compiles them in the background.
+     */
+    private void updateFilterRules() {
+        MessageFilter.Rules rules = new MessageFilter.Rules();
+        String file = System.getProperty("chat.filterRules");
+        if (file != null) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                rules = MessageFilter.Rules.parse(reader);
+            } catch (IOException e) {
+                LOG.warn("Could not read filter rules from {}: {}", file, e.getMessage());
+            }
+        }
+        String name = loginName;
+        if (name != null && !name.isEmpty()) {
+            rules.highlight(name);
+        }
+        messageFilter.setRules(rules);
+    }
+
     /**
      * This method is called when an incoming text message is received
      *
@@ -364,6 +711,8 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onUserList(String[] usernames) {
+        // Update the autocomplete index here, not on the GUI thread
+        usernameIndex.update(usernames);
         // Update the user list. Do it on the GUI thread.
         Platform.runLater(() -> {
             userList.getChildren().clear();
@@ -372,7 +721,7 @@ public class GUIController implements ChatListener {
                 text.getStyleClass().add("user");
                 // Set an "on-click" listener for the item in the user list - allow to send a private message
                 text.setOnMouseClicked(event -> {
-                    textInput.setText("/privmsg " + user + " ");
+                    textInput.setText(PRIVMSG_CMD + user + " ");
                     textInput.requestFocus();
                     textInput.end();
                 });
@@ -423,7 +772,7 @@ public class GUIController implements ChatListener {
      */
     @Override
     public void onDisconnect() {
-        System.out.println("Socket closed by the remote end");
+        LOG.info("Socket closed by the remote end");
         updateButtons(false);
     }
 }
@@ -0,0 +1,106 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import javafx.application.Platform;
+
+/**
+ * Commands from the GUI (messages, login, help, disconnect) on their way to the server. Socket
+ * writes block when the network is slow, so they are never done on the GUI thread: the GUI puts a
+ * command in this queue, which never blocks, and one I/O thread writes the commands in order. When
+ * a command has been written, its callback runs on the GUI thread, to show the message as sent (or
+ * failed).
+ * <p>
+ * The time from the key press (or click) to the end of the write is recorded for every command, so
+ * the latency the user feels can be told apart from the network round-trip time.
+ */
+class GuiOutbox {
+
+    private static final ChatLog LOG = ChatLog.get();
+    // Commands slower than this are logged
+    private static final long SLOW_MILLIS = 250;
+
+    /**
+     * One command from the GUI
+     */
+    private static class Command {
+        final long startNanos;
+        final String name;
+        final BooleanSupplier write;
+        final Consumer<Boolean> done;
+
+        Command(long startNanos, String name, BooleanSupplier write, Consumer<Boolean> done) {
+            this.startNanos = startNanos;
+            this.name = name;
+            this.write = write;
+            this.done = done;
+        }
+    }
+
+    private final BlockingQueue<Command> queue = new LinkedBlockingQueue<>();
+    private final LatencyHistogram keyToWire = new LatencyHistogram();
+
+    GuiOutbox() {
+        Thread writer = new Thread(this::run, "GuiOutbox-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a command. Returns at once.
+     *
+     * @param startNanos System.nanoTime() when the user pressed the key or clicked
+     * @param name       Name of the command, for the log
+     * @param write      Writes the command, on the I/O thread. Returns false when it failed.
+     * @param done       Gets the result of the write on the GUI thread, or null
+     */
+    void submit(long startNanos, String name, BooleanSupplier write, Consumer<Boolean> done) {
+        queue.add(new Command(startNanos, name, write, done));
+    }
+
+    /**
+     * @return Number of commands waiting to be written
+     */
+    int getPendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * @return Time from key press to the end of the write, over the last minute
+     */
+    LatencyHistogram getKeyToWireLatency() {
+        return keyToWire;
+    }
+
+    private void run() {
+        while (true) {
+            Command c;
+            try {
+                c = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            boolean sent;
+            try {
+                sent = c.write.getAsBoolean();
+            } catch (RuntimeException e) {
+                LOG.warn("GUI command {} failed: {}", c.name, e.getMessage());
+                sent = false;
+            }
+            long nanos = System.nanoTime() - c.startNanos;
+            keyToWire.record(nanos);
+            long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+            if (millis >= SLOW_MILLIS) {
+                LOG.warn("GUI command {} took {} ms from key press to wire", c.name, millis);
+            }
+            if (c.done != null) {
+                boolean result = sent;
+                Platform.runLater(() -> c.done.accept(result));
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package no.ntnu.datakomm.chat;
+
+import javafx.geometry.Insets;
+import javafx.scene.Node;
+import javafx.scene.Parent;
+import javafx.scene.control.*;
+import javafx.scene.layout.AnchorPane;
+import javafx.scene.layout.BorderPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.VBox;
+
+/**
+ * The main window layout, built in code. This is a hand-compiled version of layout.fxml: it creates
+ * the same controls without the reflective FXMLLoader, which makes the first window appear faster.
+ * If you change layout.fxml, make the same change here.
+ */
+class MainLayout {
+
+    // Controls that GUIController needs, same names as the fx:id attributes in layout.fxml
+    final Button submitBtn = new Button("Submit");
+    final Button connectBtn = new Button("Connect");
+    final Button loginBtn = new Button("Login");
+    final Button helpBtn = new Button("Help");
+    final VBox userList = new VBox();
+    final VBox textOutput = new VBox();
+    final TextArea textInput = new TextArea();
+    final TextField hostInput = new TextField();
+    final TextField portInput = new TextField();
+    final TextField loginInput = new TextField();
+    final TitledPane serverStatus = new TitledPane();
+    final ScrollPane outputScroll = new ScrollPane();
+
+    private final SplitPane root = new SplitPane();
+
+    MainLayout() {
+        root.setDividerPositions(0.29797979797979796);
+        root.setMaxSize(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+        root.setMinSize(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+        root.setPrefSize(600.0, 400.0);
+        root.getItems().addAll(createLeftPane(), createRightPane());
+    }
+
+    /**
+     * @return The root node of the layout
+     */
+    Parent getRoot() {
+        return root;
+    }
+
+    /**
+     * Left side: user list, login and help
+     */
+    private AnchorPane createLeftPane() {
+        userList.setPrefSize(132.0, 249.0);
+        ScrollPane userScroll = new ScrollPane(userList);
+        userScroll.setHbarPolicy(ScrollPane.ScrollBarPolicy.NEVER);
+        userScroll.setPrefSize(175.0, 303.0);
+
+        TitledPane usersPane = new TitledPane("Users logged in", userScroll);
+        usersPane.setAnimated(false);
+        usersPane.setCollapsible(false);
+        usersPane.setPrefSize(175.0, 380.0);
+
+        loginInput.setPrefSize(218.0, 25.0);
+        loginBtn.setMnemonicParsing(false);
+        loginBtn.setPrefSize(145.0, 25.0);
+        loginBtn.setDisable(true);
+        HBox loginBox = new HBox(loginInput, loginBtn);
+        loginBox.setPrefSize(175.0, 32.0);
+
+        helpBtn.setMnemonicParsing(false);
+        helpBtn.setDisable(true);
+        helpBtn.setPrefSize(229.0, 25.0);
+
+        VBox left = new VBox(usersPane, loginBox, helpBtn);
+        left.setPrefSize(100.0, 200.0);
+        return anchored(left);
+    }
+
+    /**
+     * Right side: server status and connection on top, messages in the center, input at the bottom
+     */
+    private AnchorPane createRightPane() {
+        BorderPane border = new BorderPane();
+        border.setPrefSize(417.0, 398.0);
+        border.setTop(createConnectionBar());
+        border.setCenter(createOutput());
+        border.setBottom(createInputBar());
+        return anchored(border);
+    }
+
+    private HBox createConnectionBar() {
+        Label hostLabel = new Label("HOST");
+        hostLabel.setPrefSize(37.0, 25.0);
+        HBox.setMargin(hostLabel, new Insets(2.0, 0.0, 2.0, 8.0));
+        hostInput.setPrefSize(115.0, 25.0);
+        HBox.setMargin(hostInput, new Insets(2.0, 0.0, 2.0, 0.0));
+        Label portLabel = new Label("PORT");
+        portLabel.setPrefSize(35.0, 25.0);
+        HBox.setMargin(portLabel, new Insets(2.0, 0.0, 2.0, 8.0));
+        portInput.setPrefSize(69.0, 25.0);
+        HBox.setMargin(portInput, new Insets(2.0, 0.0, 2.0, 8.0));
+        HBox hostPort = new HBox(hostLabel, hostInput, portLabel, portInput);
+        hostPort.setPrefSize(325.0, 49.0);
+
+        serverStatus.setText("Server - disconnected");
+        serverStatus.setContent(hostPort);
+        serverStatus.setPrefSize(345.0, 75.0);
+
+        connectBtn.setMnemonicParsing(false);
+        connectBtn.setPrefSize(121.0, 75.0);
+
+        HBox top = new HBox(serverStatus, connectBtn);
+        top.setPrefSize(417.0, 0.0);
+        return top;
+    }
+
+    private ScrollPane createOutput() {
+        textOutput.setMaxWidth(Double.MAX_VALUE);
+        textOutput.setPrefSize(395.0, 113.0);
+        outputScroll.setContent(textOutput);
+        outputScroll.setHbarPolicy(ScrollPane.ScrollBarPolicy.NEVER);
+        outputScroll.setPrefSize(1256.0, 286.0);
+        return outputScroll;
+    }
+
+    private HBox createInputBar() {
+        textInput.setPrefSize(333.0, 0.0);
+        submitBtn.setMnemonicParsing(false);
+        submitBtn.setPrefSize(101.0, 37.0);
+        submitBtn.setDisable(true);
+        HBox bottom = new HBox(textInput, submitBtn);
+        bottom.setPrefSize(417.0, 28.0);
+        return bottom;
+    }
+
+    /**
+     * Wrap the node in an AnchorPane, stretched to all four edges
+     */
+    private static AnchorPane anchored(Node node) {
+        AnchorPane.setTopAnchor(node, 0.0);
+        AnchorPane.setBottomAnchor(node, 0.0);
+        AnchorPane.setLeftAnchor(node, 0.0);
+        AnchorPane.setRightAnchor(node, 0.0);
+        AnchorPane pane = new AnchorPane(node);
+        pane.setMinSize(0.0, 0.0);
+        pane.setPrefSize(100.0, 160.0);
+        return pane;
+    }
+}
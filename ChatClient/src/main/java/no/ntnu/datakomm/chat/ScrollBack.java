@@ -0,0 +1,325 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javafx.application.Platform;
+import javafx.collections.ObservableList;
+import javafx.scene.Node;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.layout.VBox;
+
+/**
+ * The messages in the chat window, as a window of a few pages of the message history on disk. New
+ * messages are stored in the history and shown at the bottom. When the user scrolls to the top,
+ * the page before the first one shown is read from disk in the background and put in front, and
+ * the page at the bottom is evicted; scrolling to the bottom brings the newer pages back the same
+ * way. So the window holds at most MAX_PAGES_SHOWN pages however long the client runs, and nothing
+ * is lost.
+ * <p>
+ * While the newest messages are evicted (the user reads old ones), new messages are only stored,
+ * and shown when the user scrolls down to them. Messages that are not stored (warnings, replayed
+ * traffic) are shown in the page at the bottom. All methods must be called on the GUI thread.
+ */
+class ScrollBack {
+
+    static final int MAX_PAGES_SHOWN = 5;
+    private static final ChatLog LOG = ChatLog.get();
+
+    // Reads pages from disk, one at a time, off the GUI thread
+    private static final ExecutorService LOADER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ScrollBack-loader");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /**
+     * One page in the window
+     */
+    private static class Page {
+        // 0 for messages shown before the history was open
+        int number;
+        // Nodes in the window (messages and warnings), and how many of them are stored messages
+        int nodes = 0;
+        int messages = 0;
+
+        Page(int number) {
+            this.number = number;
+        }
+    }
+
+    // Null until the history is open, and if it can't be opened
+    private MessageHistory history = null;
+    private final int maxNodes;
+    private final ScrollPane outputScroll;
+    private final VBox textOutput;
+    private final Function<MessageHistory.Record, Node> nodeFactory;
+    private final Deque<Page> pages = new ArrayDeque<>();
+    // The newest page is in the window, so new messages are shown
+    private boolean live = true;
+    private boolean stickToBottom = true;
+    private boolean loading = false;
+    // No pages before this one on disk
+    private int oldestPage = 1;
+    // The page the last message was stored in, and how many messages we stored there
+    private int storedPage = 0;
+    private int storedCount = 0;
+
+    /**
+     * @param pageSize     Number of messages in a page of the history
+     * @param outputScroll The scroll pane around the messages
+     * @param textOutput   The box with the message nodes
+     * @param nodeFactory  Creates the node for a message read from the history
+     */
+    ScrollBack(int pageSize, ScrollPane outputScroll, VBox textOutput,
+               Function<MessageHistory.Record, Node> nodeFactory) {
+        // Room for warnings between the messages
+        this.maxNodes = pageSize * (MAX_PAGES_SHOWN + 1);
+        this.outputScroll = outputScroll;
+        this.textOutput = textOutput;
+        this.nodeFactory = nodeFactory;
+        textOutput.heightProperty().addListener((observable, oldValue, newValue) -> {
+            if (stickToBottom) {
+                outputScroll.setVvalue(outputScroll.getVmax());
+            }
+        });
+        outputScroll.vvalueProperty().addListener((observable, oldValue, newValue) -> {
+            double v = newValue.doubleValue();
+            stickToBottom = live && v >= outputScroll.getVmax();
+            if (v <= outputScroll.getVmin()) {
+                loadOlder();
+            } else if (v >= outputScroll.getVmax()) {
+                loadNewer();
+            }
+        });
+    }
+
+    /**
+     * Open the history on the loader thread, since that touches the disk, then show the newest page
+     * of earlier sessions. Until the history is open, the window keeps only the newest messages.
+     *
+     * @param opener Opens the history, or returns null when it can't be opened
+     * @param opened Gets the history on the GUI thread when it is open
+     */
+    void start(Supplier<MessageHistory> opener, Consumer<MessageHistory> opened) {
+        LOADER.execute(() -> {
+            MessageHistory h = opener.get();
+            if (h == null) {
+                return;
+            }
+            Platform.runLater(() -> {
+                history = h;
+                // Messages shown meanwhile were not stored, so they come after the stored ones
+                for (Page p : pages) {
+                    if (p.number == 0) {
+                        p.number = h.getNewestPage() + 1;
+                    }
+                }
+                opened.accept(h);
+                loadOlder();
+            });
+        });
+    }
+
+    /**
+     * Add a message at the bottom
+     *
+     * @param node The message node
+     * @param page The history page the message is stored in, or 0 if it is not stored
+     */
+    void add(Node node, int page) {
+        if (history != null && page > 0) {
+            stored(page);
+            if (!live) {
+                return;
+            }
+        }
+        Page last = pages.peekLast();
+        if (last == null || (page > 0 && last.number != page)) {
+            last = new Page(page > 0 ? page : history != null ? history.getNewestPage() + 1 : 0);
+            pages.addLast(last);
+        }
+        textOutput.getChildren().add(node);
+        last.nodes++;
+        if (page > 0) {
+            last.messages++;
+        }
+        while (pages.size() > MAX_PAGES_SHOWN) {
+            evictFirst();
+        }
+        // Many messages that are not stored, in one page
+        while (textOutput.getChildren().size() > maxNodes) {
+            textOutput.getChildren().remove(0);
+            Page first = pages.peekFirst();
+            if (--first.nodes == 0) {
+                pages.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * Count a message stored in the history. add() does this itself; call it for a message that was
+     * added with page 0 and stored afterwards.
+     *
+     * @param page The history page the message is stored in
+     */
+    void stored(int page) {
+        if (page != storedPage) {
+            storedPage = page;
+            storedCount = 0;
+        }
+        storedCount++;
+    }
+
+    /**
+     * Read the page before the first one shown, and put it in front
+     */
+    private void loadOlder() {
+        if (history == null || loading) {
+            return;
+        }
+        int target = pages.isEmpty() ? history.getNewestPage() : pages.peekFirst().number - 1;
+        if (target < oldestPage) {
+            return;
+        }
+        loading = true;
+        LOADER.execute(() -> {
+            List<MessageHistory.Record> records = readPage(target);
+            Platform.runLater(() -> prependPage(target, records));
+        });
+    }
+
+    private void prependPage(int target, List<MessageHistory.Record> records) {
+        loading = false;
+        if (records.isEmpty()) {
+            oldestPage = target + 1;
+            return;
+        }
+        if (!pages.isEmpty() && pages.peekFirst().number <= target) {
+            // The window changed while the page was read
+            return;
+        }
+        List<Node> shown = textOutput.getChildren();
+        Node anchor = shown.isEmpty() ? null : shown.get(0);
+        List<Node> nodes = new ArrayList<>(records.size());
+        for (MessageHistory.Record r : records) {
+            nodes.add(nodeFactory.apply(r));
+        }
+        shown.addAll(0, nodes);
+        Page page = new Page(target);
+        page.nodes = nodes.size();
+        page.messages = nodes.size();
+        pages.addFirst(page);
+        while (pages.size() > MAX_PAGES_SHOWN) {
+            evictLast();
+            live = false;
+            stickToBottom = false;
+        }
+        if (anchor != null && !stickToBottom) {
+            // Keep the message that was at the top where it was
+            layout();
+            scrollTo(anchor.getBoundsInParent().getMinY());
+        }
+        layout();
+        if (textOutput.getHeight() <= outputScroll.getViewportBounds().getHeight()) {
+            // Nothing to scroll yet, so the user can't ask for more
+            loadOlder();
+        }
+    }
+
+    /**
+     * Read the page after the last one shown (or the rest of the last one), and put it at the end
+     */
+    private void loadNewer() {
+        if (history == null || loading || live || pages.isEmpty()) {
+            return;
+        }
+        Page last = pages.peekLast();
+        int target = last.number == storedPage && last.messages < storedCount ? last.number : last.number + 1;
+        loading = true;
+        LOADER.execute(() -> {
+            List<MessageHistory.Record> records = readPage(target);
+            Platform.runLater(() -> appendPage(target, records));
+        });
+    }
+
+    private void appendPage(int target, List<MessageHistory.Record> records) {
+        loading = false;
+        Page last = pages.peekLast();
+        if (last == null || (last.number != target && last.number != target - 1)) {
+            return;
+        }
+        Page page = last;
+        if (last.number != target) {
+            page = new Page(target);
+            pages.addLast(page);
+        }
+        List<Node> shown = textOutput.getChildren();
+        Node anchor = shown.isEmpty() ? null : shown.get(shown.size() - 1);
+        List<Node> nodes = new ArrayList<>();
+        for (int i = page.messages; i < records.size(); i++) {
+            nodes.add(nodeFactory.apply(records.get(i)));
+        }
+        shown.addAll(nodes);
+        page.nodes += nodes.size();
+        page.messages += nodes.size();
+        while (pages.size() > MAX_PAGES_SHOWN) {
+            evictFirst();
+        }
+        if (target >= history.getNewestPage() && (target != storedPage || page.messages >= storedCount)) {
+            // Caught up: show new messages again
+            live = true;
+            stickToBottom = true;
+        } else if (anchor != null) {
+            // Keep the message that was at the bottom where it was
+            layout();
+            scrollTo(anchor.getBoundsInParent().getMaxY() - outputScroll.getViewportBounds().getHeight());
+        }
+    }
+
+    private List<MessageHistory.Record> readPage(int page) {
+        try {
+            return history.readPage(page);
+        } catch (IOException e) {
+            LOG.warn("Could not read history page {}: {}", page, e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    private void evictFirst() {
+        Page page = pages.removeFirst();
+        textOutput.getChildren().remove(0, page.nodes);
+    }
+
+    private void evictLast() {
+        Page page = pages.removeLast();
+        ObservableList<Node> shown = textOutput.getChildren();
+        shown.remove(shown.size() - page.nodes, shown.size());
+    }
+
+    /**
+     * Lay out the new nodes now, so their positions are known
+     */
+    private void layout() {
+        outputScroll.applyCss();
+        outputScroll.layout();
+    }
+
+    /**
+     * Scroll so the given y position in the message box is at the top of the view
+     */
+    private void scrollTo(double y) {
+        double range = textOutput.getHeight() - outputScroll.getViewportBounds().getHeight();
+        double v = range <= 0 ? 0 : Math.max(0, Math.min(1, y / range));
+        outputScroll.setVvalue(outputScroll.getVmin() + v * (outputScroll.getVmax() - outputScroll.getVmin()));
+    }
+}
@@ -0,0 +1,74 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Measure the GUI cold start time: from process start to the first rendered frame. Every run
+ * starts a fresh JVM, so class loading, JIT and resource loading are all included. Run it with
+ * the test classpath, for example:
+ * <p>
+ * {@code mvn test-compile exec:java -Dexec.mainClass=no.ntnu.datakomm.chat.StartupBenchmark
+ * -Dexec.classpathScope=test -Dexec.args="10"}
+ * <p>
+ * Arguments: number of runs (default 10). Both the code-built layout and the FXML layout are
+ * measured, so the numbers can be compared and tracked per release.
+ */
+public class StartupBenchmark {
+
+    private static final String MARKER = "First frame after ms: ";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        report("code layout", measure(runs, false));
+        report("FXML layout", measure(runs, true));
+    }
+
+    /**
+     * Start the GUI the given number of times, collect startup times
+     *
+     * @param runs    Number of runs
+     * @param useFxml When true, the FXML layout is used
+     * @return Startup times in milliseconds, sorted
+     */
+    private static List<Long> measure(int runs, boolean useFxml) throws IOException, InterruptedException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < runs; i++) {
+            ProcessBuilder pb = new ProcessBuilder(java,
+                    "-cp", System.getProperty("java.class.path"),
+                    "-Dchat.startupBenchmark=true",
+                    "-Dchat.fxml=" + useFxml,
+                    App.class.getName());
+            pb.redirectErrorStream(true);
+            Process p = pb.start();
+            try (BufferedReader out = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                String line;
+                while ((line = out.readLine()) != null) {
+                    if (line.startsWith(MARKER)) {
+                        times.add(Long.parseLong(line.substring(MARKER.length()).trim()));
+                    }
+                }
+            }
+            p.waitFor();
+        }
+        Collections.sort(times);
+        return times;
+    }
+
+    private static void report(String name, List<Long> times) {
+        if (times.isEmpty()) {
+            System.out.println(name + ": no successful runs");
+            return;
+        }
+        System.out.println(name + ": runs=" + times.size()
+                + " min=" + times.get(0) + "ms"
+                + " median=" + times.get(times.size() / 2) + "ms"
+                + " max=" + times.get(times.size() - 1) + "ms");
+    }
+}
@@ -0,0 +1,36 @@
+#!/bin/sh
+# Compare the startup time and peak memory (RSS) of the headless client on the JVM and as a native
+# executable. Each run connects, logs in, asks for the user list and quits, like a short-lived bot.
+# Build both first with GraalVM: mvn package -Pnative
+#
+# Usage: ./compare-startup.sh [host] [port] [runs]
+# Needs a chat server on host:port, and GNU time (/usr/bin/time).
+
+HOST=${1:-localhost}
+PORT=${2:-1300}
+RUNS=${3:-10}
+DIR=$(dirname "$0")
+JAR="$DIR/target/chat-core-1.0.jar"
+NATIVE="$DIR/target/chat-cli"
+
+for f in "$JAR" "$NATIVE"; do
+    if [ ! -e "$f" ]; then
+        echo "$f is missing, build it with: mvn package -Pnative"
+        exit 1
+    fi
+done
+
+# Prints the mean wall time in ms and the mean peak RSS in MB over the runs
+measure() {
+    name=$1
+    shift
+    i=0
+    while [ $i -lt "$RUNS" ]; do
+        printf '/users\n/quit\n' | /usr/bin/time -f '%e %M' "$@" "$HOST" "$PORT" "bot$i" 2>&1 >/dev/null | tail -n 1
+        i=$((i + 1))
+    done | awk -v name="$name" '{ s += $1; kb += $2; n++ }
+        END { printf "%-7s runs=%d wall time=%.0f ms peak RSS=%.1f MB\n", name, n, s * 1000 / n, kb / n / 1024 }'
+}
+
+measure jvm java -jar "$JAR"
+measure native "$NATIVE"
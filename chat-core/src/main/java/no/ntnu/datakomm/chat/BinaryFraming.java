@@ -0,0 +1,313 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Length-prefixed binary framing, an alternative to the text lines of the protocol. The client
+ * switches to it with the "binary" command when the server lists "binary" among the supported
+ * commands; the server replies "binaryok" (the last text line), and from then on both directions
+ * carry frames:
+ * <p>
+ * {@code <length> <opcode> <user length> <user> <payload>}
+ * <p>
+ * length is a varint (7 bits per byte, lowest first) counting the bytes after it. opcode is one byte:
+ * the index of the command word in COMMANDS. user length is one byte, followed by the username in
+ * UTF-8: the sender of an incoming msg/privmsg, the recipient of an outgoing privmsg, otherwise
+ * empty. The payload, the rest of the frame, is the command argument in UTF-8. A receiver knows
+ * where every field ends before it looks at the bytes, so nothing is scanned for newlines or spaces,
+ * and the text may contain any character. Opcode 0 carries a whole text line as payload, for
+ * command words without an opcode.
+ */
+public class BinaryFraming {
+
+    // Command the client sends to switch the connection to binary frames, and the server's reply
+    public static final String BINARY_CMD = "binary";
+    public static final String BINARY_OK = "binaryok";
+
+    public static final int OP_TEXT = 0;
+    public static final int OP_MSG = 4;
+    public static final int OP_PRIVMSG = 5;
+    public static final int OP_MSGOK = 6;
+
+    // Command words by opcode. Only append to this list: the opcodes are part of the protocol.
+    private static final String[] COMMANDS = {
+            null, "login", "loginok", "loginerr", "msg", "privmsg", "msgok", "msgerr", "users",
+            "help", "supported", "cmderr", "deflate", "deflateok", BINARY_CMD, BINARY_OK
+    };
+
+    // Longest frame that is accepted, in bytes
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    private static final byte[] NO_BYTES = new byte[0];
+
+    /**
+     * @param word A command word
+     * @return Its opcode, or OP_TEXT if it has none
+     */
+    public static int opcode(String word) {
+        for (int i = 1; i < COMMANDS.length; i++) {
+            if (COMMANDS[i].equals(word)) {
+                return i;
+            }
+        }
+        return OP_TEXT;
+    }
+
+    /**
+     * @param opcode An opcode
+     * @return true if the frame carries a username: incoming msg and privmsg have the sender,
+     * outgoing privmsg the recipient
+     */
+    private static boolean hasUser(int opcode, boolean fromServer) {
+        return opcode == OP_PRIVMSG || (fromServer && opcode == OP_MSG);
+    }
+
+    /**
+     * Frame one text protocol command sent by the client, so the same frame can be written to many
+     * connections without framing it again
+     *
+     * @param line The command, without the newline
+     * @return The frame
+     * @throws IOException When the command can't be framed
+     */
+    public static byte[] encodeLine(String line) throws IOException {
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(line.length() + 8);
+        new Writer(frame, false).writeLine(line);
+        return frame.toByteArray();
+    }
+
+    /**
+     * Writes frames to a stream. The frame is built in a reusable buffer and written with one call.
+     * Not thread safe: the caller must write one frame at a time.
+     */
+    public static class Writer {
+        private final OutputStream output;
+        private final boolean fromServer;
+        private byte[] buffer = new byte[1024];
+
+        /**
+         * @param output     Where to write the frames
+         * @param fromServer true on the server side of the connection
+         */
+        public Writer(OutputStream output, boolean fromServer) {
+            this.output = output;
+            this.fromServer = fromServer;
+        }
+
+        /**
+         * Write one command as a frame, without flushing
+         *
+         * @param opcode  Opcode of the command word
+         * @param user    Username, or null
+         * @param payload Command argument, or null
+         * @throws IOException When writing fails
+         */
+        public void write(int opcode, String user, String payload) throws IOException {
+            byte[] userBytes = user != null ? user.getBytes(StandardCharsets.UTF_8) : NO_BYTES;
+            byte[] payloadBytes = payload != null ? payload.getBytes(StandardCharsets.UTF_8) : NO_BYTES;
+            if (userBytes.length > 255) {
+                throw new IOException("Username too long for a frame");
+            }
+            int length = 2 + userBytes.length + payloadBytes.length;
+            int needed = 5 + length;
+            if (buffer.length < needed) {
+                buffer = new byte[Math.max(needed, buffer.length * 2)];
+            }
+            int p = writeVarint(buffer, 0, length);
+            buffer[p++] = (byte) opcode;
+            buffer[p++] = (byte) userBytes.length;
+            System.arraycopy(userBytes, 0, buffer, p, userBytes.length);
+            p += userBytes.length;
+            System.arraycopy(payloadBytes, 0, buffer, p, payloadBytes.length);
+            p += payloadBytes.length;
+            output.write(buffer, 0, p);
+        }
+
+        /**
+         * Write one text protocol command as a frame, without flushing
+         *
+         * @param line The command, without the newline
+         * @throws IOException When writing fails
+         */
+        public void writeLine(String line) throws IOException {
+            int space = line.indexOf(' ');
+            String word = space < 0 ? line : line.substring(0, space);
+            String argument = space < 0 ? null : line.substring(space + 1);
+            int opcode = opcode(word);
+            if (opcode == OP_TEXT) {
+                write(OP_TEXT, null, line);
+            } else if (hasUser(opcode, fromServer) && argument != null) {
+                int end = argument.indexOf(' ');
+                if (end < 0) {
+                    write(opcode, argument, null);
+                } else {
+                    write(opcode, argument.substring(0, end), argument.substring(end + 1));
+                }
+            } else {
+                write(opcode, null, argument);
+            }
+        }
+
+        /**
+         * Flush the frames written so far
+         *
+         * @throws IOException When writing fails
+         */
+        public void flush() throws IOException {
+            output.flush();
+        }
+    }
+
+    /**
+     * Reads frames from a stream. After next(), the fields of the frame are slices of the read
+     * buffer, until the following call. Not thread safe.
+     */
+    public static class Reader {
+        private final InputStream input;
+        private final int maxFrameLength;
+        private byte[] buffer = new byte[8192];
+        private int position = 0;
+        private int limit = 0;
+        // The current frame
+        private int opcode;
+        private int userStart;
+        private int userLength;
+        private int payloadStart;
+        private int payloadLength;
+
+        /**
+         * @param input          The stream to read from, for example LineReader.detach() after the
+         *                       switching command
+         * @param maxFrameLength Longest frame accepted, in bytes
+         */
+        public Reader(InputStream input, int maxFrameLength) {
+            this.input = input;
+            this.maxFrameLength = maxFrameLength;
+        }
+
+        /**
+         * Read the next frame
+         *
+         * @return false when the stream ended between frames
+         * @throws IOException When reading fails, the stream ends inside a frame or the frame is
+         *                     malformed
+         */
+        public boolean next() throws IOException {
+            // The length: at most 5 bytes
+            int length = 0;
+            int shift = 0;
+            while (true) {
+                if (position == limit && !fill(1)) {
+                    if (shift == 0) {
+                        return false;
+                    }
+                    throw new EOFException("Stream ended inside a frame");
+                }
+                int b = buffer[position++];
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+                shift += 7;
+                if (shift > 28) {
+                    throw new IOException("Bad frame length");
+                }
+            }
+            if (length < 2 || length > maxFrameLength) {
+                throw new IOException("Bad frame length: " + length);
+            }
+            if (limit - position < length && !fill(length)) {
+                throw new EOFException("Stream ended inside a frame");
+            }
+            int start = position;
+            position += length;
+            opcode = buffer[start] & 0xFF;
+            userLength = buffer[start + 1] & 0xFF;
+            if (opcode >= COMMANDS.length || 2 + userLength > length) {
+                throw new IOException("Bad frame");
+            }
+            userStart = start + 2;
+            payloadStart = userStart + userLength;
+            payloadLength = length - 2 - userLength;
+            return true;
+        }
+
+        /**
+         * Make sure at least count bytes are buffered after the position
+         *
+         * @return false when the stream ended first
+         */
+        private boolean fill(int count) throws IOException {
+            if (buffer.length - position < count) {
+                byte[] target = count > buffer.length ? new byte[Math.max(count, buffer.length * 2)] : buffer;
+                System.arraycopy(buffer, position, target, 0, limit - position);
+                buffer = target;
+                limit -= position;
+                position = 0;
+            }
+            while (limit - position < count) {
+                int n = input.read(buffer, limit, buffer.length - limit);
+                if (n < 0) {
+                    return false;
+                }
+                limit += n;
+            }
+            return true;
+        }
+
+        /**
+         * @return Opcode of the current frame
+         */
+        public int getOpcode() {
+            return opcode;
+        }
+
+        /**
+         * @return Username of the current frame, "" if there is none
+         */
+        public String getUser() {
+            return new String(buffer, userStart, userLength, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return Payload of the current frame
+         */
+        public String getPayload() {
+            return new String(buffer, payloadStart, payloadLength, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return The current frame as a text protocol command, without the newline
+         */
+        public String toLine() {
+            if (opcode == OP_TEXT) {
+                return getPayload();
+            }
+            StringBuilder line = new StringBuilder(COMMANDS[opcode]);
+            if (userLength > 0) {
+                line.append(' ').append(getUser());
+            }
+            if (payloadLength > 0 || opcode == OP_MSG || opcode == OP_PRIVMSG) {
+                line.append(' ').append(getPayload());
+            }
+            return line.toString();
+        }
+    }
+
+    /**
+     * @return Position after the varint
+     */
+    private static int writeVarint(byte[] buffer, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte) value;
+        return position;
+    }
+}
@@ -0,0 +1,114 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads a file written by TrafficCapture, one record at a time.
+ */
+public class CaptureReader implements AutoCloseable {
+
+    /**
+     * One recorded line
+     */
+    public static class Record {
+        private final boolean inbound;
+        private final long nanos;
+        private final String line;
+
+        Record(boolean inbound, long nanos, String line) {
+            this.inbound = inbound;
+            this.nanos = nanos;
+            this.line = line;
+        }
+
+        /**
+         * @return true if the line was received from the server, false if it was sent
+         */
+        public boolean isInbound() {
+            return inbound;
+        }
+
+        /**
+         * @return Nanoseconds from the start of the capture
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return The line, without the newline
+         */
+        public String getLine() {
+            return line;
+        }
+    }
+
+    private final DataInputStream in;
+    private final long startTime;
+    private long nanos = 0;
+
+    /**
+     * @param stream The capture file. It is closed by close().
+     * @throws IOException When the file is not a capture file
+     */
+    public CaptureReader(InputStream stream) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(stream, 65536));
+        byte[] magic = new byte[TrafficCapture.MAGIC.length()];
+        in.readFully(magic);
+        if (!TrafficCapture.MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) {
+            throw new IOException("Not a chat capture file");
+        }
+        startTime = in.readLong();
+    }
+
+    /**
+     * @return Wall clock time when the capture was started, in milliseconds since the epoch
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * @return The next record, or null at the end of the file
+     * @throws IOException When the file is broken
+     */
+    public Record next() throws IOException {
+        int direction = in.read();
+        if (direction < 0) {
+            return null;
+        }
+        nanos += readVarLong();
+        long length = readVarLong();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Broken capture record");
+        }
+        byte[] bytes = new byte[(int) length];
+        in.readFully(bytes);
+        return new Record(direction == TrafficCapture.INBOUND, nanos, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Capture file ends in the middle of a record");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Broken capture record");
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,87 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Feeds a capture (see TrafficCapture) through the client's parser and on to the listeners, without
+ * a server. The inbound lines are replayed with their original timing, faster, or as fast as
+ * possible. Used to reproduce message storms offline and to benchmark the parser and the listeners
+ * (for example the GUI) with real traffic.
+ * <p>
+ * Usage: {@code java -cp chat-core.jar no.ntnu.datakomm.chat.CaptureReplayer <file> [speed]}
+ * replays the file as fast as possible (or at the given speed) and prints the throughput.
+ */
+public class CaptureReplayer {
+
+    private final TCPClient client = new TCPClient();
+    private long replayedLines = 0;
+
+    public CaptureReplayer() {
+        // The replay has no connection, so the client must not try to negotiate anything
+        client.setCompressionEnabled(false);
+        client.setBinaryFramingEnabled(false);
+    }
+
+    /**
+     * Register a listener that will get the replayed events
+     *
+     * @param listener The listener
+     */
+    public void addListener(ChatListener listener) {
+        client.addListener(listener);
+    }
+
+    /**
+     * Replay the inbound lines of a capture. Returns when the whole capture has been replayed.
+     *
+     * @param capture The capture file. It is closed when done.
+     * @param speed   1 for the original timing, 10 for ten times faster, 0 or less for maximum speed
+     * @throws IOException          When the capture can't be read
+     * @throws InterruptedException When interrupted while waiting for the next line
+     */
+    public void replay(InputStream capture, double speed) throws IOException, InterruptedException {
+        try (CaptureReader reader = new CaptureReader(capture)) {
+            long start = System.nanoTime();
+            CaptureReader.Record record;
+            while ((record = reader.next()) != null) {
+                if (!record.isInbound() || record.getLine().equals(TCPClient.DEFLATE_OK)
+                        || record.getLine().equals(BinaryFraming.BINARY_OK)) {
+                    // Outbound lines and transport switches are not replayed
+                    continue;
+                }
+                if (speed > 0) {
+                    long due = start + (long) (record.getNanos() / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    }
+                }
+                client.handleServerLine(record.getLine());
+                replayedLines++;
+            }
+        }
+    }
+
+    /**
+     * @return Number of lines replayed so far
+     */
+    public long getReplayedLines() {
+        return replayedLines;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: CaptureReplayer <file> [speed]");
+            System.exit(1);
+        }
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+        CaptureReplayer replayer = new CaptureReplayer();
+        long start = System.nanoTime();
+        replayer.replay(new FileInputStream(args[0]), speed);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Replayed %d lines in %.3f s (%.0f lines/s)%n", replayer.getReplayedLines(),
+                seconds, replayer.getReplayedLines() / seconds);
+    }
+}
@@ -0,0 +1,283 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+
+/**
+ * Reports over a stored message history (see MessageHistory): messages per sender, messages per
+ * hour, private and public message counts, and the most used terms.
+ * <p>
+ * The segments of the history are analysed in parallel in a fork-join pool: the list of segments is
+ * split in halves until each task has one segment, each segment is read as a stream into its own
+ * partial report, and the partial reports are merged on the way back up. Only the counters are kept
+ * in memory, never the messages.
+ */
+public class ChatAnalytics {
+
+    private static final long HOUR_MILLIS = 3600000L;
+    // Shorter words are not counted as terms
+    private static final int MIN_TERM_LENGTH = 3;
+
+    /**
+     * Counters for a set of messages. Reports for different sets can be merged.
+     */
+    public static class Report {
+        private final Map<String, Long> senders = new HashMap<>();
+        private final TreeMap<Long, Long> hours = new TreeMap<>();
+        private final Map<String, Long> terms = new HashMap<>();
+        private long privateCount = 0;
+        private long publicCount = 0;
+
+        void add(long time, TextMessage message) {
+            senders.merge(message.getSender(), 1L, Long::sum);
+            hours.merge(time - Math.floorMod(time, HOUR_MILLIS), 1L, Long::sum);
+            if (message.isPrivate()) {
+                privateCount++;
+            } else {
+                publicCount++;
+            }
+            countTerms(message.getText());
+        }
+
+        private void countTerms(String text) {
+            int length = text.length();
+            int i = 0;
+            while (i < length) {
+                while (i < length && !Character.isLetterOrDigit(text.charAt(i))) {
+                    i++;
+                }
+                int start = i;
+                while (i < length && Character.isLetterOrDigit(text.charAt(i))) {
+                    i++;
+                }
+                if (i - start >= MIN_TERM_LENGTH) {
+                    terms.merge(text.substring(start, i).toLowerCase(Locale.ROOT), 1L, Long::sum);
+                }
+            }
+        }
+
+        /**
+         * Add the counters of another report to this one
+         */
+        void merge(Report other) {
+            other.senders.forEach((k, v) -> senders.merge(k, v, Long::sum));
+            other.hours.forEach((k, v) -> hours.merge(k, v, Long::sum));
+            other.terms.forEach((k, v) -> terms.merge(k, v, Long::sum));
+            privateCount += other.privateCount;
+            publicCount += other.publicCount;
+        }
+
+        /**
+         * @return Total number of messages
+         */
+        public long getMessageCount() {
+            return privateCount + publicCount;
+        }
+
+        /**
+         * @return Number of messages per sender username
+         */
+        public Map<String, Long> getMessagesPerSender() {
+            return Collections.unmodifiableMap(senders);
+        }
+
+        /**
+         * @return Number of messages per hour. The key is the start of the hour, in milliseconds since
+         * the epoch (UTC)
+         */
+        public SortedMap<Long, Long> getMessagesPerHour() {
+            return Collections.unmodifiableSortedMap(hours);
+        }
+
+        public long getPrivateCount() {
+            return privateCount;
+        }
+
+        public long getPublicCount() {
+            return publicCount;
+        }
+
+        /**
+         * @return Number of private messages per public message, or 0 when there are no public messages
+         */
+        public double getPrivatePublicRatio() {
+            return publicCount == 0 ? 0 : (double) privateCount / publicCount;
+        }
+
+        /**
+         * @param count How many terms to return
+         * @return The most used terms (lower case words of at least three letters or digits), most
+         * used first
+         */
+        public List<Map.Entry<String, Long>> getTopTerms(int count) {
+            return top(terms, count);
+        }
+
+        /**
+         * @param count How many senders to return
+         * @return The senders with most messages, most active first
+         */
+        public List<Map.Entry<String, Long>> getTopSenders(int count) {
+            return top(senders, count);
+        }
+
+        private static List<Map.Entry<String, Long>> top(Map<String, Long> counts, int count) {
+            // Keep the best "count" entries in a min-heap instead of sorting the whole map
+            PriorityQueue<Map.Entry<String, Long>> heap = new PriorityQueue<>(Math.max(1, count),
+                    (a, b) -> a.getValue().equals(b.getValue())
+                            ? b.getKey().compareTo(a.getKey())
+                            : Long.compare(a.getValue(), b.getValue()));
+            for (Map.Entry<String, Long> e : counts.entrySet()) {
+                if (heap.size() < count) {
+                    heap.add(e);
+                } else if (count > 0 && heap.comparator().compare(e, heap.peek()) > 0) {
+                    heap.poll();
+                    heap.add(e);
+                }
+            }
+            List<Map.Entry<String, Long>> result = new ArrayList<>(heap);
+            result.sort(Collections.reverseOrder(heap.comparator()));
+            return result;
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Analyse in the common fork-join pool, using all processors
+     */
+    public ChatAnalytics() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool Pool to run the analysis in
+     */
+    public ChatAnalytics(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Analyse all segments in a history directory
+     *
+     * @param directory History directory, written by MessageHistory
+     * @return Report for all messages
+     * @throws IOException When a segment can't be read
+     */
+    public Report analyze(File directory) throws IOException {
+        return analyze(directory, null);
+    }
+
+    /**
+     * Analyse all segments in a history directory, and report each segment as soon as it is done, so
+     * a long analysis can show results while it runs
+     *
+     * @param directory     History directory, written by MessageHistory
+     * @param segmentReport Called with the report of each segment, from a pool thread, in no
+     *                      particular order. May be null.
+     * @return Report for all messages
+     * @throws IOException When a segment can't be read
+     */
+    public Report analyze(File directory, Consumer<Report> segmentReport) throws IOException {
+        List<File> segments = MessageHistory.listSegments(directory);
+        if (segments.isEmpty()) {
+            return new Report();
+        }
+        try {
+            return pool.invoke(new SegmentTask(segments, 0, segments.size(), segmentReport));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Analyses the segments from index "from" (inclusive) to "to" (exclusive)
+     */
+    private static class SegmentTask extends RecursiveTask<Report> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<File> segments;
+        private final int from;
+        private final int to;
+        private final Consumer<Report> segmentReport;
+
+        SegmentTask(List<File> segments, int from, int to, Consumer<Report> segmentReport) {
+            this.segments = segments;
+            this.from = from;
+            this.to = to;
+            this.segmentReport = segmentReport;
+        }
+
+        @Override
+        protected Report compute() {
+            if (to - from == 1) {
+                Report report = new Report();
+                try {
+                    MessageHistory.readSegment(segments.get(from), report::add);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (segmentReport != null) {
+                    // The report returned here is merged into later, so the callback gets its own copy
+                    Report copy = new Report();
+                    copy.merge(report);
+                    segmentReport.accept(copy);
+                }
+                return report;
+            }
+            int middle = (from + to) >>> 1;
+            SegmentTask left = new SegmentTask(segments, from, middle, segmentReport);
+            left.fork();
+            Report report = new SegmentTask(segments, middle, to, segmentReport).compute();
+            report.merge(left.join());
+            return report;
+        }
+    }
+
+    /**
+     * Print a report for a history directory
+     *
+     * @param args History directory, and optionally the number of top terms and senders to show
+     * @throws IOException When the history can't be read
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: ChatAnalytics <history directory> [top count]");
+            return;
+        }
+        int top = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        long start = System.nanoTime();
+        Report report = new ChatAnalytics().analyze(new File(args[0]));
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("Analysed %d messages in %.3f s (%.0f messages/s)%n", report.getMessageCount(),
+                seconds, report.getMessageCount() / seconds);
+        System.out.printf("Private: %d, public: %d, ratio: %.3f%n", report.getPrivateCount(),
+                report.getPublicCount(), report.getPrivatePublicRatio());
+        System.out.println("Top senders:");
+        for (Map.Entry<String, Long> e : report.getTopSenders(top)) {
+            System.out.println("  " + e.getKey() + " " + e.getValue());
+        }
+        System.out.println("Top terms:");
+        for (Map.Entry<String, Long> e : report.getTopTerms(top)) {
+            System.out.println("  " + e.getKey() + " " + e.getValue());
+        }
+        System.out.println("Messages per hour:");
+        for (Map.Entry<Long, Long> e : report.getMessagesPerHour().entrySet()) {
+            System.out.println("  " + new Date(e.getKey()) + " " + e.getValue());
+        }
+    }
+}
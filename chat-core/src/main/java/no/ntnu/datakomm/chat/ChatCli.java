@@ -0,0 +1,142 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Headless command-line chat client. Does not load any JavaFX classes, so it can be used for bots and
+ * services. Lines typed on standard input are sent to the server, events from the server are printed
+ * on standard output.
+ * <p>
+ * Usage: {@code java -jar chat-core.jar <host> <port> [username]}
+ * <p>
+ * Input lines: {@code /privmsg <recipient> <text>}, {@code /login <username>}, {@code /users},
+ * {@code /help}, {@code /quit}. Any other line is sent as a public message.
+ */
+public class ChatCli implements ChatListener {
+
+    private final TCPClient tcpClient = new TCPClient();
+
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.out.println("Usage: ChatCli <host> <port> [username]");
+            System.exit(1);
+        }
+        ChatCli cli = new ChatCli();
+        String username = args.length > 2 ? args[2] : null;
+        if (!cli.run(args[0], Integer.parseInt(args[1]), username)) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Connect to the server, optionally log in, and forward standard input to the server until
+     * the input ends, "/quit" is typed or the connection is closed.
+     *
+     * @param host     host name or IP address of the chat server
+     * @param port     TCP port of the chat server
+     * @param username Username to log in with, or null to skip login
+     * @return True when the session ended normally, false if connection failed
+     */
+    public boolean run(String host, int port, String username) {
+        if (!tcpClient.connect(host, port)) {
+            System.out.println("Could not connect: " + tcpClient.getLastError());
+            return false;
+        }
+        tcpClient.addListener(this);
+        tcpClient.startListenThread();
+        if (username != null) {
+            tcpClient.tryLogin(username);
+        }
+
+        BufferedReader stdin = new BufferedReader(new InputStreamReader(System.in));
+        try {
+            String line;
+            while (tcpClient.isConnectionActive() && (line = stdin.readLine()) != null) {
+                if (!handleInput(line)) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Input error: " + e.getMessage());
+        }
+        tcpClient.disconnect();
+        return true;
+    }
+
+    /**
+     * Handle one line typed by the user
+     *
+     * @param line The line
+     * @return False when the user asked to quit, true otherwise
+     */
+    private boolean handleInput(String line) {
+        if (line.isEmpty()) {
+            return true;
+        }
+        // Split the line in max 3 parts, same as in the GUI: "/privmsg <recipient> <text>"
+        String[] parts = line.split(" ", 3);
+        switch (parts[0]) {
+            case "/quit":
+                return false;
+            case "/users":
+                tcpClient.refreshUserList();
+                break;
+            case "/help":
+                tcpClient.askSupportedCommands();
+                break;
+            case "/login":
+                if (parts.length > 1) {
+                    tcpClient.tryLogin(parts[1]);
+                }
+                break;
+            case "/privmsg":
+                if (parts.length == 3) {
+                    tcpClient.sendPrivateMessage(parts[1], parts[2]);
+                } else {
+                    // Not a complete private message, send it as a public one
+                    tcpClient.sendPublicMessage(line);
+                }
+                break;
+            default:
+                tcpClient.sendPublicMessage(line);
+        }
+        return true;
+    }
+
+    @Override
+    public void onDisconnect() {
+        System.out.println("Socket closed by the remote end");
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        System.out.println(success ? "Login successful" : "Login failed: " + errMsg);
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        System.out.println(message);
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        System.out.println("Message error: " + errMsg);
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        System.out.println("Users: " + String.join(" ", usernames));
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        System.out.println("Supported commands: " + String.join(" ", commands));
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        System.out.println("Command error: " + errMsg);
+    }
+}
@@ -0,0 +1,60 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * A type of event from the chat server, for TCPClient.subscribe(). The type parameter is what the
+ * subscriber gets with the event.
+ *
+ * @param <T> Type of the event data
+ */
+public final class ChatEvent<T> {
+
+    /**
+     * The connection was closed. The data is null.
+     */
+    public static final ChatEvent<Void> DISCONNECT = new ChatEvent<>(0, "disconnect");
+    /**
+     * Login succeeded. The data is the text after "loginok", usually null.
+     */
+    public static final ChatEvent<String> LOGIN_OK = new ChatEvent<>(1, "loginok");
+    /**
+     * Login failed. The data is the error message.
+     */
+    public static final ChatEvent<String> LOGIN_ERROR = new ChatEvent<>(2, "loginerr");
+    /**
+     * A chat message arrived, public or private
+     */
+    public static final ChatEvent<TextMessage> MESSAGE = new ChatEvent<>(3, "message");
+    /**
+     * A message we sent was not delivered. The data is the error message.
+     */
+    public static final ChatEvent<String> MESSAGE_ERROR = new ChatEvent<>(4, "msgerr");
+    /**
+     * The list of users online arrived
+     */
+    public static final ChatEvent<String[]> USER_LIST = new ChatEvent<>(5, "users");
+    /**
+     * The list of commands the server supports arrived
+     */
+    public static final ChatEvent<String[]> SUPPORTED = new ChatEvent<>(6, "supported");
+    /**
+     * The server did not understand a command. The data is the error message.
+     */
+    public static final ChatEvent<String> COMMAND_ERROR = new ChatEvent<>(7, "cmderr");
+
+    // Number of event types
+    static final int COUNT = 8;
+
+    // Position in the dispatch table
+    final int index;
+    private final String name;
+
+    private ChatEvent(int index, String name) {
+        this.index = index;
+        this.name = name;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,523 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous log for the I/O paths. Logging a message only copies the format and arguments into
+ * a pre-allocated ring buffer; a background thread formats the messages and writes them to the
+ * console or to a rolling log file. So logging never blocks on console or disk I/O, and when the
+ * buffer is full, messages are dropped (and counted) instead of stalling the caller.
+ * <p>
+ * Formats use {} for the arguments: log.warn("Send error: {}", e.getMessage()). The format is also
+ * the key for rate limiting: at most the configured number of messages per second are logged for
+ * one format, and the number of suppressed repeats is reported with the next message that gets
+ * through. So formats should be constants.
+ * <p>
+ * The shared log (get()) is configured with system properties: chat.logLevel (DEBUG, INFO, WARN or
+ * ERROR, default INFO) and chat.logFile (log to this file, rolled over at 10 MB with 5 old files
+ * kept; default is the console).
+ */
+public class ChatLog {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    /**
+     * Where the background thread writes the formatted lines
+     */
+    public interface Output {
+        /**
+         * @param line One log line, without the newline
+         * @throws IOException When writing fails
+         */
+        void write(String line) throws IOException;
+
+        /**
+         * Called when the ring buffer is empty
+         *
+         * @throws IOException When writing fails
+         */
+        void flush() throws IOException;
+    }
+
+    private static final int DEFAULT_CAPACITY = 8192;
+    private static final int DEFAULT_REPEATS_PER_SECOND = 20;
+    // Rate limiting is only done for this many different formats
+    private static final int MAX_RATE_KEYS = 1024;
+    private static volatile ChatLog shared = null;
+
+    private final Output output;
+    private final Level level;
+    private final int maxRepeatsPerSecond;
+
+    // The ring buffer. A slot is published when its sequence number is set in published.
+    private final int mask;
+    private final AtomicLongArray published;
+    private final long[] times;
+    private final Level[] levels;
+    private final String[] threads;
+    private final String[] formats;
+    private final Object[] args1;
+    private final Object[] args2;
+    private final byte[] argCounts;
+    private final int[] suppressed;
+    private final AtomicLong head = new AtomicLong();
+    private volatile long tail = 0;
+
+    /**
+     * Rate limit state of one format
+     */
+    private static class Repeats {
+        volatile long windowStart = System.nanoTime() - 2000000000L;
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicInteger suppressed = new AtomicInteger();
+    }
+
+    private final Map<String, Repeats> repeats = new ConcurrentHashMap<>();
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder suppressedTotal = new LongAdder();
+    private volatile long written = 0;
+    private final Thread writer;
+    private volatile boolean writerParked = false;
+    private volatile boolean running = true;
+
+    /**
+     * Create a log and start its writer thread
+     *
+     * @param output              Where to write the lines
+     * @param level               Messages below this level are ignored
+     * @param capacity            Number of messages the ring buffer holds, rounded up to a power of 2
+     * @param maxRepeatsPerSecond Messages per second logged for one format, 0 for no limit
+     */
+    public ChatLog(Output output, Level level, int capacity, int maxRepeatsPerSecond) {
+        this.output = output;
+        this.level = level;
+        this.maxRepeatsPerSecond = maxRepeatsPerSecond;
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        mask = size - 1;
+        published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            published.set(i, -1);
+        }
+        times = new long[size];
+        levels = new Level[size];
+        threads = new String[size];
+        formats = new String[size];
+        args1 = new Object[size];
+        args2 = new Object[size];
+        argCounts = new byte[size];
+        suppressed = new int[size];
+        writer = new Thread(this::writeLoop, "ChatLog-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * @return The log shared by the whole application, configured with system properties
+     */
+    public static ChatLog get() {
+        ChatLog log = shared;
+        if (log == null) {
+            synchronized (ChatLog.class) {
+                log = shared;
+                if (log == null) {
+                    log = createShared();
+                    shared = log;
+                }
+            }
+        }
+        return log;
+    }
+
+    private static ChatLog createShared() {
+        Level level = Level.INFO;
+        try {
+            level = Level.valueOf(System.getProperty("chat.logLevel", "INFO").toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Unknown log level, using INFO: " + System.getProperty("chat.logLevel"));
+        }
+        Output output = new ConsoleOutput();
+        String file = System.getProperty("chat.logFile");
+        if (file != null) {
+            output = new RollingFileOutput(new File(file), 10 * 1024 * 1024, 5);
+        }
+        ChatLog log = new ChatLog(output, level, DEFAULT_CAPACITY, DEFAULT_REPEATS_PER_SECOND);
+        // Write what is still in the buffer when the application exits
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> log.close(1000)));
+        return log;
+    }
+
+    /**
+     * @param messageLevel A level
+     * @return true if messages of the level are logged
+     */
+    public boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0;
+    }
+
+    public void debug(String format) {
+        log(Level.DEBUG, format, 0, null, null);
+    }
+
+    public void debug(String format, Object arg) {
+        log(Level.DEBUG, format, 1, arg, null);
+    }
+
+    public void debug(String format, Object arg1, Object arg2) {
+        log(Level.DEBUG, format, 2, arg1, arg2);
+    }
+
+    public void info(String format) {
+        log(Level.INFO, format, 0, null, null);
+    }
+
+    public void info(String format, Object arg) {
+        log(Level.INFO, format, 1, arg, null);
+    }
+
+    public void info(String format, Object arg1, Object arg2) {
+        log(Level.INFO, format, 2, arg1, arg2);
+    }
+
+    public void warn(String format) {
+        log(Level.WARN, format, 0, null, null);
+    }
+
+    public void warn(String format, Object arg) {
+        log(Level.WARN, format, 1, arg, null);
+    }
+
+    public void warn(String format, Object arg1, Object arg2) {
+        log(Level.WARN, format, 2, arg1, arg2);
+    }
+
+    public void error(String format) {
+        log(Level.ERROR, format, 0, null, null);
+    }
+
+    public void error(String format, Object arg) {
+        log(Level.ERROR, format, 1, arg, null);
+    }
+
+    public void error(String format, Object arg1, Object arg2) {
+        log(Level.ERROR, format, 2, arg1, arg2);
+    }
+
+    /**
+     * Log a message. Never blocks: the message is dropped if the buffer is full or the format is
+     * logged too often. The arguments are formatted later, on the writer thread, so they should not
+     * be changed afterwards (strings and numbers are fine).
+     *
+     * @param messageLevel Level of the message
+     * @param format       The message, with {} for each argument
+     * @param arg1         First argument
+     * @param arg2         Second argument
+     */
+    public void log(Level messageLevel, String format, Object arg1, Object arg2) {
+        log(messageLevel, format, 2, arg1, arg2);
+    }
+
+    private void log(Level messageLevel, String format, int argCount, Object arg1, Object arg2) {
+        if (!isEnabled(messageLevel) || !running) {
+            return;
+        }
+        int suppressedBefore = 0;
+        if (maxRepeatsPerSecond > 0) {
+            suppressedBefore = rateLimit(format);
+            if (suppressedBefore < 0) {
+                return;
+            }
+        }
+        long seq;
+        do {
+            seq = head.get();
+            if (seq - tail > mask) {
+                dropped.increment();
+                return;
+            }
+        } while (!head.compareAndSet(seq, seq + 1));
+        int i = (int) seq & mask;
+        times[i] = System.currentTimeMillis();
+        levels[i] = messageLevel;
+        threads[i] = Thread.currentThread().getName();
+        formats[i] = format;
+        args1[i] = arg1;
+        args2[i] = arg2;
+        argCounts[i] = (byte) argCount;
+        suppressed[i] = suppressedBefore;
+        // Publishes the fields above to the writer
+        published.set(i, seq);
+        if (writerParked) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * @return -1 if the message must be suppressed, otherwise the number of messages with this
+     * format suppressed since the last one logged
+     */
+    private int rateLimit(String format) {
+        Repeats r = repeats.get(format);
+        if (r == null) {
+            if (repeats.size() >= MAX_RATE_KEYS) {
+                return 0;
+            }
+            r = repeats.computeIfAbsent(format, f -> new Repeats());
+        }
+        long now = System.nanoTime();
+        if (now - r.windowStart > 1000000000L) {
+            // A new window; more than one thread may reset it, which only lets a few more through
+            r.windowStart = now;
+            r.count.set(0);
+        }
+        if (r.count.incrementAndGet() > maxRepeatsPerSecond) {
+            r.suppressed.incrementAndGet();
+            suppressedTotal.increment();
+            return -1;
+        }
+        return r.suppressed.getAndSet(0);
+    }
+
+    private void writeLoop() {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        StringBuilder line = new StringBuilder(256);
+        long reportedDrops = 0;
+        while (true) {
+            long seq = tail;
+            int i = (int) seq & mask;
+            if (published.get(i) != seq) {
+                long drops = dropped.sum();
+                if (drops > reportedDrops) {
+                    write("Log buffer full, " + (drops - reportedDrops) + " messages dropped");
+                    reportedDrops = drops;
+                }
+                try {
+                    output.flush();
+                } catch (IOException e) {
+                    // Nowhere to report it
+                }
+                if (!running) {
+                    return;
+                }
+                writerParked = true;
+                if (published.get(i) != seq) {
+                    LockSupport.parkNanos(this, 50000000L);
+                }
+                writerParked = false;
+                continue;
+            }
+            line.setLength(0);
+            line.append(dateFormat.format(new Date(times[i]))).append(' ');
+            line.append(levels[i]).append(levels[i].name().length() == 4 ? "  [" : " [");
+            line.append(threads[i]).append("] ");
+            appendFormatted(line, formats[i], argCounts[i], args1[i], args2[i]);
+            if (suppressed[i] > 0) {
+                line.append(" (").append(suppressed[i]).append(" similar messages suppressed)");
+            }
+            args1[i] = null;
+            args2[i] = null;
+            // Frees the slot for the producers
+            tail = seq + 1;
+            write(line.toString());
+        }
+    }
+
+    private void write(String line) {
+        try {
+            output.write(line);
+            written++;
+        } catch (IOException e) {
+            // Nowhere to report it
+        }
+    }
+
+    /**
+     * Replace each {} in the format with the next argument, as long as there are arguments
+     */
+    private static void appendFormatted(StringBuilder out, String format, int argCount, Object arg1, Object arg2) {
+        int start = 0;
+        int argIndex = 0;
+        int pos;
+        while (argIndex < argCount && (pos = format.indexOf("{}", start)) >= 0) {
+            out.append(format, start, pos);
+            out.append(argIndex == 0 ? arg1 : arg2);
+            argIndex++;
+            start = pos + 2;
+        }
+        out.append(format, start, format.length());
+    }
+
+    /**
+     * Wait until everything logged so far is written
+     *
+     * @param timeoutMillis Maximum time to wait
+     * @return true if everything was written in time
+     */
+    public boolean flush(long timeoutMillis) {
+        long target = head.get();
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (tail < target || writerBusy()) {
+            if (System.currentTimeMillis() > deadline) {
+                return false;
+            }
+            LockSupport.unpark(writer);
+            LockSupport.parkNanos(1000000L);
+        }
+        return true;
+    }
+
+    private boolean writerBusy() {
+        // The last message taken from the buffer may not be written yet
+        return !writerParked && writer.isAlive();
+    }
+
+    /**
+     * Write what is in the buffer and stop the writer thread. Messages logged after this are ignored.
+     *
+     * @param timeoutMillis Maximum time to wait for the writer
+     */
+    public void close(long timeoutMillis) {
+        flush(timeoutMillis);
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (output instanceof RollingFileOutput) {
+            ((RollingFileOutput) output).close();
+        }
+    }
+
+    /**
+     * @return Messages dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return Messages suppressed by the rate limit
+     */
+    public long getSuppressedCount() {
+        return suppressedTotal.sum();
+    }
+
+    /**
+     * @return Lines written to the output
+     */
+    public long getWrittenCount() {
+        return written;
+    }
+
+    /**
+     * Writes to System.out
+     */
+    public static class ConsoleOutput implements Output {
+        @Override
+        public void write(String line) {
+            System.out.println(line);
+        }
+
+        @Override
+        public void flush() {
+            System.out.flush();
+        }
+    }
+
+    /**
+     * Writes to a file. When the file gets too big, it is renamed to file.1 (file.1 to file.2, and
+     * so on, the oldest deleted) and a new file is started.
+     */
+    public static class RollingFileOutput implements Output {
+        private final File file;
+        private final long maxBytes;
+        private final int maxOldFiles;
+        private Writer out = null;
+        private long bytes = 0;
+
+        /**
+         * @param file        The log file
+         * @param maxBytes    Roll over when the file is bigger than this
+         * @param maxOldFiles Number of old files to keep
+         */
+        public RollingFileOutput(File file, long maxBytes, int maxOldFiles) {
+            this.file = file;
+            this.maxBytes = maxBytes;
+            this.maxOldFiles = maxOldFiles;
+        }
+
+        @Override
+        public void write(String line) throws IOException {
+            if (out == null) {
+                bytes = file.length();
+                out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8), 65536);
+            }
+            out.write(line);
+            out.write('\n');
+            // Close enough for non-ASCII text
+            bytes += line.length() + 1;
+            if (bytes > maxBytes) {
+                roll();
+            }
+        }
+
+        private void roll() throws IOException {
+            close();
+            File oldest = new File(file.getPath() + "." + maxOldFiles);
+            if (oldest.exists() && !oldest.delete()) {
+                throw new IOException("Can't delete " + oldest);
+            }
+            for (int n = maxOldFiles - 1; n >= 1; n--) {
+                File f = new File(file.getPath() + "." + n);
+                if (f.exists() && !f.renameTo(new File(file.getPath() + "." + (n + 1)))) {
+                    throw new IOException("Can't rename " + f);
+                }
+            }
+            if (maxOldFiles > 0 && !file.renameTo(new File(file.getPath() + ".1"))) {
+                throw new IOException("Can't rename " + file);
+            } else if (maxOldFiles == 0 && !file.delete()) {
+                throw new IOException("Can't delete " + file);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        /**
+         * Close the current file; the next write opens it again
+         */
+        void close() {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Nowhere to report it
+                }
+                out = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Mirrors public messages from one chat server to others. The relay listens on a source client and
+ * republishes every public message on all target clients as "~relay &lt;sender&gt; &lt;text&gt;". All
+ * clients must be connected (and logged in) by the caller, the source must have its listen thread
+ * running.
+ * <p>
+ * Each message is encoded to bytes once, both as a text line and as a binary frame; the same
+ * read-only byte arrays are queued for every target, which writes the form its connection uses.
+ * Every target has its own bounded queue and writer thread, so a slow target does not hold up the
+ * others: when its queue is full, new messages for that target are dropped and counted. Multi-line
+ * and very large messages are encoded as chunked frames (see ChunkFraming) and queued the same way,
+ * so they keep their place among the other messages.
+ * <p>
+ * Messages that already carry the relay tag are never relayed again. This stops a message from
+ * bouncing back and forth between two servers mirrored in both directions, and stops the relay from
+ * repeating its own messages when it also listens on a target server.
+ */
+public class ChatRelay implements ChatListener {
+
+    static final String RELAY_TAG = "~relay ";
+
+    // How many queued lines a target writer takes in one go (written with one flush)
+    private static final int WRITE_BATCH = 256;
+    private static final ChatLog LOG = ChatLog.get();
+
+    private final TCPClient source;
+    private final int queueCapacity;
+    private final List<Target> targets = new CopyOnWriteArrayList<>();
+
+    // Chunked message ids, unique for the relay's messages on the target connections
+    private final AtomicInteger nextChunkedId = new AtomicInteger();
+    private final AtomicLong relayed = new AtomicLong();
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * @param source        Client connected to the server to mirror from
+     * @param queueCapacity Maximum number of messages waiting for each target
+     */
+    public ChatRelay(TCPClient source, int queueCapacity) {
+        this.source = source;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Add a server to mirror to. Can be called while the relay is running.
+     *
+     * @param target Client connected to the target server
+     */
+    public void addTarget(TCPClient target) {
+        Target t = new Target(target, queueCapacity);
+        targets.add(t);
+        t.start();
+    }
+
+    /**
+     * Start relaying messages
+     */
+    public void start() {
+        source.addListener(this);
+    }
+
+    /**
+     * Stop relaying. Messages still queued for the targets are discarded.
+     */
+    public void stop() {
+        source.removeListener(this);
+        for (Target t : targets) {
+            t.stop();
+        }
+        targets.clear();
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        if (message.isPrivate()) {
+            return;
+        }
+        if (message.getText().startsWith(RELAY_TAG)) {
+            suppressed.incrementAndGet();
+            return;
+        }
+        String text = RELAY_TAG + message.getSender() + " " + message.getText();
+        // Encode once, share the bytes between all targets
+        Encoded encoded;
+        try {
+            List<String> commands = new ArrayList<>();
+            if (ChunkFraming.needsChunking(text, ChunkFraming.DEFAULT_MAX_FRAME_LENGTH)) {
+                // Rare: multi-line or very large messages are sent in chunked frames
+                ChunkFraming.Encoder encoder = new ChunkFraming.Encoder(new StringReader(text),
+                        nextChunkedId.getAndIncrement(), ChunkFraming.DEFAULT_MAX_FRAME_LENGTH);
+                String frame;
+                while ((frame = encoder.nextFrame()) != null) {
+                    commands.add("msg " + frame);
+                }
+            } else {
+                commands.add("msg " + text);
+            }
+            encoded = new Encoded(commands);
+        } catch (IOException e) {
+            LOG.warn("Can't relay message: {}", e.getMessage());
+            return;
+        }
+        for (Target t : targets) {
+            t.offer(encoded);
+        }
+        relayed.incrementAndGet();
+    }
+
+    @Override
+    public void onDisconnect() {
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+    }
+
+    /**
+     * @return Number of messages relayed (each counted once, not once per target)
+     */
+    public long getRelayedCount() {
+        return relayed.get();
+    }
+
+    /**
+     * @return Number of messages not relayed because they had been relayed already
+     */
+    public long getSuppressedCount() {
+        return suppressed.get();
+    }
+
+    /**
+     * @return Number of messages dropped because a target's queue was full or its connection was
+     * closed, summed over all targets
+     */
+    public long getDroppedCount() {
+        long sum = 0;
+        for (Target t : targets) {
+            sum += t.dropped.get();
+        }
+        return sum;
+    }
+
+    /**
+     * @return Number of messages written, summed over all targets
+     */
+    public long getWrittenCount() {
+        long sum = 0;
+        for (Target t : targets) {
+            sum += t.written.get();
+        }
+        return sum;
+    }
+
+    /**
+     * One relayed message, encoded for both kinds of connection: one command, or one per chunked
+     * frame. The frames of a message are queued and dropped together, so a target never gets part of
+     * a message.
+     */
+    private static class Encoded {
+        private final byte[][] lines;
+        private final byte[][] frames;
+
+        Encoded(List<String> commands) throws IOException {
+            lines = new byte[commands.size()][];
+            frames = new byte[commands.size()][];
+            for (int i = 0; i < lines.length; i++) {
+                lines[i] = (commands.get(i) + "\n").getBytes(StandardCharsets.UTF_8);
+                frames[i] = BinaryFraming.encodeLine(commands.get(i));
+            }
+        }
+    }
+
+    /**
+     * One target server with its queue and writer thread
+     */
+    private static class Target {
+        private final TCPClient client;
+        private final BlockingQueue<Encoded> queue;
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong written = new AtomicLong();
+        private Thread writer;
+
+        Target(TCPClient client, int capacity) {
+            this.client = client;
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        void start() {
+            writer = new Thread(this::writeLines, "ChatRelay-writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        void stop() {
+            writer.interrupt();
+            queue.clear();
+        }
+
+        void offer(Encoded message) {
+            if (!queue.offer(message)) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        /**
+         * Writer thread: wait for a message, then write it together with whatever else is queued.
+         * A failed write loses the messages in it, but the thread carries on with the next ones.
+         */
+        private void writeLines() {
+            byte[][] lines = new byte[WRITE_BATCH][];
+            byte[][] frames = new byte[WRITE_BATCH][];
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    Encoded next = queue.poll(1, TimeUnit.SECONDS);
+                    if (next == null) {
+                        continue;
+                    }
+                    int count = 0;
+                    int messages = 0;
+                    do {
+                        int n = next.lines.length;
+                        if (count + n > lines.length) {
+                            // A large chunked message
+                            lines = Arrays.copyOf(lines, count + n);
+                            frames = Arrays.copyOf(frames, count + n);
+                        }
+                        System.arraycopy(next.lines, 0, lines, count, n);
+                        System.arraycopy(next.frames, 0, frames, count, n);
+                        count += n;
+                        messages++;
+                    } while (count < WRITE_BATCH && (next = queue.poll()) != null);
+                    write(lines, frames, count, messages);
+                    // Don't keep references to the written lines
+                    Arrays.fill(lines, 0, count, null);
+                    Arrays.fill(frames, 0, count, null);
+                }
+            } catch (InterruptedException e) {
+                // Stopped
+            }
+        }
+
+        private void write(byte[][] lines, byte[][] frames, int count, int messages) {
+            if (!client.isConnectionActive()) {
+                dropped.addAndGet(messages);
+                return;
+            }
+            try {
+                if (client.sendEncodedCommands(lines, frames, count)) {
+                    written.addAndGet(messages);
+                }
+            } catch (RuntimeException e) {
+                LOG.error("Relay write failed: {}", e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Chunked framing for chat messages that don't fit in one protocol line: multi-line text and very
+ * large messages. Such a message is split into frames, each sent as the text of an ordinary
+ * msg/privmsg command, so the server does not need to know about it:
+ * <p>
+ * {@code ~chunk <id> <seq> <+|$> <payload>}
+ * <p>
+ * id identifies the message (unique per sender), seq counts frames from 0, "+" means more frames
+ * follow and "$" marks the last one. In the payload, backslash, newline and carriage return are
+ * escaped as \\, \n and \r. Messages that start with the prefix are always chunked, so ordinary text
+ * is never mistaken for a frame.
+ */
+class ChunkFraming {
+
+    static final String PREFIX = "~chunk ";
+
+    // Longest message text sent as one line, unless configured otherwise
+    static final int DEFAULT_MAX_FRAME_LENGTH = 1000;
+
+    /**
+     * @param text         Message text
+     * @param maxFrameText Longest message text that can be sent as one line
+     * @return true if the message must be sent in frames
+     */
+    static boolean needsChunking(String text, int maxFrameText) {
+        return text.length() > maxFrameText || text.startsWith(PREFIX)
+                || text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0;
+    }
+
+    /**
+     * Splits the text from a reader into frames, one frame at a time. Only one frame is kept in
+     * memory, so the text can be much larger than the heap.
+     */
+    static class Encoder {
+        private final Reader text;
+        private final int id;
+        private final int maxPayload;
+        private int seq = 0;
+        // One character read ahead, to know whether the current frame is the last one. -2: not read yet
+        private int next = -2;
+
+        /**
+         * @param text       Message text
+         * @param id         Message id, unique for this sender
+         * @param maxPayload Maximum length of the escaped payload in one frame (at least 4)
+         */
+        Encoder(Reader text, int id, int maxPayload) {
+            this.text = text;
+            this.id = id;
+            this.maxPayload = Math.max(4, maxPayload);
+        }
+
+        /**
+         * @return The next frame (message text for a msg command), or null when all frames are done
+         * @throws IOException When reading the text fails
+         */
+        String nextFrame() throws IOException {
+            if (next == -2) {
+                next = text.read();
+            } else if (next == -1) {
+                return null;
+            }
+            StringBuilder payload = new StringBuilder(maxPayload + 2);
+            // Leave room for an escaped character and the low half of a surrogate pair
+            while (next != -1 && payload.length() < maxPayload - 2) {
+                char c = (char) next;
+                appendEscaped(payload, c);
+                next = text.read();
+                if (Character.isHighSurrogate(c) && next != -1) {
+                    // Never split a surrogate pair between two frames
+                    payload.append((char) next);
+                    next = text.read();
+                }
+            }
+            boolean last = next == -1;
+            return PREFIX + id + " " + (seq++) + " " + (last ? "$ " : "+ ") + payload;
+        }
+    }
+
+    private static void appendEscaped(StringBuilder sb, char c) {
+        switch (c) {
+            case '\\':
+                sb.append("\\\\");
+                break;
+            case '\n':
+                sb.append("\\n");
+                break;
+            case '\r':
+                sb.append("\\r");
+                break;
+            default:
+                sb.append(c);
+        }
+    }
+
+    private static void appendUnescaped(StringBuilder sb, String payload) {
+        for (int i = 0; i < payload.length(); i++) {
+            char c = payload.charAt(i);
+            if (c == '\\' && i + 1 < payload.length()) {
+                char e = payload.charAt(++i);
+                sb.append(e == 'n' ? '\n' : e == 'r' ? '\r' : e);
+            } else {
+                sb.append(c);
+            }
+        }
+    }
+
+    /**
+     * Joins incoming frames into complete messages. Frames are unescaped and appended as they
+     * arrive. A message with a missing frame is discarded. All unfinished messages together may hold
+     * at most a given number of characters: when a frame would go over it, the messages that got a
+     * frame least recently are discarded to make room, and a message that alone is over it is
+     * discarded itself. The same is done when too many messages are unfinished: their last frames may
+     * never come, for example when the sender disconnected.
+     * Used by the thread that reads from the socket, and cleared on connect.
+     */
+    static class Reassembler {
+        // Maximum number of messages being reassembled at the same time
+        private static final int MAX_PARTIAL_MESSAGES = 64;
+
+        private final int maxTotalLength;
+        // In access order: the first one got a frame least recently
+        private final Map<String, Partial> partials = new LinkedHashMap<>(16, 0.75f, true);
+        // Characters held by all the unfinished messages
+        private long totalLength = 0;
+        private long discarded = 0;
+
+        /**
+         * @param maxTotalLength Most characters held by all unfinished messages together, which is
+         *                       also the longest message that will be reassembled
+         */
+        Reassembler(int maxTotalLength) {
+            this.maxTotalLength = maxTotalLength;
+        }
+
+        /**
+         * Process one frame
+         *
+         * @param priv   When true, the frame came in a private message
+         * @param sender Username of the sender
+         * @param frame  Message text, starting with PREFIX
+         * @return The complete message text when this was its last frame, null otherwise
+         */
+        synchronized String accept(boolean priv, String sender, String frame) {
+            String[] parts = frame.substring(PREFIX.length()).split(" ", 4);
+            if (parts.length < 3) {
+                discarded++;
+                return null;
+            }
+            String key = (priv ? "p " : "m ") + sender + " " + parts[0];
+            int seq;
+            try {
+                seq = Integer.parseInt(parts[1]);
+            } catch (NumberFormatException e) {
+                discarded++;
+                return null;
+            }
+            boolean last = "$".equals(parts[2]);
+            String payload = parts.length > 3 ? parts[3] : "";
+
+            Partial partial = partials.get(key);
+            if (seq == 0) {
+                if (partial != null) {
+                    // The previous message with this id never finished
+                    remove(key);
+                    discarded++;
+                    partial = null;
+                }
+                if (!last && partials.size() >= MAX_PARTIAL_MESSAGES) {
+                    // Make room: the least recently active message is the most likely to be dead
+                    evictEldest(key);
+                }
+                partial = new Partial();
+                partials.put(key, partial);
+            } else if (partial == null || partial.nextSeq != seq) {
+                // A frame is missing, the message can't be completed. The rest of its frames are ignored
+                if (partial != null) {
+                    remove(key);
+                    discarded++;
+                }
+                return null;
+            }
+            int before = partial.text.length();
+            appendUnescaped(partial.text, payload);
+            partial.nextSeq++;
+            totalLength += partial.text.length() - before;
+            if (partial.text.length() > maxTotalLength) {
+                remove(key);
+                discarded++;
+                return null;
+            }
+            while (totalLength > maxTotalLength) {
+                evictEldest(key);
+            }
+            if (last) {
+                remove(key);
+                return partial.text.toString();
+            }
+            return null;
+        }
+
+        /**
+         * Discard the unfinished message that got a frame least recently, other than the given one
+         */
+        private void evictEldest(String keep) {
+            Iterator<Map.Entry<String, Partial>> eldest = partials.entrySet().iterator();
+            while (eldest.hasNext()) {
+                Map.Entry<String, Partial> e = eldest.next();
+                if (!e.getKey().equals(keep)) {
+                    totalLength -= e.getValue().text.length();
+                    eldest.remove();
+                    discarded++;
+                    return;
+                }
+            }
+        }
+
+        private void remove(String key) {
+            Partial partial = partials.remove(key);
+            if (partial != null) {
+                totalLength -= partial.text.length();
+            }
+        }
+
+        /**
+         * Forget all unfinished messages, for a new connection: their remaining frames will not come
+         */
+        synchronized void clear() {
+            discarded += partials.size();
+            partials.clear();
+            totalLength = 0;
+        }
+
+        /**
+         * @return Number of messages discarded because of missing frames or size limits
+         */
+        synchronized long getDiscardedCount() {
+            return discarded;
+        }
+    }
+
+    /**
+     * A message being reassembled
+     */
+    private static class Partial {
+        final StringBuilder text = new StringBuilder();
+        int nextSeq = 0;
+    }
+}
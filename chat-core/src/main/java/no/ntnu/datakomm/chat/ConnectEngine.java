@@ -0,0 +1,386 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opens TCP connections to the chat server. Compared to new Socket(host, port) it:
+ * <ul>
+ * <li>gives up after a configurable connect timeout, instead of the operating system's (minutes)</li>
+ * <li>caches resolved addresses for a limited time, so reconnects don't wait for DNS</li>
+ * <li>races the resolved addresses "happy eyeballs" style (RFC 8305): IPv6 and IPv4 addresses are
+ * tried alternately, a new attempt starts when the previous one fails or has not connected within a
+ * short delay, and the first connection wins</li>
+ * <li>sets the socket options explicitly</li>
+ * <li>measures how long connecting takes</li>
+ * </ul>
+ * One engine can be shared by many clients, which then share the address cache and the metrics.
+ */
+public class ConnectEngine {
+
+    /**
+     * Resolves a host name to its addresses
+     */
+    interface Resolver {
+        InetAddress[] resolve(String host) throws UnknownHostException;
+    }
+
+    // Threads running the connection attempts, shared by all engines
+    private static final ExecutorService ATTEMPTS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "ConnectEngine-attempt");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Resolver resolver;
+    private final Map<String, CachedAddresses> addressCache = new ConcurrentHashMap<>();
+
+    private int connectTimeoutMillis = 10000;
+    private long dnsTtlMillis = 30000;
+    private int attemptDelayMillis = 250;
+    private boolean tcpNoDelay = true;
+    private boolean keepAlive = true;
+    private int sendBufferSize = 0;
+    private int receiveBufferSize = 0;
+
+    private final AtomicLong connectCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong attemptCount = new AtomicLong();
+    private final AtomicLong dnsHits = new AtomicLong();
+    private final AtomicLong dnsMisses = new AtomicLong();
+    private final AtomicLong totalConnectNanos = new AtomicLong();
+    private final AtomicLong maxConnectNanos = new AtomicLong();
+    private volatile long lastConnectNanos = 0;
+    private volatile InetAddress lastAddress = null;
+
+    public ConnectEngine() {
+        this(InetAddress::getAllByName);
+    }
+
+    /**
+     * @param resolver Used instead of the system resolver (for tests)
+     */
+    ConnectEngine(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /**
+     * @param millis Maximum time for connecting once the host is resolved, in milliseconds (default 10 s)
+     */
+    public void setConnectTimeout(int millis) {
+        connectTimeoutMillis = millis;
+    }
+
+    /**
+     * @param millis How long resolved addresses are reused, in milliseconds (default 30 s). 0 disables
+     *               the cache.
+     */
+    public void setDnsTtl(long millis) {
+        dnsTtlMillis = millis;
+    }
+
+    /**
+     * @param millis How long to wait for one address before also trying the next (default 250 ms)
+     */
+    public void setAttemptDelay(int millis) {
+        attemptDelayMillis = millis;
+    }
+
+    /**
+     * @param noDelay When true (default), small commands are sent at once instead of being delayed
+     *                by Nagle's algorithm
+     */
+    public void setTcpNoDelay(boolean noDelay) {
+        tcpNoDelay = noDelay;
+    }
+
+    /**
+     * @param keepAlive When true (default), the operating system probes idle connections
+     */
+    public void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    /**
+     * @param sendBytes    Socket send buffer size, 0 for the system default
+     * @param receiveBytes Socket receive buffer size, 0 for the system default
+     */
+    public void setBufferSizes(int sendBytes, int receiveBytes) {
+        sendBufferSize = sendBytes;
+        receiveBufferSize = receiveBytes;
+    }
+
+    /**
+     * Forget all cached addresses
+     */
+    public void clearDnsCache() {
+        addressCache.clear();
+    }
+
+    /**
+     * Connect to a server
+     *
+     * @param host host name or IP address of the server
+     * @param port TCP port of the server
+     * @return The connected socket
+     * @throws IOException When the host can't be resolved, or no address could be connected to
+     *                     within the timeout
+     */
+    public Socket connect(String host, int port) throws IOException {
+        long start = System.nanoTime();
+        try {
+            InetAddress[] addresses = resolve(host);
+            Socket socket = race(interleave(addresses), port, start + TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis));
+            long nanos = System.nanoTime() - start;
+            lastConnectNanos = nanos;
+            lastAddress = socket.getInetAddress();
+            totalConnectNanos.addAndGet(nanos);
+            maxConnectNanos.accumulateAndGet(nanos, Math::max);
+            connectCount.incrementAndGet();
+            return socket;
+        } catch (IOException e) {
+            failureCount.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Resolve a host name, using the cache when the entry is fresh
+     */
+    private InetAddress[] resolve(String host) throws UnknownHostException {
+        long now = System.currentTimeMillis();
+        CachedAddresses cached = addressCache.get(host);
+        if (cached != null && cached.expires > now) {
+            dnsHits.incrementAndGet();
+            return cached.addresses;
+        }
+        dnsMisses.incrementAndGet();
+        InetAddress[] addresses = resolver.resolve(host);
+        if (addresses.length == 0) {
+            throw new UnknownHostException(host);
+        }
+        if (dnsTtlMillis > 0) {
+            addressCache.put(host, new CachedAddresses(addresses, now + dnsTtlMillis));
+        }
+        return addresses;
+    }
+
+    /**
+     * Order the addresses so that the address families alternate, starting with the family of the
+     * first address (the one the resolver prefers)
+     */
+    static List<InetAddress> interleave(InetAddress[] addresses) {
+        LinkedList<InetAddress> preferred = new LinkedList<>();
+        LinkedList<InetAddress> other = new LinkedList<>();
+        boolean firstIsV6 = addresses.length > 0 && addresses[0] instanceof Inet6Address;
+        for (InetAddress a : addresses) {
+            if ((a instanceof Inet6Address) == firstIsV6) {
+                preferred.add(a);
+            } else {
+                other.add(a);
+            }
+        }
+        List<InetAddress> result = new ArrayList<>(addresses.length);
+        while (!preferred.isEmpty() || !other.isEmpty()) {
+            if (!preferred.isEmpty()) {
+                result.add(preferred.removeFirst());
+            }
+            if (!other.isEmpty()) {
+                result.add(other.removeFirst());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Connect to the addresses in order, starting the next attempt when the previous one fails or
+     * the attempt delay has passed. The first socket to connect is returned, all others are closed.
+     */
+    private Socket race(List<InetAddress> addresses, int port, long deadline) throws IOException {
+        ExecutorCompletionService<Socket> done = new ExecutorCompletionService<>(ATTEMPTS);
+        List<Socket> sockets = new ArrayList<>();
+        List<Future<Socket>> futures = new ArrayList<>();
+        IOException lastError = null;
+        int next = 0;
+        int running = 0;
+        Socket winner = null;
+        try {
+            while (winner == null && (running > 0 || next < addresses.size())) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                if (running == 0) {
+                    futures.add(startAttempt(done, sockets, addresses.get(next++), port, remaining));
+                    running++;
+                    continue;
+                }
+                long wait = next < addresses.size()
+                        ? Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(attemptDelayMillis)) : remaining;
+                Future<Socket> finished = done.poll(wait, TimeUnit.NANOSECONDS);
+                if (finished == null) {
+                    // The running attempts are slow, start the next address in parallel
+                    if (next < addresses.size() && deadline - System.nanoTime() > 0) {
+                        futures.add(startAttempt(done, sockets, addresses.get(next++), port, deadline - System.nanoTime()));
+                        running++;
+                    }
+                    continue;
+                }
+                running--;
+                try {
+                    winner = finished.get();
+                } catch (ExecutionException e) {
+                    lastError = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            lastError = new IOException("Interrupted while connecting");
+        } finally {
+            // Closing a socket aborts its connection attempt
+            synchronized (sockets) {
+                for (Socket s : sockets) {
+                    if (s != winner) {
+                        closeQuietly(s);
+                    }
+                }
+            }
+            for (Future<Socket> f : futures) {
+                f.cancel(false);
+            }
+        }
+        if (winner != null) {
+            return winner;
+        }
+        if (lastError != null && running == 0 && next >= addresses.size()) {
+            throw lastError;
+        }
+        throw new SocketTimeoutException("Connect timed out after " + connectTimeoutMillis + " ms");
+    }
+
+    private Future<Socket> startAttempt(ExecutorCompletionService<Socket> done, List<Socket> sockets,
+                                        InetAddress address, int port, long timeoutNanos) throws IOException {
+        Socket socket = new Socket();
+        socket.setTcpNoDelay(tcpNoDelay);
+        socket.setKeepAlive(keepAlive);
+        if (sendBufferSize > 0) {
+            socket.setSendBufferSize(sendBufferSize);
+        }
+        if (receiveBufferSize > 0) {
+            // Must be set before connecting to take effect for large windows
+            socket.setReceiveBufferSize(receiveBufferSize);
+        }
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+        attemptCount.incrementAndGet();
+        int timeout = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(timeoutNanos));
+        return done.submit(() -> {
+            socket.connect(new InetSocketAddress(address, port), timeout);
+            return socket;
+        });
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    /**
+     * @return Number of successful connects
+     */
+    public long getConnectCount() {
+        return connectCount.get();
+    }
+
+    /**
+     * @return Number of connects that failed (no address could be reached, or DNS failed)
+     */
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    /**
+     * @return Number of connection attempts to single addresses, including the ones that lost the race
+     */
+    public long getAttemptCount() {
+        return attemptCount.get();
+    }
+
+    /**
+     * @return Number of connects that used a cached address
+     */
+    public long getDnsHits() {
+        return dnsHits.get();
+    }
+
+    /**
+     * @return Number of connects that had to resolve the host name
+     */
+    public long getDnsMisses() {
+        return dnsMisses.get();
+    }
+
+    /**
+     * @return Time of the last successful connect (resolving and TCP handshake), in nanoseconds
+     */
+    public long getLastConnectNanos() {
+        return lastConnectNanos;
+    }
+
+    /**
+     * @return Average time of the successful connects, in nanoseconds, 0 if there are none
+     */
+    public long getAverageConnectNanos() {
+        long count = connectCount.get();
+        return count == 0 ? 0 : totalConnectNanos.get() / count;
+    }
+
+    /**
+     * @return Longest time of a successful connect, in nanoseconds
+     */
+    public long getMaxConnectNanos() {
+        return maxConnectNanos.get();
+    }
+
+    /**
+     * @return The address the last successful connect went to, or null
+     */
+    public InetAddress getLastAddress() {
+        return lastAddress;
+    }
+
+    /**
+     * Resolved addresses and when they expire
+     */
+    private static class CachedAddresses {
+        final InetAddress[] addresses;
+        final long expires;
+
+        CachedAddresses(InetAddress[] addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * The dispatch table of the subscriptions of one TCPClient. Subscribers are indexed by event type,
+ * and chat message subscribers also by sender, so an event is only given to the subscribers that
+ * want it: with hundreds of subscribers for different senders, a message costs one hash lookup and
+ * the calls to its own subscribers, not a call to every subscriber.
+ * <p>
+ * The table is copied on every change and replaced as a whole, so delivering (on the listen thread)
+ * takes no lock. Subscriptions change rarely compared to events.
+ */
+class EventDispatcher {
+
+    private static final Subscriber[] NONE = new Subscriber[0];
+
+    /**
+     * One subscription
+     */
+    static class Subscriber {
+        final ChatEvent<?> event;
+        // Only for messages: the sender, or null for all; true/false for private/public, or null for both
+        final String sender;
+        final Boolean priv;
+        final Consumer<Object> handler;
+
+        @SuppressWarnings("unchecked")
+        Subscriber(ChatEvent<?> event, String sender, Boolean priv, Consumer<?> handler) {
+            this.event = event;
+            this.sender = sender;
+            this.priv = priv;
+            this.handler = (Consumer<Object>) handler;
+        }
+    }
+
+    /**
+     * The subscribers, never changed after it is published
+     */
+    private static class Table {
+        final Subscriber[][] byEvent;
+        // Message subscribers for one sender, and for all senders
+        final Map<String, Subscriber[]> messagesBySender;
+        final Subscriber[] messagesFromAll;
+
+        Table(Subscriber[][] byEvent, Map<String, Subscriber[]> messagesBySender, Subscriber[] messagesFromAll) {
+            this.byEvent = byEvent;
+            this.messagesBySender = messagesBySender;
+            this.messagesFromAll = messagesFromAll;
+        }
+    }
+
+    private volatile Table table;
+
+    EventDispatcher() {
+        Subscriber[][] byEvent = new Subscriber[ChatEvent.COUNT][];
+        Arrays.fill(byEvent, NONE);
+        table = new Table(byEvent, Collections.emptyMap(), NONE);
+    }
+
+    /**
+     * Add a subscriber
+     *
+     * @param s The subscriber
+     */
+    synchronized void add(Subscriber s) {
+        Table t = table;
+        if (s.event == ChatEvent.MESSAGE) {
+            if (s.sender == null) {
+                table = new Table(t.byEvent, t.messagesBySender, append(t.messagesFromAll, s));
+            } else {
+                Map<String, Subscriber[]> bySender = new HashMap<>(t.messagesBySender);
+                bySender.put(s.sender, append(bySender.getOrDefault(s.sender, NONE), s));
+                table = new Table(t.byEvent, bySender, t.messagesFromAll);
+            }
+        } else {
+            Subscriber[][] byEvent = t.byEvent.clone();
+            byEvent[s.event.index] = append(byEvent[s.event.index], s);
+            table = new Table(byEvent, t.messagesBySender, t.messagesFromAll);
+        }
+    }
+
+    /**
+     * Remove a subscriber. Does nothing if it was removed before.
+     *
+     * @param s The subscriber
+     */
+    synchronized void remove(Subscriber s) {
+        Table t = table;
+        if (s.event == ChatEvent.MESSAGE) {
+            if (s.sender == null) {
+                table = new Table(t.byEvent, t.messagesBySender, without(t.messagesFromAll, s));
+            } else if (t.messagesBySender.containsKey(s.sender)) {
+                Map<String, Subscriber[]> bySender = new HashMap<>(t.messagesBySender);
+                Subscriber[] rest = without(bySender.get(s.sender), s);
+                if (rest.length == 0) {
+                    bySender.remove(s.sender);
+                } else {
+                    bySender.put(s.sender, rest);
+                }
+                table = new Table(t.byEvent, bySender, t.messagesFromAll);
+            }
+        } else {
+            Subscriber[][] byEvent = t.byEvent.clone();
+            byEvent[s.event.index] = without(byEvent[s.event.index], s);
+            table = new Table(byEvent, t.messagesBySender, t.messagesFromAll);
+        }
+    }
+
+    /**
+     * Give an event to its subscribers
+     *
+     * @param event The event type. Not MESSAGE, use dispatchMessage() for messages.
+     * @param data  The event data
+     * @param <T>   Type of the event data
+     */
+    <T> void dispatch(ChatEvent<T> event, T data) {
+        for (Subscriber s : table.byEvent[event.index]) {
+            s.handler.accept(data);
+        }
+    }
+
+    /**
+     * Give a chat message to the subscribers for its sender and for all senders, that want its kind
+     * (public or private)
+     *
+     * @param message The message
+     */
+    void dispatchMessage(TextMessage message) {
+        Table t = table;
+        Subscriber[] forSender = t.messagesBySender.get(message.getSender());
+        if (forSender != null) {
+            deliver(forSender, message);
+        }
+        deliver(t.messagesFromAll, message);
+    }
+
+    private static void deliver(Subscriber[] subscribers, TextMessage message) {
+        for (Subscriber s : subscribers) {
+            if (s.priv == null || s.priv == message.isPrivate()) {
+                s.handler.accept(message);
+            }
+        }
+    }
+
+    /**
+     * @return Number of subscribers
+     */
+    int size() {
+        Table t = table;
+        int n = t.messagesFromAll.length;
+        for (Subscriber[] s : t.byEvent) {
+            n += s.length;
+        }
+        for (Subscriber[] s : t.messagesBySender.values()) {
+            n += s.length;
+        }
+        return n;
+    }
+
+    private static Subscriber[] append(Subscriber[] list, Subscriber s) {
+        Subscriber[] longer = Arrays.copyOf(list, list.length + 1);
+        longer[list.length] = s;
+        return longer;
+    }
+
+    private static Subscriber[] without(Subscriber[] list, Subscriber s) {
+        for (int i = 0; i < list.length; i++) {
+            if (list[i] == s) {
+                Subscriber[] shorter = new Subscriber[list.length - 1];
+                System.arraycopy(list, 0, shorter, 0, i);
+                System.arraycopy(list, i + 1, shorter, i, list.length - i - 1);
+                return shorter;
+            }
+        }
+        return list;
+    }
+}
@@ -0,0 +1,200 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A chat session that survives the loss of a server. It connects through a ServerPool, and when the
+ * connection is lost (not closed by us), it reconnects to the next best healthy server and logs in
+ * again with the same username. The listeners of the session only see onDisconnect() when no
+ * server can be reached.
+ * <p>
+ * Register listeners on the session, not on its TCPClient, and log in with login() so the username
+ * is known for failover.
+ */
+public class FailoverSession implements ChatListener {
+
+    private static final ChatLog LOG = ChatLog.get();
+
+    private final ServerPool pool;
+    private final TCPClient client;
+    private final boolean leastLoaded;
+    private final List<ChatListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile ServerPool.Endpoint endpoint = null;
+    private volatile String username = null;
+    private volatile boolean closing = false;
+    private volatile long failoverCount = 0;
+
+    /**
+     * Use ServerPool.newSession() to create a session
+     */
+    FailoverSession(ServerPool pool, TCPClient client, boolean leastLoaded) {
+        this.pool = pool;
+        this.client = client;
+        this.leastLoaded = leastLoaded;
+    }
+
+    /**
+     * Connect to the best server in the pool and start listening
+     *
+     * @return true if a server accepted the connection
+     */
+    public boolean open() {
+        closing = false;
+        client.addListener(this);
+        return connectTo(null);
+    }
+
+    /**
+     * Log in, and log in again with the same name after a failover
+     *
+     * @param username Username to use
+     */
+    public void login(String username) {
+        this.username = username;
+        client.tryLogin(username);
+    }
+
+    /**
+     * Close the connection and stop listening to the client. There is no failover after this.
+     */
+    public void close() {
+        closing = true;
+        client.disconnect();
+        client.removeListener(this);
+        client.setMessageRttObserver(null);
+    }
+
+    /**
+     * @return The client of this session, for sending commands
+     */
+    public TCPClient getClient() {
+        return client;
+    }
+
+    /**
+     * @return The server the session is connected to, or null
+     */
+    public ServerPool.Endpoint getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return How many times the session has moved to another server
+     */
+    public long getFailoverCount() {
+        return failoverCount;
+    }
+
+    /**
+     * Register a listener for the events of this session
+     *
+     * @param listener The listener
+     */
+    public void addListener(ChatListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Unregister a listener
+     *
+     * @param listener The listener
+     */
+    public void removeListener(ChatListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Connect to the best server, avoiding the one that just failed if possible
+     */
+    private synchronized boolean connectTo(ServerPool.Endpoint avoid) {
+        ServerPool.Endpoint e = pool.connect(client, leastLoaded, avoid);
+        if (e == null) {
+            endpoint = null;
+            return false;
+        }
+        endpoint = e;
+        client.setMessageRttObserver(e::rtt);
+        client.startListenThread();
+        return true;
+    }
+
+    @Override
+    public void onDisconnect() {
+        ServerPool.Endpoint lost = endpoint;
+        endpoint = null;
+        if (lost != null) {
+            lost.sessionClosed();
+        }
+        if (closing || lost == null) {
+            for (ChatListener l : listeners) {
+                l.onDisconnect();
+            }
+            return;
+        }
+        lost.failed();
+        // Called on the listen thread, inside TCPClient.disconnect(): reconnect from another thread
+        Thread t = new Thread(() -> failover(lost), "FailoverSession-reconnect");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void failover(ServerPool.Endpoint lost) {
+        if (connectTo(lost)) {
+            failoverCount++;
+            LOG.info("Failed over from {} to {}", lost, endpoint);
+            String name = username;
+            if (name != null) {
+                client.tryLogin(name);
+            }
+        } else {
+            for (ChatListener l : listeners) {
+                l.onDisconnect();
+            }
+        }
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+        for (ChatListener l : listeners) {
+            l.onLoginResult(success, errMsg);
+        }
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        for (ChatListener l : listeners) {
+            l.onMessageReceived(message);
+        }
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+        for (ChatListener l : listeners) {
+            l.onMessageError(errMsg);
+        }
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+        for (ChatListener l : listeners) {
+            l.onUserList(usernames);
+        }
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+        for (ChatListener l : listeners) {
+            l.onSupportedCommands(commands);
+        }
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+        for (ChatListener l : listeners) {
+            l.onCommandError(errMsg);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Detects dead connections. When nothing has been received for the idle time, a cheap "help"
+ * command is sent as a probe. If nothing at all is received within the reply timeout after that, the
+ * connection is declared dead and closed, which notifies the listeners with onDisconnect(). This
+ * catches half-open connections, where the reader would otherwise wait forever.
+ * <p>
+ * The checks run on a shared TimerWheel, so there is no extra thread per connection. Sending the
+ * probe and closing the connection may block, so they are handed to shared worker pools.
+ */
+class Heartbeat {
+
+    // Most threads writing probes at the same time
+    private static final int WORKER_THREADS = 8;
+
+    // Runs the probe writes, which must not block the timer wheel. A write on a stalled connection
+    // blocks until the connection is closed, so the number of threads is bounded.
+    static final ExecutorService WORKERS = newWorkers();
+
+    // Runs the disconnects. Not on WORKERS: closing the connection is what ends the writes stuck there
+    private static final ExecutorService CLOSERS = Executors.newCachedThreadPool(r -> {
+        Thread t = new Thread(r, "Heartbeat-closer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private static ExecutorService newWorkers() {
+        ThreadPoolExecutor workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "Heartbeat-worker");
+            t.setDaemon(true);
+            return t;
+        });
+        workers.allowCoreThreadTimeOut(true);
+        return workers;
+    }
+
+    /**
+     * What the heartbeat does with the connection
+     */
+    interface Connection {
+        /**
+         * Send the probe command. The connection keeps the reply from the listeners.
+         */
+        void sendProbe();
+
+        /**
+         * Close the connection, it is dead
+         *
+         * @param reason Why the connection is considered dead
+         */
+        void dead(String reason);
+    }
+
+    private final Connection connection;
+    private final TimerWheel wheel;
+    private final long idleNanos;
+    private final long replyTimeoutNanos;
+
+    private volatile long lastReceived;
+    // When the unanswered probe was sent, 0 when no probe is outstanding
+    private volatile long probeSent = 0;
+    private final AtomicLong probeCount = new AtomicLong();
+    private volatile boolean stopped = false;
+    private TimerWheel.Timeout timeout;
+
+    /**
+     * @param connection   The connection to watch
+     * @param wheel        Timer wheel for the checks
+     * @param idleMillis   Send a probe when nothing has been received for this long
+     * @param replyMillis  Declare the connection dead if nothing is received this long after the probe
+     */
+    Heartbeat(Connection connection, TimerWheel wheel, long idleMillis, long replyMillis) {
+        this.connection = connection;
+        this.wheel = wheel;
+        this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+        this.replyTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(replyMillis);
+    }
+
+    /**
+     * Start watching. Counts as having received something right now.
+     */
+    void start() {
+        lastReceived = System.nanoTime();
+        schedule(idleNanos);
+    }
+
+    /**
+     * Stop watching; no more probes are sent
+     */
+    synchronized void stop() {
+        stopped = true;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Called for every line received: the connection is alive
+     */
+    void lineReceived() {
+        lastReceived = System.nanoTime();
+        if (probeSent != 0) {
+            probeSent = 0;
+        }
+    }
+
+    /**
+     * @return Number of probes sent
+     */
+    long getProbeCount() {
+        return probeCount.get();
+    }
+
+    private synchronized void schedule(long delayNanos) {
+        if (!stopped) {
+            timeout = wheel.schedule(this::check, delayNanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * Runs on the timer wheel thread
+     */
+    private void check() {
+        long now = System.nanoTime();
+        long sent = probeSent;
+        if (sent != 0) {
+            long waited = now - sent;
+            if (waited >= replyTimeoutNanos) {
+                stop();
+                String reason = "No reply from server in " + TimeUnit.NANOSECONDS.toMillis(now - lastReceived)
+                        + " ms, connection is dead";
+                CLOSERS.execute(() -> connection.dead(reason));
+            } else {
+                schedule(replyTimeoutNanos - waited);
+            }
+            return;
+        }
+        long idle = now - lastReceived;
+        if (idle >= idleNanos) {
+            probeSent = now;
+            probeCount.incrementAndGet();
+            WORKERS.execute(connection::sendProbe);
+            schedule(replyTimeoutNanos);
+        } else {
+            schedule(idleNanos - idle);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+/**
+ * Finds many keywords in a text in one pass (the Aho-Corasick algorithm), ignoring case. The cost
+ * of a search depends on the length of the text and the number of matches, not on the number of
+ * keywords, so thousands of keywords cost about the same as one.
+ * <p>
+ * Only whole words match: a keyword must not have a letter or digit right before or after it, so
+ * "cat" matches "the cat!" but not "category". A keyword can contain spaces (a phrase). The matcher
+ * is immutable and can be used from many threads.
+ */
+class KeywordMatcher {
+
+    /**
+     * Receives the matches of a search
+     */
+    interface MatchHandler {
+        /**
+         * @param keyword Index of the keyword in the list given to the constructor
+         * @param start   Index of the first character of the match in the text
+         * @param end     Index after the last character of the match
+         * @return true to continue the search, false to stop it
+         */
+        boolean match(int keyword, int start, int end);
+    }
+
+    // The trie: for state s, its transitions are labels[s][i] -> targets[s][i], labels sorted
+    private char[][] labels;
+    private int[][] targets;
+    private int[] failure;
+    // Keyword ending in the state (-1 if none), and the next state on the failure chain that ends one
+    private int[] keywordAt;
+    private int[] outputLink;
+    private final int[] keywordLength;
+    private int stateCount = 1;
+
+    /**
+     * Compile the keywords. Empty keywords are ignored.
+     *
+     * @param keywords The keywords
+     */
+    KeywordMatcher(List<String> keywords) {
+        keywordLength = new int[keywords.size()];
+        int capacity = 1;
+        for (String k : keywords) {
+            capacity += k.length();
+        }
+        labels = new char[capacity][];
+        targets = new int[capacity][];
+        keywordAt = new int[capacity];
+        Arrays.fill(keywordAt, -1);
+        labels[0] = new char[0];
+        targets[0] = new int[0];
+        for (int i = 0; i < keywords.size(); i++) {
+            String k = keywords.get(i);
+            keywordLength[i] = k.length();
+            if (!k.isEmpty()) {
+                insert(k, i);
+            }
+        }
+        buildLinks();
+    }
+
+    private void insert(String keyword, int index) {
+        int state = 0;
+        for (int i = 0; i < keyword.length(); i++) {
+            char c = fold(keyword.charAt(i));
+            int next = next(state, c);
+            if (next < 0) {
+                next = stateCount++;
+                labels[next] = new char[0];
+                targets[next] = new int[0];
+                addTransition(state, c, next);
+            }
+            state = next;
+        }
+        if (keywordAt[state] < 0) {
+            keywordAt[state] = index;
+        }
+    }
+
+    private void addTransition(int state, char c, int target) {
+        char[] l = labels[state];
+        int[] t = targets[state];
+        int pos = -Arrays.binarySearch(l, c) - 1;
+        char[] newLabels = new char[l.length + 1];
+        int[] newTargets = new int[t.length + 1];
+        System.arraycopy(l, 0, newLabels, 0, pos);
+        System.arraycopy(t, 0, newTargets, 0, pos);
+        newLabels[pos] = c;
+        newTargets[pos] = target;
+        System.arraycopy(l, pos, newLabels, pos + 1, l.length - pos);
+        System.arraycopy(t, pos, newTargets, pos + 1, t.length - pos);
+        labels[state] = newLabels;
+        targets[state] = newTargets;
+    }
+
+    /**
+     * @return The state reached from the given state with the character, or -1 if there is no edge
+     */
+    private int next(int state, char c) {
+        int i = Arrays.binarySearch(labels[state], c);
+        return i >= 0 ? targets[state][i] : -1;
+    }
+
+    /**
+     * Compute the failure link of each state (the longest proper suffix that is also in the trie)
+     * and the output links, breadth first
+     */
+    private void buildLinks() {
+        failure = new int[stateCount];
+        outputLink = new int[stateCount];
+        Arrays.fill(outputLink, -1);
+        Queue<Integer> queue = new ArrayDeque<>();
+        for (int child : targets[0]) {
+            queue.add(child);
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            for (int i = 0; i < labels[state].length; i++) {
+                char c = labels[state][i];
+                int child = targets[state][i];
+                int f = failure[state];
+                while (f != 0 && next(f, c) < 0) {
+                    f = failure[f];
+                }
+                int fc = next(f, c);
+                failure[child] = fc >= 0 && fc != child ? fc : 0;
+                int fs = failure[child];
+                outputLink[child] = keywordAt[fs] >= 0 ? fs : outputLink[fs];
+                queue.add(child);
+            }
+        }
+        // Trim the arrays to the states actually used
+        labels = Arrays.copyOf(labels, stateCount);
+        targets = Arrays.copyOf(targets, stateCount);
+        keywordAt = Arrays.copyOf(keywordAt, stateCount);
+    }
+
+    /**
+     * Find the keywords in a text
+     *
+     * @param text    The text to search
+     * @param handler Gets each whole-word match, in the order the matches end
+     */
+    void search(String text, MatchHandler handler) {
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = fold(text.charAt(i));
+            int next;
+            while ((next = next(state, c)) < 0 && state != 0) {
+                state = failure[state];
+            }
+            state = next < 0 ? 0 : next;
+            for (int s = keywordAt[state] >= 0 ? state : outputLink[state]; s >= 0; s = outputLink[s]) {
+                int k = keywordAt[s];
+                int start = i + 1 - keywordLength[k];
+                if (isWordBoundary(text, start, i + 1) && !handler.match(k, start, i + 1)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if there are no keywords
+     */
+    boolean isEmpty() {
+        return stateCount == 1;
+    }
+
+    private static boolean isWordBoundary(String text, int start, int end) {
+        return (start == 0 || !Character.isLetterOrDigit(text.charAt(start - 1)))
+                && (end == text.length() || !Character.isLetterOrDigit(text.charAt(end)));
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+}
@@ -0,0 +1,258 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Round-trip times over the last minute (by default), as a histogram. The window is split in
+ * slices; when a slice gets too old, it is cleared and reused, so the histogram rolls forward
+ * without keeping every sample.
+ * <p>
+ * The buckets grow exponentially, four per doubling of the time, from 1 microsecond up to about
+ * 55 seconds (longer times go in the last bucket), so percentiles are accurate to within 19%. Min,
+ * max, mean and the last sample are exact. Jitter is the smoothed difference between consecutive samples (as in RTP, RFC 3550).
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKETS = 4 * 26;
+    private static final int SLICES = 6;
+
+    /**
+     * The samples of one slice of the window
+     */
+    private static class Slice {
+        // Number of the slice since the start of nanoTime, MIN_VALUE when unused
+        long id = Long.MIN_VALUE;
+        final long[] counts = new long[BUCKETS];
+        long count;
+        long sumNanos;
+        long minNanos;
+        long maxNanos;
+
+        void reset(long newId) {
+            id = newId;
+            Arrays.fill(counts, 0);
+            count = 0;
+            sumNanos = 0;
+            minNanos = Long.MAX_VALUE;
+            maxNanos = 0;
+        }
+    }
+
+    private final long sliceNanos;
+    private final Slice[] slices = new Slice[SLICES];
+    private long lastNanos = -1;
+    private double jitterNanos = 0;
+    private long total = 0;
+
+    /**
+     * A histogram over the last minute
+     */
+    public LatencyHistogram() {
+        this(60000);
+    }
+
+    /**
+     * @param windowMillis Length of the rolling window
+     */
+    public LatencyHistogram(long windowMillis) {
+        sliceNanos = Math.max(1, TimeUnit.MILLISECONDS.toNanos(windowMillis) / SLICES);
+        for (int i = 0; i < SLICES; i++) {
+            slices[i] = new Slice();
+        }
+    }
+
+    /**
+     * Add a sample
+     *
+     * @param rttNanos Round-trip time in nanoseconds
+     */
+    public void record(long rttNanos) {
+        record(rttNanos, System.nanoTime());
+    }
+
+    synchronized void record(long rttNanos, long nowNanos) {
+        long id = Math.floorDiv(nowNanos, sliceNanos);
+        Slice s = slices[(int) Math.floorMod(id, (long) SLICES)];
+        if (s.id != id) {
+            s.reset(id);
+        }
+        s.counts[bucket(rttNanos)]++;
+        s.count++;
+        s.sumNanos += rttNanos;
+        s.minNanos = Math.min(s.minNanos, rttNanos);
+        s.maxNanos = Math.max(s.maxNanos, rttNanos);
+        if (lastNanos >= 0) {
+            jitterNanos += (Math.abs(rttNanos - lastNanos) - jitterNanos) / 16;
+        }
+        lastNanos = rttNanos;
+        total++;
+    }
+
+    /**
+     * Forget all samples
+     */
+    public synchronized void reset() {
+        for (Slice s : slices) {
+            s.id = Long.MIN_VALUE;
+        }
+        lastNanos = -1;
+        jitterNanos = 0;
+        total = 0;
+    }
+
+    /**
+     * @return The bucket of a round-trip time: 4 * log2 of the time in microseconds
+     */
+    static int bucket(long rttNanos) {
+        double micros = rttNanos / 1000.0;
+        if (micros <= 1) {
+            return 0;
+        }
+        int b = (int) Math.ceil(4 * Math.log(micros) / Math.log(2));
+        return Math.min(BUCKETS - 1, b);
+    }
+
+    /**
+     * @param bucket A bucket
+     * @return Largest round-trip time in the bucket, in milliseconds
+     */
+    public static double getBucketUpperMillis(int bucket) {
+        return Math.pow(2, bucket / 4.0) / 1000;
+    }
+
+    /**
+     * @return Number of buckets
+     */
+    public static int getBucketCount() {
+        return BUCKETS;
+    }
+
+    /**
+     * Run an action on the slices inside the window
+     */
+    private void forEachLive(long nowNanos, Consumer<Slice> action) {
+        long current = Math.floorDiv(nowNanos, sliceNanos);
+        for (Slice s : slices) {
+            if (s.id > current - SLICES && s.id <= current) {
+                action.accept(s);
+            }
+        }
+    }
+
+    /**
+     * @return Samples per bucket in the window (see getBucketUpperMillis())
+     */
+    public long[] getCounts() {
+        return getCounts(System.nanoTime());
+    }
+
+    synchronized long[] getCounts(long nowNanos) {
+        long[] counts = new long[BUCKETS];
+        forEachLive(nowNanos, s -> {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += s.counts[i];
+            }
+        });
+        return counts;
+    }
+
+    /**
+     * @return Number of samples in the window
+     */
+    public long getCount() {
+        return getCount(System.nanoTime());
+    }
+
+    synchronized long getCount(long nowNanos) {
+        long[] count = {0};
+        forEachLive(nowNanos, s -> count[0] += s.count);
+        return count[0];
+    }
+
+    /**
+     * @return Number of samples since the start (or the last reset), also those outside the window
+     */
+    public synchronized long getTotalCount() {
+        return total;
+    }
+
+    /**
+     * @param percentile Between 0 and 100, for example 50 for the median or 99
+     * @return Round-trip time in milliseconds that this share of the samples in the window is below,
+     * 0 when there are no samples
+     */
+    public double getPercentileMillis(double percentile) {
+        return getPercentileMillis(percentile, System.nanoTime());
+    }
+
+    synchronized double getPercentileMillis(double percentile, long nowNanos) {
+        long[] counts = getCounts(nowNanos);
+        long n = 0;
+        for (long c : counts) {
+            n += c;
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                // Never more than the largest sample
+                return Math.min(getBucketUpperMillis(i), getMaxMillis(nowNanos));
+            }
+        }
+        return getMaxMillis(nowNanos);
+    }
+
+    /**
+     * @return Mean round-trip time in the window, in milliseconds, 0 when there are no samples
+     */
+    public synchronized double getMeanMillis() {
+        long[] sum = {0, 0};
+        forEachLive(System.nanoTime(), s -> {
+            sum[0] += s.sumNanos;
+            sum[1] += s.count;
+        });
+        return sum[1] == 0 ? 0 : sum[0] / 1e6 / sum[1];
+    }
+
+    /**
+     * @return Smallest round-trip time in the window, in milliseconds, 0 when there are no samples
+     */
+    public synchronized double getMinMillis() {
+        long[] min = {Long.MAX_VALUE};
+        forEachLive(System.nanoTime(), s -> min[0] = Math.min(min[0], s.minNanos));
+        return min[0] == Long.MAX_VALUE ? 0 : min[0] / 1e6;
+    }
+
+    /**
+     * @return Largest round-trip time in the window, in milliseconds, 0 when there are no samples
+     */
+    public double getMaxMillis() {
+        return getMaxMillis(System.nanoTime());
+    }
+
+    synchronized double getMaxMillis(long nowNanos) {
+        long[] max = {0};
+        forEachLive(nowNanos, s -> max[0] = Math.max(max[0], s.maxNanos));
+        return max[0] / 1e6;
+    }
+
+    /**
+     * @return The latest round-trip time in milliseconds, or -1 if there is none
+     */
+    public synchronized double getLastMillis() {
+        return lastNanos < 0 ? -1 : lastNanos / 1e6;
+    }
+
+    /**
+     * @return Smoothed variation between consecutive round-trip times, in milliseconds
+     */
+    public synchronized double getJitterMillis() {
+        return jitterNanos / 1e6;
+    }
+}
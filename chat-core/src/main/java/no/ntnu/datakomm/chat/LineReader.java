@@ -0,0 +1,95 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads UTF-8 text lines from an input stream. Unlike BufferedReader, the bytes that have been read
+ * ahead can be taken back with {@link #detach()}. This is needed when the connection changes the
+ * encoding of the stream in the middle (for example, switches to compression): the bytes after the
+ * switching command must be decoded by the new stream, not as text.
+ */
+public class LineReader {
+
+    private InputStream input;
+    private final byte[] buffer = new byte[8192];
+    private int position = 0;
+    private int limit = 0;
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+
+    /**
+     * @param input The stream to read from
+     */
+    public LineReader(InputStream input) {
+        this.input = input;
+    }
+
+    /**
+     * Read one line of text. The line terminator ("\n" or "\r\n") is not included.
+     *
+     * @return The line, or null when the end of the stream is reached
+     * @throws IOException When reading from the stream fails
+     */
+    public String readLine() throws IOException {
+        line.reset();
+        while (true) {
+            if (position == limit) {
+                int n = input.read(buffer, 0, buffer.length);
+                if (n < 0) {
+                    // End of stream. Return the last unterminated line, if any
+                    return line.size() > 0 ? toText(line.toByteArray(), line.size()) : null;
+                }
+                position = 0;
+                limit = n;
+            }
+            int start = position;
+            while (position < limit && buffer[position] != '\n') {
+                position++;
+            }
+            line.write(buffer, start, position - start);
+            if (position < limit) {
+                // Found the line terminator, skip it
+                position++;
+                return toText(line.toByteArray(), line.size());
+            }
+        }
+    }
+
+    /**
+     * Take the bytes that have been read ahead, but not returned as lines yet. After this call the
+     * reader has no buffered data, and the caller is responsible for the returned stream.
+     *
+     * @return A stream with the buffered bytes followed by the rest of the underlying stream
+     */
+    public InputStream detach() {
+        InputStream rest = input;
+        if (position < limit) {
+            byte[] ahead = new byte[limit - position];
+            System.arraycopy(buffer, position, ahead, 0, ahead.length);
+            rest = new SequenceInputStream(new ByteArrayInputStream(ahead), input);
+        }
+        position = 0;
+        limit = 0;
+        return rest;
+    }
+
+    /**
+     * Continue reading from another stream. Normally used together with {@link #detach()}.
+     *
+     * @param input The new stream to read from
+     */
+    public void setInput(InputStream input) {
+        this.input = input;
+    }
+
+    private static String toText(byte[] bytes, int length) {
+        if (length > 0 && bytes[length - 1] == '\r') {
+            length--;
+        }
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,315 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per-client rules for incoming chat messages: block senders, mute messages with keywords and
+ * highlight keywords (for example mentions of our own username). Set it on a TCPClient with
+ * setMessageFilter(); blocked and muted messages never reach the listeners, and highlighted ones
+ * carry the highlighted ranges in TextMessage.getHighlights().
+ * <p>
+ * The keywords are compiled into one KeywordMatcher, and the blocked senders into a hash set, so a
+ * message is checked in one pass over its text however many rules there are. Compiling happens on
+ * a background thread when the rules change; messages are checked with the previous rules until the
+ * new ones are ready. Keywords match whole words, ignoring case.
+ */
+public class MessageFilter {
+
+    /**
+     * What happens to a message
+     */
+    public enum Verdict {
+        /**
+         * Deliver it (possibly with highlights)
+         */
+        PASS,
+        /**
+         * The sender is blocked
+         */
+        BLOCKED,
+        /**
+         * The text contains a muted keyword
+         */
+        MUTED
+    }
+
+    /**
+     * A set of rules. Rules files have one rule per line: "block &lt;username&gt;", "mute &lt;keyword&gt;"
+     * or "highlight &lt;keyword&gt;". Empty lines and lines starting with # are ignored.
+     */
+    public static class Rules {
+        private final Set<String> blockedSenders = new HashSet<>();
+        private final Set<String> mutedKeywords = new HashSet<>();
+        private final Set<String> highlightKeywords = new HashSet<>();
+
+        public Rules block(String username) {
+            blockedSenders.add(username.toLowerCase(Locale.ROOT));
+            return this;
+        }
+
+        public Rules mute(String keyword) {
+            mutedKeywords.add(keyword);
+            return this;
+        }
+
+        public Rules highlight(String keyword) {
+            highlightKeywords.add(keyword);
+            return this;
+        }
+
+        public Rules blockAll(Collection<String> usernames) {
+            usernames.forEach(this::block);
+            return this;
+        }
+
+        public Rules muteAll(Collection<String> keywords) {
+            mutedKeywords.addAll(keywords);
+            return this;
+        }
+
+        public Rules highlightAll(Collection<String> keywords) {
+            highlightKeywords.addAll(keywords);
+            return this;
+        }
+
+        /**
+         * Read rules from a rules file
+         *
+         * @param reader The rules file
+         * @return The rules
+         * @throws IOException When reading fails, or a line is not a rule
+         */
+        public static Rules parse(Reader reader) throws IOException {
+            Rules rules = new Rules();
+            BufferedReader lines = new BufferedReader(reader);
+            String line;
+            int number = 0;
+            while ((line = lines.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] parts = line.split("\\s+", 2);
+                if (parts.length < 2) {
+                    throw new IOException("Rule without argument on line " + number);
+                }
+                switch (parts[0]) {
+                    case "block":
+                        rules.block(parts[1]);
+                        break;
+                    case "mute":
+                        rules.mute(parts[1]);
+                        break;
+                    case "highlight":
+                        rules.highlight(parts[1]);
+                        break;
+                    default:
+                        throw new IOException("Unknown rule \"" + parts[0] + "\" on line " + number);
+                }
+            }
+            return rules;
+        }
+    }
+
+    /**
+     * Rules compiled for fast checking. Immutable.
+     */
+    private static class Compiled {
+        final Set<String> blockedSenders;
+        final KeywordMatcher matcher;
+        // For each keyword of the matcher: true if muted, false if highlighted
+        final boolean[] muted;
+
+        Compiled(Rules rules) {
+            blockedSenders = new HashSet<>(rules.blockedSenders);
+            // A keyword that is both muted and highlighted is muted
+            Map<String, Boolean> keywords = new LinkedHashMap<>();
+            for (String k : rules.highlightKeywords) {
+                keywords.put(k.toLowerCase(Locale.ROOT), false);
+            }
+            for (String k : rules.mutedKeywords) {
+                keywords.put(k.toLowerCase(Locale.ROOT), true);
+            }
+            List<String> list = new ArrayList<>(keywords.keySet());
+            matcher = new KeywordMatcher(list);
+            muted = new boolean[list.size()];
+            for (int i = 0; i < list.size(); i++) {
+                muted[i] = keywords.get(list.get(i));
+            }
+        }
+    }
+
+    // Compiles the rules off the caller's thread, one rule set at a time
+    private static final ExecutorService COMPILER = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "MessageFilter-compile");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private volatile Compiled compiled = new Compiled(new Rules());
+
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder blocked = new LongAdder();
+    private final LongAdder mutedCount = new LongAdder();
+    private final LongAdder highlighted = new LongAdder();
+    private final LongAdder keywordMatches = new LongAdder();
+
+    /**
+     * Replace the rules. They are compiled in the background; until that is done, messages are
+     * checked with the previous rules.
+     *
+     * @param rules The new rules
+     * @return Completes when the new rules are in use
+     */
+    public Future<?> setRules(Rules rules) {
+        return COMPILER.submit(() -> {
+            compiled = new Compiled(rules);
+        });
+    }
+
+    /**
+     * The result of checking one message
+     */
+    public static class Result {
+        private final Verdict verdict;
+        private final int[] highlights;
+
+        Result(Verdict verdict, int[] highlights) {
+            this.verdict = verdict;
+            this.highlights = highlights;
+        }
+
+        public Verdict getVerdict() {
+            return verdict;
+        }
+
+        /**
+         * @return Highlighted ranges as pairs of start and end index, in order
+         */
+        public int[] getHighlights() {
+            return highlights;
+        }
+    }
+
+    private static final int[] NO_HIGHLIGHTS = new int[0];
+    private static final Result BLOCKED_RESULT = new Result(Verdict.BLOCKED, NO_HIGHLIGHTS);
+    private static final Result MUTED_RESULT = new Result(Verdict.MUTED, NO_HIGHLIGHTS);
+    private static final Result PASS_RESULT = new Result(Verdict.PASS, NO_HIGHLIGHTS);
+
+    /**
+     * Check one message against the rules
+     *
+     * @param sender Username of the sender
+     * @param text   Message text
+     * @return What to do with the message, and the highlighted ranges
+     */
+    public Result check(String sender, String text) {
+        Compiled c = compiled;
+        checked.increment();
+        if (!c.blockedSenders.isEmpty() && c.blockedSenders.contains(sender.toLowerCase(Locale.ROOT))) {
+            blocked.increment();
+            return BLOCKED_RESULT;
+        }
+        if (c.matcher.isEmpty()) {
+            return PASS_RESULT;
+        }
+        List<int[]> ranges = new ArrayList<>(2);
+        boolean[] mute = {false};
+        c.matcher.search(text, (keyword, start, end) -> {
+            keywordMatches.increment();
+            if (c.muted[keyword]) {
+                mute[0] = true;
+                return false;
+            }
+            ranges.add(new int[]{start, end});
+            return true;
+        });
+        if (mute[0]) {
+            mutedCount.increment();
+            return MUTED_RESULT;
+        }
+        if (ranges.isEmpty()) {
+            return PASS_RESULT;
+        }
+        highlighted.increment();
+        return new Result(Verdict.PASS, merge(ranges));
+    }
+
+    /**
+     * Sort the ranges by start and join overlapping ones
+     */
+    private static int[] merge(List<int[]> ranges) {
+        ranges.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(b[1], a[1]));
+        int[] result = new int[ranges.size() * 2];
+        int n = 0;
+        for (int[] r : ranges) {
+            if (n > 0 && r[0] <= result[n - 1]) {
+                result[n - 1] = Math.max(result[n - 1], r[1]);
+            } else {
+                result[n++] = r[0];
+                result[n++] = r[1];
+            }
+        }
+        return n == result.length ? result : Arrays.copyOf(result, n);
+    }
+
+    /**
+     * @return Number of messages checked
+     */
+    public long getCheckedCount() {
+        return checked.sum();
+    }
+
+    /**
+     * @return Number of messages dropped because the sender is blocked
+     */
+    public long getBlockedCount() {
+        return blocked.sum();
+    }
+
+    /**
+     * @return Number of messages dropped because of a muted keyword
+     */
+    public long getMutedCount() {
+        return mutedCount.sum();
+    }
+
+    /**
+     * @return Number of messages delivered with highlights
+     */
+    public long getHighlightedCount() {
+        return highlighted.sum();
+    }
+
+    /**
+     * @return Number of keyword matches found
+     */
+    public long getKeywordMatchCount() {
+        return keywordMatches.sum();
+    }
+
+    /**
+     * @return Share of the checked messages that matched a rule (blocked, muted or highlighted),
+     * between 0 and 1
+     */
+    public double getMatchRate() {
+        long n = checked.sum();
+        return n == 0 ? 0 : (double) (blocked.sum() + mutedCount.sum() + highlighted.sum()) / n;
+    }
+}
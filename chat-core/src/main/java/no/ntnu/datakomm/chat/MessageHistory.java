@@ -0,0 +1,364 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Stores received chat messages on disk, so they can be analysed later (see ChatAnalytics) or paged
+ * back in when the user scrolls up in the chat window. Add it as a listener to a TCPClient to store
+ * every message the client receives; messages we send can be stored with appendSent().
+ * <p>
+ * The history is a directory of segment files (history-000001.seg, history-000002.seg, ...). A new
+ * segment is started when the current one holds the configured number of messages, so the segments
+ * can be read independently and in parallel, and each segment is one page for readPage(). Segment
+ * format: the magic "CHATHIS1", then one record per message: receive time (long, milliseconds since
+ * the epoch), flags (byte: 1 = private, 2 = sent by us), then sender and text, each as UTF-8 length
+ * (varint) and UTF-8 bytes.
+ */
+public class MessageHistory implements ChatListener {
+
+    private static final ChatLog LOG = ChatLog.get();
+
+    static final String MAGIC = "CHATHIS1";
+    private static final String SEGMENT_PREFIX = "history-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int FLAG_PRIVATE = 1;
+    private static final int FLAG_SENT = 2;
+
+    /**
+     * Receives the messages read from a segment
+     */
+    public interface Visitor {
+        /**
+         * @param time    When the message was received, in milliseconds since the epoch
+         * @param message The message
+         */
+        void visit(long time, TextMessage message);
+    }
+
+    /**
+     * One stored message, as read by readPage()
+     */
+    public static class Record {
+        private final long time;
+        private final TextMessage message;
+        private final boolean sent;
+
+        Record(long time, TextMessage message, boolean sent) {
+            this.time = time;
+            this.message = message;
+            this.sent = sent;
+        }
+
+        /**
+         * @return When the message was received or sent, in milliseconds since the epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public TextMessage getMessage() {
+            return message;
+        }
+
+        /**
+         * @return true if we sent the message, false if we received it
+         */
+        public boolean isSent() {
+            return sent;
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(long time, TextMessage message, boolean sent);
+    }
+
+    private final File directory;
+    private final int messagesPerSegment;
+    private int segmentNumber;
+    private DataOutputStream out = null;
+    private int messagesInSegment = 0;
+    private boolean failed = false;
+
+    /**
+     * Open a history directory for appending. New messages always go to a new segment, existing
+     * segments are never changed.
+     *
+     * @param directory          Directory for the segment files, created if missing
+     * @param messagesPerSegment Number of messages in one segment file
+     * @throws IOException When the directory can't be created
+     */
+    public MessageHistory(File directory, int messagesPerSegment) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create history directory " + directory);
+        }
+        this.directory = directory;
+        this.messagesPerSegment = Math.max(1, messagesPerSegment);
+        List<File> existing = listSegments(directory);
+        segmentNumber = existing.isEmpty() ? 0 : segmentNumber(existing.get(existing.size() - 1));
+    }
+
+    /**
+     * Store one received message. A write error stops the history, but never disturbs the connection.
+     *
+     * @param time    When the message was received, in milliseconds since the epoch
+     * @param message The message
+     * @return The page (segment number) the message was stored in, or 0 if the history has stopped
+     */
+    public int append(long time, TextMessage message) {
+        return append(time, message, false);
+    }
+
+    /**
+     * Store one message that we sent
+     *
+     * @param time    When the message was sent, in milliseconds since the epoch
+     * @param message The message
+     * @return The page (segment number) the message was stored in, or 0 if the history has stopped
+     */
+    public int appendSent(long time, TextMessage message) {
+        return append(time, message, true);
+    }
+
+    private synchronized int append(long time, TextMessage message, boolean sent) {
+        if (failed) {
+            return 0;
+        }
+        try {
+            if (out == null || messagesInSegment >= messagesPerSegment) {
+                startSegment();
+            }
+            out.writeLong(time);
+            out.writeByte((message.isPrivate() ? FLAG_PRIVATE : 0) | (sent ? FLAG_SENT : 0));
+            writeString(message.getSender());
+            writeString(message.getText());
+            messagesInSegment++;
+            return segmentNumber;
+        } catch (IOException e) {
+            failed = true;
+            LOG.warn("History error, history stopped: {}", e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * @return The newest page (the segment being written), or 0 if there are no pages
+     */
+    public synchronized int getNewestPage() {
+        return segmentNumber;
+    }
+
+    /**
+     * @return The oldest page still on disk, or 0 if there are no pages
+     */
+    public int getOldestPage() {
+        List<File> segments = listSegments(directory);
+        return segments.isEmpty() ? 0 : segmentNumber(segments.get(0));
+    }
+
+    /**
+     * Read the messages of one page (segment). Reading the page being written includes all
+     * messages stored so far. Meant to be called on a background thread: it reads the disk.
+     *
+     * @param page Page number, from getOldestPage() to getNewestPage()
+     * @return The messages in the order they were stored; empty if the page does not exist
+     * @throws IOException When the page can't be read
+     */
+    public List<Record> readPage(int page) throws IOException {
+        synchronized (this) {
+            if (page == segmentNumber) {
+                flush();
+            }
+        }
+        List<Record> records = new ArrayList<>();
+        File file = segmentFile(directory, page);
+        if (file.isFile()) {
+            readRecords(file, (time, message, sent) -> records.add(new Record(time, message, sent)));
+        }
+        return records;
+    }
+
+    /**
+     * Write buffered messages to the current segment file
+     */
+    public synchronized void flush() {
+        if (out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                LOG.warn("History flush error: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Write buffered messages and close the current segment
+     */
+    public synchronized void close() {
+        if (out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                LOG.warn("History close error: {}", e.getMessage());
+            }
+            out = null;
+        }
+    }
+
+    /**
+     * @return The directory holding the segment files
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void onMessageReceived(TextMessage message) {
+        append(System.currentTimeMillis(), message);
+    }
+
+    @Override
+    public void onDisconnect() {
+        flush();
+    }
+
+    @Override
+    public void onLoginResult(boolean success, String errMsg) {
+    }
+
+    @Override
+    public void onMessageError(String errMsg) {
+    }
+
+    @Override
+    public void onUserList(String[] usernames) {
+    }
+
+    @Override
+    public void onSupportedCommands(String[] commands) {
+    }
+
+    @Override
+    public void onCommandError(String errMsg) {
+    }
+
+    private void startSegment() throws IOException {
+        close();
+        segmentNumber++;
+        File file = segmentFile(directory, segmentNumber);
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 65536));
+        out.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+        messagesInSegment = 0;
+    }
+
+    private void writeString(String s) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        TrafficCapture.writeVarLong(out, bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @param directory History directory
+     * @return The segment files, oldest first
+     */
+    public static List<File> listSegments(File directory) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files, (a, b) -> Integer.compare(segmentNumber(a), segmentNumber(b)));
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    private static File segmentFile(File directory, int number) {
+        return new File(directory, String.format("%s%06d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+    private static int segmentNumber(File segment) {
+        String name = segment.getName();
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Read all messages in a segment, one at a time, so the segment is never held in memory. A
+     * record cut short at the end of the file (the segment is still being written) is ignored.
+     *
+     * @param segment Segment file
+     * @param visitor Receives each message (received and sent ones), in the order they were stored
+     * @return Number of messages read
+     * @throws IOException When the file is not a history segment or can't be read
+     */
+    public static long readSegment(File segment, Visitor visitor) throws IOException {
+        return readRecords(segment, (time, message, sent) -> visitor.visit(time, message));
+    }
+
+    private static long readRecords(File segment, RecordVisitor visitor) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment), 65536))) {
+            byte[] magic = new byte[MAGIC.length()];
+            in.readFully(magic);
+            if (!MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) {
+                throw new IOException("Not a chat history segment: " + segment);
+            }
+            byte[] buffer = new byte[256];
+            long count = 0;
+            while (true) {
+                long time;
+                try {
+                    time = in.readLong();
+                } catch (EOFException e) {
+                    return count;
+                }
+                try {
+                    int flags = in.readByte();
+                    int senderLength = readLength(in);
+                    if (buffer.length < senderLength) {
+                        buffer = new byte[senderLength];
+                    }
+                    in.readFully(buffer, 0, senderLength);
+                    String sender = new String(buffer, 0, senderLength, StandardCharsets.UTF_8);
+                    int textLength = readLength(in);
+                    if (buffer.length < textLength) {
+                        buffer = new byte[textLength];
+                    }
+                    in.readFully(buffer, 0, textLength);
+                    String text = new String(buffer, 0, textLength, StandardCharsets.UTF_8);
+                    visitor.visit(time, new TextMessage(sender, (flags & FLAG_PRIVATE) != 0, text),
+                            (flags & FLAG_SENT) != 0);
+                    count++;
+                } catch (EOFException e) {
+                    return count;
+                }
+            }
+        }
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (value > Integer.MAX_VALUE) {
+                    break;
+                }
+                return (int) value;
+            }
+        }
+        throw new IOException("Broken history record");
+    }
+}
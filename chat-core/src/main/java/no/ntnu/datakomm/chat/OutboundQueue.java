@@ -0,0 +1,223 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Bounded queue of outgoing commands, written to the server by a background thread no faster than
+ * a token bucket allows. This keeps a busy publisher at a rate the server accepts, instead of
+ * flooding it and getting errors back.
+ */
+public class OutboundQueue {
+
+    /**
+     * What to do with a new command when the queue is full
+     */
+    public enum OverflowPolicy {
+        /** Wait until there is room in the queue, or the queue is stopped */
+        BLOCK,
+        /** Refuse the new command, the send method returns false */
+        FAIL_FAST,
+        /**
+         * Discard the oldest queued message to make room for the new one. Frames of chunked
+         * messages are never discarded, and wait for room as with BLOCK.
+         */
+        DROP_OLDEST
+    }
+
+    // How long BLOCK waits at a time before checking that the queue is still running
+    private static final long BLOCK_POLL_MILLIS = 100;
+
+    private final BlockingQueue<Entry> queue;
+    private final OverflowPolicy policy;
+    private final TokenBucket limiter;
+    // Writes one command to the socket, returns false on error
+    private final Predicate<String> writer;
+    private Thread writerThread;
+    // False while disconnected: commands are refused then, instead of being sent after a reconnect
+    private volatile boolean running = false;
+
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * @param capacity Maximum number of queued commands
+     * @param policy   What to do when the queue is full
+     * @param limiter  Rate limiter, one token per command
+     * @param writer   Writes one command to the socket, returns false on error
+     */
+    OutboundQueue(int capacity, OverflowPolicy policy, TokenBucket limiter, Predicate<String> writer) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.limiter = limiter;
+        this.writer = writer;
+    }
+
+    /**
+     * Start the background writer thread
+     */
+    synchronized void start() {
+        // A sender that was waiting for room when the queue stopped may have put a command in since
+        queue.clear();
+        running = true;
+        if (writerThread == null) {
+            writerThread = new Thread(this::writeCommands, "OutboundQueue-writer");
+            writerThread.setDaemon(true);
+            writerThread.start();
+        }
+    }
+
+    /**
+     * Stop the background writer thread. Commands still in the queue are discarded.
+     */
+    synchronized void stop() {
+        running = false;
+        if (writerThread != null) {
+            writerThread.interrupt();
+            writerThread = null;
+        }
+        queue.clear();
+    }
+
+    /**
+     * Add a command to the queue, according to the overflow policy. Refused while the queue is
+     * stopped.
+     *
+     * @param cmd   The command, including the newline
+     * @param whole False for a frame of a chunked message, which must not be discarded alone
+     * @return true if the command was queued, false if it was refused
+     */
+    boolean offer(String cmd, boolean whole) {
+        if (!running) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        Entry entry = new Entry(cmd, whole);
+        switch (policy) {
+            case DROP_OLDEST:
+                while (!queue.offer(entry)) {
+                    if (!whole || !dropOldestWhole()) {
+                        // Nothing may be discarded: wait for room instead
+                        return put(entry);
+                    }
+                }
+                return true;
+            case BLOCK:
+                return put(entry);
+            default:
+                if (queue.offer(entry)) {
+                    return true;
+                }
+                rejected.incrementAndGet();
+                return false;
+        }
+    }
+
+    /**
+     * Wait until there is room for the entry, or the queue is stopped
+     */
+    private boolean put(Entry entry) {
+        try {
+            while (running) {
+                if (queue.offer(entry, BLOCK_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Discard the oldest queued command that is a whole message
+     *
+     * @return false if there is none
+     */
+    private boolean dropOldestWhole() {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            if (it.next().whole) {
+                it.remove();
+                dropped.incrementAndGet();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writer thread: take commands from the queue and write them, waiting for a token before each
+     */
+    private void writeCommands() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                String cmd = queue.take().cmd;
+                if (limiter.acquire()) {
+                    throttled.incrementAndGet();
+                }
+                if (writer.test(cmd)) {
+                    sent.incrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * @return Number of commands waiting in the queue
+     */
+    public int getDepth() {
+        return queue.size();
+    }
+
+    /**
+     * @return Number of commands written to the socket
+     */
+    public long getSentCount() {
+        return sent.get();
+    }
+
+    /**
+     * @return Number of commands that had to wait for the rate limiter
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * @return Number of queued commands discarded by the DROP_OLDEST policy
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return Number of commands refused: by the FAIL_FAST policy, while stopped, or when stopped
+     * while waiting for room
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * A queued command
+     */
+    private static class Entry {
+        final String cmd;
+        final boolean whole;
+
+        Entry(String cmd, boolean whole) {
+            this.cmd = cmd;
+            this.whole = whole;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Who is online on one chat server, shared by all the sessions to that server in this process.
+ * Instead of every TCPClient polling "users", the service sends one poll through one of the attached
+ * clients, and gives the reply to all of them (see TCPClient.setPresenceService()). So N sessions
+ * cost the server one poll instead of N, and they all see the same user list.
+ * <p>
+ * The poll is adaptive: while the list keeps changing, the service polls every minMillis; each poll
+ * without a change doubles the interval, up to maxMillis. A session asking for the list
+ * (refreshUserList()) gets the current snapshot at once, and starts a poll if the snapshot is older
+ * than minMillis.
+ * <p>
+ * Successive lists are compared, and the listeners get a join or leave event for each user that
+ * appeared or disappeared. The first list is the starting point: it gives no events. The events and
+ * the lists for the sessions are dispatched on one thread per service, in the order the lists were
+ * taken, so a leave never comes before its join and all sessions end with the same list.
+ */
+public class PresenceService {
+
+    static final long DEFAULT_MIN_MILLIS = 1000;
+    static final long DEFAULT_MAX_MILLIS = 16000;
+
+    private static final Map<String, PresenceService> SERVERS = new ConcurrentHashMap<>();
+
+    /**
+     * Gets the users that join and leave. The methods are called on the dispatch thread of the
+     * service, one event at a time, without holding the lock of the service.
+     */
+    public interface Listener {
+        /**
+         * @param username A user that came online
+         */
+        void onJoin(String username);
+
+        /**
+         * @param username A user that went offline
+         */
+        void onLeave(String username);
+    }
+
+    private final TimerWheel wheel;
+    private final long minNanos;
+    private final long maxNanos;
+    private final List<TCPClient> clients = new CopyOnWriteArrayList<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // The latest list, in the order of the server, and the same names as a set for the comparison
+    private String[] users = null;
+    private Set<String> userSet = new HashSet<>();
+    private long version = 0;
+    private long updatedNanos = 0;
+    private long lastPollNanos = 0;
+    private long intervalNanos;
+    private TimerWheel.Timeout nextPoll = null;
+    private int nextClient = 0;
+    // Runs the listeners and delivers the lists to the clients, one task at a time and in order. Tasks
+    // are submitted under the lock, in the order the lists were taken.
+    private final ExecutorService dispatcher = newDispatcher();
+
+    private final LongAdder polls = new LongAdder();
+    private final LongAdder joins = new LongAdder();
+    private final LongAdder leaves = new LongAdder();
+
+    /**
+     * @param wheel     Timer wheel for the polls
+     * @param minMillis Shortest time between polls
+     * @param maxMillis Longest time between polls, when nothing changes
+     */
+    public PresenceService(TimerWheel wheel, long minMillis, long maxMillis) {
+        this.wheel = wheel;
+        this.minNanos = TimeUnit.MILLISECONDS.toNanos(minMillis);
+        this.maxNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(minMillis, maxMillis));
+        this.intervalNanos = minNanos;
+    }
+
+    private static ExecutorService newDispatcher() {
+        ThreadPoolExecutor dispatcher = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "PresenceService-dispatch");
+            t.setDaemon(true);
+            return t;
+        });
+        dispatcher.allowCoreThreadTimeOut(true);
+        return dispatcher;
+    }
+
+    /**
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @return The service shared by all sessions in this process to this server, polling between
+     * one and 16 seconds on the shared timer wheel
+     */
+    public static PresenceService forServer(String host, int port) {
+        return SERVERS.computeIfAbsent(host.toLowerCase(Locale.ROOT) + ":" + port,
+                key -> new PresenceService(TimerWheel.shared(), DEFAULT_MIN_MILLIS, DEFAULT_MAX_MILLIS));
+    }
+
+    /**
+     * Serve a client. The polls start with the first client.
+     *
+     * @param client A client connected (or about to connect) to the server of this service
+     */
+    synchronized void attach(TCPClient client) {
+        if (!clients.contains(client)) {
+            clients.add(client);
+        }
+        if (nextPoll == null) {
+            schedule(0);
+        }
+    }
+
+    /**
+     * Stop serving a client. The polls stop with the last one.
+     *
+     * @param client An attached client
+     */
+    synchronized void detach(TCPClient client) {
+        clients.remove(client);
+        if (clients.isEmpty() && nextPoll != null) {
+            nextPoll.cancel();
+            nextPoll = null;
+        }
+    }
+
+    /**
+     * A client asks for the user list: give it the current one, and poll now if it is old and no
+     * poll is waiting for its reply
+     *
+     * @param client The client asking
+     */
+    synchronized void refresh(TCPClient client) {
+        long now = System.nanoTime();
+        boolean pollOutstanding = lastPollNanos > updatedNanos && now - lastPollNanos < maxNanos;
+        if (!pollOutstanding && now - Math.max(updatedNanos, lastPollNanos) >= minNanos) {
+            schedule(0);
+        }
+        if (users != null) {
+            // Through the dispatcher, so it can't overtake a newer list on its way to the client
+            String[] snapshot = users.clone();
+            dispatcher.execute(() -> client.deliverUserList(snapshot));
+        }
+    }
+
+    /**
+     * A user list arrived on one of the clients: compare it with the last one, and give it to all
+     * the clients and listeners
+     *
+     * @param list The users, as received
+     */
+    void update(String[] list) {
+        Set<String> newSet = new HashSet<>(Arrays.asList(list));
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        // Compare and store under the lock, dispatch on the dispatcher: a slow listener must not hold
+        // up the polls on the timer wheel, or the listen threads of the clients
+        synchronized (this) {
+            boolean first = users == null;
+            if (!first) {
+                for (String u : list) {
+                    if (!userSet.contains(u)) {
+                        joined.add(u);
+                    }
+                }
+                for (String u : userSet) {
+                    if (!newSet.contains(u)) {
+                        left.add(u);
+                    }
+                }
+            }
+            boolean changed = first || !joined.isEmpty() || !left.isEmpty();
+            users = list.clone();
+            userSet = newSet;
+            updatedNanos = System.nanoTime();
+            if (changed) {
+                version++;
+                intervalNanos = minNanos;
+            } else {
+                intervalNanos = Math.min(maxNanos, intervalNanos * 2);
+            }
+            if (nextPoll != null) {
+                schedule(intervalNanos);
+            }
+            dispatcher.execute(() -> dispatch(list, joined, left));
+        }
+    }
+
+    /**
+     * Runs on the dispatcher: give one list and its changes to the listeners and the clients
+     */
+    private void dispatch(String[] list, List<String> joined, List<String> left) {
+        for (String u : joined) {
+            joins.increment();
+            for (Listener l : listeners) {
+                l.onJoin(u);
+            }
+        }
+        for (String u : left) {
+            leaves.increment();
+            for (Listener l : listeners) {
+                l.onLeave(u);
+            }
+        }
+        for (TCPClient c : clients) {
+            c.deliverUserList(list.clone());
+        }
+    }
+
+    /**
+     * Poll after the delay, instead of at the time planned so far. Must hold the lock.
+     */
+    private void schedule(long delayNanos) {
+        if (nextPoll != null) {
+            nextPoll.cancel();
+        }
+        nextPoll = wheel.schedule(this::poll, delayNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Runs on the timer wheel thread: send "users" through the next connected client, and plan the
+     * next poll in case no reply comes
+     */
+    private synchronized void poll() {
+        if (clients.isEmpty()) {
+            nextPoll = null;
+            return;
+        }
+        TCPClient client = null;
+        for (int i = 0; i < clients.size() && client == null; i++) {
+            TCPClient c = clients.get((nextClient + i) % clients.size());
+            if (c.isConnectionActive()) {
+                client = c;
+                nextClient = (nextClient + i + 1) % clients.size();
+            }
+        }
+        if (client != null) {
+            lastPollNanos = System.nanoTime();
+            polls.increment();
+            // Writing may block, so not on the wheel thread
+            Heartbeat.WORKERS.execute(client::requestUserList);
+        }
+        nextPoll = wheel.schedule(this::poll, client != null ? maxNanos : minNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param listener Gets the users that join and leave
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener A listener added before
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return The latest user list, or an empty list before the first one arrived
+     */
+    public synchronized String[] getUsers() {
+        return users != null ? users.clone() : new String[0];
+    }
+
+    /**
+     * @return Number of times the user list has changed, starting with the first list
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return Current time between polls, in milliseconds
+     */
+    public synchronized long getPollIntervalMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(intervalNanos);
+    }
+
+    /**
+     * @return Number of "users" polls sent to the server
+     */
+    public long getPollCount() {
+        return polls.sum();
+    }
+
+    /**
+     * @return Number of join events so far
+     */
+    public long getJoinCount() {
+        return joins.sum();
+    }
+
+    /**
+     * @return Number of leave events so far
+     */
+    public long getLeaveCount() {
+        return leaves.sum();
+    }
+}
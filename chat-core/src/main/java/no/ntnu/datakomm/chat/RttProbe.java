@@ -0,0 +1,69 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends a cheap probe command at a fixed interval, so the round-trip time of a connection is
+ * measured all the time, also when the user is not chatting. The probe runs on a shared TimerWheel;
+ * the writes are handed to the heartbeat workers, since a write may block. While a probe is
+ * unanswered no new one is sent, so a stalled connection holds at most one worker.
+ */
+class RttProbe {
+
+    private final Runnable sendProbe;
+    private final TimerWheel wheel;
+    private final long intervalNanos;
+    private volatile boolean stopped = false;
+    // A probe was sent and its reply has not arrived yet
+    private volatile boolean outstanding = false;
+    private TimerWheel.Timeout timeout;
+
+    /**
+     * @param sendProbe      Sends the probe command
+     * @param wheel          Timer wheel for the interval
+     * @param intervalMillis Time between probes
+     */
+    RttProbe(Runnable sendProbe, TimerWheel wheel, long intervalMillis) {
+        this.sendProbe = sendProbe;
+        this.wheel = wheel;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    }
+
+    /**
+     * Send the first probe now, and then one per interval
+     */
+    void start() {
+        probe();
+    }
+
+    /**
+     * Stop sending probes
+     */
+    synchronized void stop() {
+        stopped = true;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * The reply to a probe arrived, or it never will (the write failed): the next probe may be sent
+     */
+    void replied() {
+        outstanding = false;
+    }
+
+    /**
+     * Runs on the timer wheel thread
+     */
+    private synchronized void probe() {
+        if (stopped) {
+            return;
+        }
+        if (!outstanding) {
+            outstanding = true;
+            Heartbeat.WORKERS.execute(sendProbe);
+        }
+        timeout = wheel.schedule(this::probe, intervalNanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,303 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A list of chat servers that serve the same chat, with a health score for each. Clients connect
+ * through the pool (usually with a FailoverSession), which picks the best healthy server, and moves
+ * the session to another server when its connection fails.
+ * <p>
+ * The score of a server is based on its connect latency, the round-trip time of chat messages
+ * (msg to msgok) and its error rate (failed connects and dropped connections), each a moving
+ * average. A server that fails is taken out of rotation for a cool-down time, which doubles with
+ * every consecutive failure (up to a minute). When all servers are cooling down, they are still
+ * tried, the one whose cool-down ends first first.
+ */
+public class ServerPool {
+
+    // Weight of a new sample in the moving averages
+    private static final double ALPHA = 0.2;
+    private static final long BASE_COOLDOWN_MILLIS = 2000;
+    private static final long MAX_COOLDOWN_MILLIS = 60000;
+
+    /**
+     * One server and its health
+     */
+    public static class Endpoint {
+        private final String host;
+        private final int port;
+        private double connectMillis = 0;
+        private double rttMillis = 0;
+        private double errorRate = 0;
+        private int consecutiveFailures = 0;
+        private long downUntil = 0;
+        private int activeSessions = 0;
+        private long connects = 0;
+        private long failures = 0;
+
+        Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * @return Moving average of the connect latency, in milliseconds
+         */
+        public synchronized double getConnectMillis() {
+            return connectMillis;
+        }
+
+        /**
+         * @return Moving average of the chat message round-trip time, in milliseconds
+         */
+        public synchronized double getRttMillis() {
+            return rttMillis;
+        }
+
+        /**
+         * @return Moving average of the error rate: 0 when nothing fails, towards 1 when everything does
+         */
+        public synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        /**
+         * @return Number of sessions currently connected to this server through the pool
+         */
+        public synchronized int getActiveSessions() {
+            return activeSessions;
+        }
+
+        public synchronized long getConnectCount() {
+            return connects;
+        }
+
+        public synchronized long getFailureCount() {
+            return failures;
+        }
+
+        /**
+         * @return false while the server is cooling down after a failure
+         */
+        public synchronized boolean isHealthy() {
+            return System.currentTimeMillis() >= downUntil;
+        }
+
+        /**
+         * @return Health score, lower is better: latencies in milliseconds, scaled up by the error rate
+         */
+        public synchronized double getScore() {
+            return (connectMillis + rttMillis) * (1 + 4 * errorRate) + 100 * errorRate;
+        }
+
+        synchronized void connected(long nanos) {
+            double millis = nanos / 1e6;
+            connectMillis = connects == 0 ? millis : connectMillis + ALPHA * (millis - connectMillis);
+            errorRate -= ALPHA * errorRate;
+            consecutiveFailures = 0;
+            downUntil = 0;
+            connects++;
+        }
+
+        synchronized void rtt(long nanos) {
+            double millis = nanos / 1e6;
+            rttMillis = rttMillis == 0 ? millis : rttMillis + ALPHA * (millis - rttMillis);
+        }
+
+        /**
+         * A connect failed, or a connection was lost
+         */
+        synchronized void failed() {
+            errorRate += ALPHA * (1 - errorRate);
+            failures++;
+            long cooldown = Math.min(MAX_COOLDOWN_MILLIS, BASE_COOLDOWN_MILLIS << Math.min(consecutiveFailures, 10));
+            consecutiveFailures++;
+            downUntil = System.currentTimeMillis() + cooldown;
+        }
+
+        synchronized void sessionOpened() {
+            activeSessions++;
+        }
+
+        synchronized void sessionClosed() {
+            if (activeSessions > 0) {
+                activeSessions--;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private final List<Endpoint> endpoints = new CopyOnWriteArrayList<>();
+
+    /**
+     * Create a pool from a list of servers
+     *
+     * @param servers     Servers as "host:port" or "host", separated by commas or spaces
+     * @param defaultPort Port for the servers given without one
+     * @return The pool
+     */
+    public static ServerPool parse(String servers, int defaultPort) {
+        ServerPool pool = new ServerPool();
+        for (String server : servers.split("[,\\s]+")) {
+            if (server.isEmpty()) {
+                continue;
+            }
+            int colon = server.lastIndexOf(':');
+            if (colon > 0 && server.indexOf(':') == colon) {
+                pool.add(server.substring(0, colon), Integer.parseInt(server.substring(colon + 1)));
+            } else {
+                pool.add(server, defaultPort);
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Add a server to the pool
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @return The new endpoint
+     */
+    public Endpoint add(String host, int port) {
+        Endpoint e = new Endpoint(host, port);
+        endpoints.add(e);
+        return e;
+    }
+
+    /**
+     * @return All servers in the pool
+     */
+    public List<Endpoint> getEndpoints() {
+        return Collections.unmodifiableList(endpoints);
+    }
+
+    /**
+     * @return The healthy server with the best score, or null if none is healthy
+     */
+    public Endpoint best() {
+        List<Endpoint> candidates = candidates(false, null);
+        return candidates.isEmpty() || !candidates.get(0).isHealthy() ? null : candidates.get(0);
+    }
+
+    /**
+     * Connect a client to the best server. The servers are tried in order until one accepts.
+     *
+     * @param client      The client to connect
+     * @param leastLoaded When true, prefer the healthy server with the fewest sessions, to spread many
+     *                    sessions over the servers. Otherwise prefer the best score.
+     * @param avoid       A server to try only as a last resort (the one that just failed), or null
+     * @return The server the client is connected to, or null when no server accepted
+     */
+    public Endpoint connect(TCPClient client, boolean leastLoaded, Endpoint avoid) {
+        Set<Endpoint> tried = new HashSet<>();
+        while (true) {
+            Endpoint e = null;
+            synchronized (this) {
+                // Choose and count the session in one step, so sessions connecting at the same time
+                // see each other's load
+                for (Endpoint candidate : candidates(leastLoaded, avoid)) {
+                    if (tried.add(candidate)) {
+                        e = candidate;
+                        e.sessionOpened();
+                        break;
+                    }
+                }
+            }
+            if (e == null) {
+                return null;
+            }
+            long start = System.nanoTime();
+            if (client.connect(e.host, e.port)) {
+                e.connected(System.nanoTime() - start);
+                return e;
+            }
+            e.sessionClosed();
+            e.failed();
+        }
+    }
+
+    /**
+     * Create a session that connects through this pool and fails over to another server when its
+     * connection is lost
+     *
+     * @param client      The client to use for the session
+     * @param leastLoaded When true, the session goes to the least loaded healthy server
+     * @return The session, not opened yet
+     */
+    public FailoverSession newSession(TCPClient client, boolean leastLoaded) {
+        return new FailoverSession(this, client, leastLoaded);
+    }
+
+    /**
+     * Order the servers to try: healthy ones first (by load or score), then the ones cooling down
+     * (soonest available first), and the one to avoid last
+     */
+    private List<Endpoint> candidates(boolean leastLoaded, Endpoint avoid) {
+        // The health changes while we sort, so sort a snapshot of it
+        long now = System.currentTimeMillis();
+        List<Candidate> list = new ArrayList<>();
+        for (Endpoint e : endpoints) {
+            if (e != avoid) {
+                list.add(new Candidate(e, leastLoaded));
+            }
+        }
+        list.sort((a, b) -> {
+            boolean aHealthy = a.downUntil <= now;
+            boolean bHealthy = b.downUntil <= now;
+            if (aHealthy != bHealthy) {
+                return aHealthy ? -1 : 1;
+            }
+            if (!aHealthy) {
+                return Long.compare(a.downUntil, b.downUntil);
+            }
+            int c = Integer.compare(a.load, b.load);
+            return c != 0 ? c : Double.compare(a.score, b.score);
+        });
+        List<Endpoint> result = new ArrayList<>(list.size() + 1);
+        for (Candidate c : list) {
+            result.add(c.endpoint);
+        }
+        if (avoid != null && endpoints.contains(avoid)) {
+            result.add(avoid);
+        }
+        return result;
+    }
+
+    /**
+     * The health of an endpoint at one moment
+     */
+    private static class Candidate {
+        final Endpoint endpoint;
+        final long downUntil;
+        final double score;
+        // Number of sessions, or 0 for all when the load does not matter
+        final int load;
+
+        Candidate(Endpoint e, boolean leastLoaded) {
+            synchronized (e) {
+                endpoint = e;
+                downUntil = e.downUntil;
+                score = e.getScore();
+                load = leastLoaded ? e.activeSessions : 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * A subscription to events of a TCPClient (see TCPClient.subscribe()). Cancel it to stop getting
+ * the events.
+ */
+public final class Subscription {
+
+    private final EventDispatcher dispatcher;
+    private final EventDispatcher.Subscriber subscriber;
+
+    Subscription(EventDispatcher dispatcher, EventDispatcher.Subscriber subscriber) {
+        this.dispatcher = dispatcher;
+        this.subscriber = subscriber;
+    }
+
+    /**
+     * Stop getting events. An event being delivered on the listen thread right now may still arrive.
+     */
+    public void cancel() {
+        dispatcher.remove(subscriber);
+    }
+}
@@ -0,0 +1,1334 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+
+public class TCPClient {
+
+    // Command the client sends to switch the connection to DEFLATE compression, and the server's reply
+    private static final String DEFLATE_CMD = "deflate";
+    static final String DEFLATE_OK = "deflateok";
+    // Most characters held by all chunked messages being reassembled together, about 4 MB
+    private static final int CHUNKED_REASSEMBLY_BUDGET = 2 * 1024 * 1024;
+    // Diagnostics are written in the background, so they never block the socket threads
+    private static final ChatLog LOG = ChatLog.get();
+
+    private LineReader fromServer;
+    private volatile Socket connection;
+    // The thread reading from the server, and the connection it reads from
+    private Thread listenThread;
+    private Socket listenConnection;
+    private InputStream input;
+    private OutputStream output;
+    // Commands can be sent from several threads (GUI, user polling), one write at a time. Control
+    // commands are written before waiting chat messages
+    private final WriteLanes lanes = new WriteLanes();
+    private String lastError = "";
+    private final List<ChatListener> listeners = new LinkedList<>();
+    // Typed subscriptions, indexed by event type and message sender
+    private final EventDispatcher subscriptions = new EventDispatcher();
+    private boolean compressionEnabled = true;
+    private volatile boolean compressed = false;
+    // The zlib streams of a compressed connection. They hold native memory, so they are ended
+    // explicitly when the connection is closed.
+    private Deflater deflater = null;
+    private volatile Inflater inflater = null;
+    // Binary framing (see BinaryFraming): when not null, commands are written as frames, and read as
+    // frames by the listen thread
+    private boolean binaryFramingEnabled = true;
+    private volatile BinaryFraming.Writer frameWriter = null;
+    private volatile BinaryFraming.Reader frameReader = null;
+    // When not null, connections use TLS. Sessions are cached in the context and resumed on reconnect
+    private SSLContext sslContext = null;
+    private long lastHandshakeNanos = 0;
+    private boolean lastSessionResumed = false;
+    // When not null, chat messages go through this rate-limited queue instead of directly to the socket
+    private OutboundQueue outboundQueue = null;
+    // Messages with newlines or longer than this are sent in chunked frames (see ChunkFraming)
+    private int maxFrameLength = ChunkFraming.DEFAULT_MAX_FRAME_LENGTH;
+    private final AtomicInteger nextChunkedId = new AtomicInteger();
+    // When not null, every line sent and received is recorded
+    private volatile TrafficCapture capture = null;
+    // Opens the TCP connections: timeouts, address cache, address racing, socket options
+    private ConnectEngine connectEngine = new ConnectEngine();
+    // Dead connection detection, 0 when disabled (see Heartbeat)
+    private long heartbeatIdleMillis = 0;
+    private long heartbeatReplyMillis = 0;
+    private volatile Heartbeat heartbeat = null;
+    // When not null, gets the time from writing each chat message to its msgok/msgerr reply
+    private volatile LongConsumer messageRttObserver = null;
+    // Write times of the chat messages waiting for a reply, oldest first (the server replies in order)
+    private final Queue<Long> messageSendTimes = new ConcurrentLinkedQueue<>();
+    // When not null, incoming chat messages are checked against the filter rules
+    private volatile MessageFilter messageFilter = null;
+    // Help commands waiting for their "supported" reply, oldest first (the server replies in order).
+    // The round-trip time of each is recorded in the latency histogram.
+    private final Queue<PendingHelp> pendingHelp = new ConcurrentLinkedQueue<>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    // Round-trip time probe interval, 0 when disabled (see RttProbe)
+    private long rttProbeMillis = 0;
+    private volatile RttProbe rttProbe = null;
+    // When not null, the user list is shared with the other sessions to the same server
+    private volatile PresenceService presence = null;
+    private final ChunkFraming.Reassembler reassembler = new ChunkFraming.Reassembler(CHUNKED_REASSEMBLY_BUDGET);
+
+    /**
+     * Connect to a chat server.
+     *
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @return True on success, false otherwise
+     */
+    public boolean connect(String host, int port) {
+
+        boolean connected = false;
+        try {
+            Socket socket = connectEngine.connect(host, port);
+            if (sslContext != null) {
+                connection = openTlsSocket(socket, host, port);
+            } else {
+                connection = socket;
+            }
+            LOG.info("Connected to {}:{}", host, port);
+            input = connection.getInputStream();
+            output = connection.getOutputStream();
+            fromServer = new LineReader(input);
+            compressed = false;
+            frameWriter = null;
+            frameReader = null;
+            messageSendTimes.clear();
+            reassembler.clear();
+            pendingHelp.clear();
+            latency.reset();
+            if (outboundQueue != null) {
+                outboundQueue.start();
+            }
+            connected = true;
+        }catch (IOException e) {
+            lastError = e.getMessage();
+            LOG.warn("Socket error: {}", lastError);
+        }
+        return connected;
+    }
+
+    /**
+     * Use another connect engine, for example one shared by many clients so they share the address
+     * cache and the connect metrics
+     *
+     * @param engine The engine used by the following connects
+     */
+    public void setConnectEngine(ConnectEngine engine) {
+        connectEngine = engine;
+    }
+
+    /**
+     * @return The engine that opens the connections, with its settings and connect-latency metrics
+     */
+    public ConnectEngine getConnectEngine() {
+        return connectEngine;
+    }
+
+    /**
+     * Detect dead connections (see Heartbeat): when nothing has been received for idleMillis, send a
+     * "help" probe; if still nothing is received within replyMillis, close the connection and notify
+     * the listeners with onDisconnect(). The replies to the probes are not passed to the listeners.
+     * Takes effect when the listen thread is started.
+     *
+     * @param idleMillis  Idle time before a probe is sent, 0 to disable
+     * @param replyMillis How long to wait for anything after the probe
+     */
+    public void setHeartbeat(long idleMillis, long replyMillis) {
+        heartbeatIdleMillis = idleMillis;
+        heartbeatReplyMillis = replyMillis;
+    }
+
+    /**
+     * @return Number of heartbeat probes sent on the current connection
+     */
+    public long getHeartbeatProbeCount() {
+        Heartbeat h = heartbeat;
+        return h != null ? h.getProbeCount() : 0;
+    }
+
+    /**
+     * Use TLS for the following connections. The TLS sessions are cached in the given context, so
+     * share one context between all clients (and reconnects) to the same server: a reconnect then
+     * resumes the cached session instead of doing a full handshake. SSLContext.getDefault() trusts
+     * the usual certificate authorities; its cache size and lifetime can be tuned with
+     * getClientSessionContext().setSessionCacheSize() and setSessionTimeout().
+     *
+     * @param context The TLS context, or null to use plain TCP connections
+     */
+    public void setSslContext(SSLContext context) {
+        sslContext = context;
+    }
+
+    /**
+     * @return Duration of the last TLS handshake in nanoseconds, 0 if TLS has not been used
+     */
+    public long getLastHandshakeNanos() {
+        return lastHandshakeNanos;
+    }
+
+    /**
+     * @return true if the last TLS connection resumed a cached session (abbreviated handshake)
+     */
+    public boolean isLastSessionResumed() {
+        return lastSessionResumed;
+    }
+
+    /**
+     * Start TLS on a connected socket and complete the handshake. The server certificate must match
+     * the host.
+     *
+     * @param plain Connected TCP socket. It is closed if the handshake fails.
+     * @param host host name or IP address of the chat server
+     * @param port TCP port of the chat server
+     * @return The connected socket
+     * @throws IOException When connection or handshake fails
+     */
+    private Socket openTlsSocket(Socket plain, String host, int port) throws IOException {
+        SSLSocket socket;
+        try {
+            socket = (SSLSocket) sslContext.getSocketFactory().createSocket(plain, host, port, true);
+        } catch (IOException e) {
+            plain.close();
+            throw e;
+        }
+        try {
+            SSLParameters params = socket.getSSLParameters();
+            params.setEndpointIdentificationAlgorithm("HTTPS");
+            socket.setSSLParameters(params);
+            long startMillis = System.currentTimeMillis();
+            long start = System.nanoTime();
+            socket.startHandshake();
+            lastHandshakeNanos = System.nanoTime() - start;
+            // A resumed session was created during an earlier connection
+            lastSessionResumed = socket.getSession().getCreationTime() < startMillis;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    /**
+     * Close the socket. This method must be synchronized, because several
+     * threads may try to call it. For example: When "Disconnect" button is
+     * pressed in the GUI thread, the connection will get closed. Meanwhile, the
+     * background thread trying to read server's response will get error in the
+     * input stream and may try to call this method when the socket is already
+     * in the process of being closed. with "synchronized" keyword we make sure
+     * that no two threads call this method in parallel.
+     */
+    public synchronized void disconnect() {
+
+        if (isConnectionActive()) {
+            Heartbeat h = heartbeat;
+            if (h != null) {
+                h.stop();
+                heartbeat = null;
+            }
+            RttProbe p = rttProbe;
+            if (p != null) {
+                p.stop();
+                rttProbe = null;
+            }
+            if (outboundQueue != null) {
+                outboundQueue.stop();
+            }
+            try {
+                // Clear the field first, so the listen thread knows the read error is expected
+                Socket socket = connection;
+                connection = null;
+                socket.close();
+                endDeflater();
+                onDisconnect();
+                LOG.info("Disconnect successful");
+            } catch (IOException e) {
+                lastError = e.getMessage();
+                LOG.warn("Disconnect error: {}", lastError);
+            }
+        }
+    }
+
+    /**
+     * Free the native memory of the compressor. Writers still busy with it fail at the closed socket
+     * and leave their lane, so waiting for the lane means nobody is using it any more.
+     */
+    private void endDeflater() {
+        lanes.acquire(WriteLanes.CONTROL);
+        try {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+            }
+        } finally {
+            lanes.release(WriteLanes.CONTROL);
+        }
+    }
+
+    /**
+     * @return true if the connection is active (opened), false if not.
+     */
+    public boolean isConnectionActive() {
+        return connection != null;
+    }
+
+    /**
+     * Send a command to server.
+     *
+     * @param cmd A command. It should include the command word and optional attributes, according to the protocol.
+     * @param lane WriteLanes.CONTROL for control commands, which go before waiting chat messages,
+     *             WriteLanes.BULK for chat messages
+     * @return true on success, false otherwise
+     */
+    private boolean sendCommand(String cmd, int lane) {
+
+        boolean commandSent = false;
+        lanes.acquire(lane);
+        try {
+            writeCommand(cmd);
+            commandSent = true;
+        } catch (IOException e) {
+            lastError = e.getMessage();
+            LOG.warn("Send command error: {}", lastError);
+        } finally {
+            lanes.release(lane);
+        }
+        return commandSent;
+    }
+
+    /**
+     * Write and flush one command. The caller must have its turn in the write lanes.
+     *
+     * @param cmd The command, including the newline
+     * @throws IOException When writing fails
+     */
+    private void writeCommand(String cmd) throws IOException {
+        // Record before writing: the reply may be read on the listen thread before flush() returns
+        if (messageRttObserver != null && (cmd.startsWith("msg ") || cmd.startsWith("privmsg "))) {
+            messageSendTimes.add(System.nanoTime());
+        }
+        TrafficCapture c = capture;
+        if (c != null) {
+            c.record(false, cmd.substring(0, cmd.length() - 1));
+        }
+        try {
+            BinaryFraming.Writer frames = frameWriter;
+            if (frames != null) {
+                frames.writeLine(cmd.substring(0, cmd.length() - 1));
+                frames.flush();
+                return;
+            }
+            output.write(cmd.getBytes(StandardCharsets.UTF_8));
+            output.flush();
+        } catch (IOException e) {
+            sendTimesLost();
+            throw e;
+        }
+    }
+
+    /**
+     * A write failed: it is unknown which of the waiting commands will still get a reply, so no
+     * reply can be paired with its send time any more
+     */
+    private void sendTimesLost() {
+        messageSendTimes.clear();
+        pendingHelp.clear();
+        RttProbe p = rttProbe;
+        if (p != null) {
+            p.replied();
+        }
+    }
+
+    /**
+     * Send several commands that are already encoded, with one flush at the end. Each command is
+     * given both as a UTF-8 line and as a binary frame, and the form the connection uses is written
+     * as it is. The byte arrays are only read, so the same arrays can be written to many connections.
+     * These commands bypass the rate limiter.
+     *
+     * @param lines  Encoded commands, each including the newline
+     * @param frames The same commands as binary frames (see BinaryFraming.encodeLine())
+     * @param count  Number of commands to take from the start of the arrays
+     * @return true on success, false otherwise
+     */
+    boolean sendEncodedCommands(byte[][] lines, byte[][] frames, int count) {
+        lanes.acquire(WriteLanes.BULK);
+        try {
+            if (output == null) {
+                lastError = "Not connected";
+                return false;
+            }
+            if (messageRttObserver != null) {
+                Long now = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    messageSendTimes.add(now);
+                }
+            }
+            TrafficCapture c = capture;
+            if (c != null) {
+                for (int i = 0; i < count; i++) {
+                    c.record(false, new String(lines[i], 0, lines[i].length - 1, StandardCharsets.UTF_8));
+                }
+            }
+            // The frame writer writes straight to the output stream, so the frames can too
+            byte[][] encoded = frameWriter != null ? frames : lines;
+            for (int i = 0; i < count; i++) {
+                output.write(encoded[i]);
+            }
+            output.flush();
+            return true;
+        } catch (IOException e) {
+            sendTimesLost();
+            lastError = e.getMessage();
+            LOG.warn("Send command error: {}", lastError);
+            return false;
+        } finally {
+            lanes.release(WriteLanes.BULK);
+        }
+    }
+
+    /**
+     * Limit the rate of outgoing chat messages (public and private). Messages are put in a bounded
+     * queue and written by a background thread, no faster than the given rate. Control commands
+     * (login, users, help) are not limited. Call this before connect().
+     *
+     * @param messagesPerSecond Sustained rate of messages
+     * @param burst             Number of messages that may be sent at once after a quiet period
+     * @param queueCapacity     Maximum number of messages waiting in the queue
+     * @param policy            What to do with a new message when the queue is full
+     */
+    public void setRateLimit(double messagesPerSecond, int burst, int queueCapacity,
+                             OutboundQueue.OverflowPolicy policy) {
+        outboundQueue = new OutboundQueue(queueCapacity, policy, new TokenBucket(messagesPerSecond, burst),
+                cmd -> sendCommand(cmd, WriteLanes.BULK));
+    }
+
+    /**
+     * @return The rate-limited outbound queue with its metrics, or null if there is no rate limit
+     */
+    public OutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
+    /**
+     * Send a chat message command: through the rate-limited queue if there is one, otherwise directly.
+     *
+     * @param cmd   The command, including the newline
+     * @param whole False for a frame of a chunked message
+     * @return true if the command was sent (or queued), false otherwise
+     */
+    private boolean sendMessageCommand(String cmd, boolean whole) {
+        if (outboundQueue == null) {
+            return sendCommand(cmd, WriteLanes.BULK);
+        }
+        if (!isConnectionActive()) {
+            lastError = "Not connected";
+            return false;
+        }
+        boolean queued = outboundQueue.offer(cmd, whole);
+        if (!queued) {
+            lastError = isConnectionActive() ? "Outbound queue is full" : "Not connected";
+        }
+        return queued;
+    }
+
+    /**
+     * Send a public message to all the recipients.
+     *
+     * @param message Message to send
+     * @return true if message sent (or queued, when rate limited), false on error
+     */
+    public boolean sendPublicMessage(String message) {
+
+        if (ChunkFraming.needsChunking(message, maxFrameLength)) {
+            return sendChunked("msg ", new StringReader(message));
+        }
+        boolean msgSent = false;
+        try {
+            msgSent = sendMessageCommand("msg " + message + "\n", true);
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            LOG.warn("Send public message error: {}", lastError);
+        }
+        return msgSent;
+    }
+
+    /**
+     * Send a login request to the chat server.
+     *
+     * @param username Username to use
+     */
+    public void tryLogin(String username) {
+
+        try {
+            sendCommand("login " + username + "\n", WriteLanes.CONTROL);
+        } catch (Exception e) {
+            LOG.warn("Login error: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Send a request for latest user list to the server. To get the new users,
+     * clear your current user list and use events in the listener. With a presence service, the
+     * listeners get the shared list right away, on the dispatch thread of the service, and the
+     * service decides when to ask the server.
+     */
+    public void refreshUserList() {
+
+        PresenceService p = presence;
+        if (p != null) {
+            p.refresh(this);
+            return;
+        }
+        requestUserList();
+    }
+
+    /**
+     * Send the users command to the server
+     */
+    void requestUserList() {
+           try{
+               sendCommand("users\n", WriteLanes.CONTROL);
+           }
+            catch (Exception e){
+               LOG.warn("User list request error: {}", e.getMessage());
+            }
+
+    }
+
+    /**
+     * Share the user list with the other sessions to the same server in this process: instead of
+     * sending "users" for each session, one poll is sent for all of them, and its reply is given to
+     * the listeners of every session (see PresenceService).
+     *
+     * @param service The service of the server this client connects to, usually
+     *                PresenceService.forServer(host, port). Null to poll on our own again.
+     */
+    public void setPresenceService(PresenceService service) {
+        PresenceService old = presence;
+        if (old != null) {
+            old.detach(this);
+        }
+        presence = service;
+        if (service != null) {
+            service.attach(this);
+        }
+    }
+
+    /**
+     * @return The presence service, or null
+     */
+    public PresenceService getPresenceService() {
+        return presence;
+    }
+
+    /**
+     * Give a user list to the listeners of this client
+     *
+     * @param users The users
+     */
+    void deliverUserList(String[] users) {
+        onUsersList(users);
+    }
+
+    /**
+     * Send a public message read from a stream, for example a large file. The text may contain
+     * newlines. It is sent in chunked frames, one frame at a time, so it is never fully in memory.
+     *
+     * @param message Message to send
+     * @return true if all frames were sent (or queued, when rate limited), false on error
+     */
+    public boolean sendPublicMessage(Reader message) {
+        return sendChunked("msg ", message);
+    }
+
+    /**
+     * Send a private message read from a stream. See sendPublicMessage(Reader).
+     *
+     * @param recipient username of the chat user who should receive the message
+     * @param message   Message to send
+     * @return true if all frames were sent (or queued, when rate limited), false on error
+     */
+    public boolean sendPrivateMessage(String recipient, Reader message) {
+        return sendChunked("privmsg " + recipient + " ", message);
+    }
+
+    /**
+     * Set the longest message text that is sent as one protocol line. Longer messages, and messages
+     * with newlines, are split into frames of about this length.
+     *
+     * @param length Maximum length, in characters
+     */
+    public void setMaxFrameLength(int length) {
+        maxFrameLength = length;
+    }
+
+    /**
+     * Send a message in chunked frames
+     *
+     * @param commandPrefix Command word and recipient (if any), followed by a space
+     * @param message       Message to send
+     * @return true if all frames were sent (or queued), false on error
+     */
+    private boolean sendChunked(String commandPrefix, Reader message) {
+        ChunkFraming.Encoder encoder = new ChunkFraming.Encoder(message, nextChunkedId.getAndIncrement(),
+                maxFrameLength);
+        try {
+            String frame;
+            while ((frame = encoder.nextFrame()) != null) {
+                if (!sendMessageCommand(commandPrefix + frame + "\n", false)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (IOException e) {
+            lastError = e.getMessage();
+            LOG.warn("Send chunked message error: {}", lastError);
+            return false;
+        }
+    }
+
+    /**
+     * Send a private message to a single recipient.
+     *
+     * @param recipient username of the chat user who should receive the message
+     * @param message   Message to send
+     * @return true if message sent (or queued, when rate limited), false on error
+     */
+    public boolean sendPrivateMessage(String recipient, String message) {
+
+        if (ChunkFraming.needsChunking(message, maxFrameLength)) {
+            return sendChunked("privmsg " + recipient + " ", new StringReader(message));
+        }
+        boolean msgSent = false;
+        try {
+            msgSent = sendMessageCommand("privmsg " + recipient + " " + message + "\n", true);
+        } catch (Exception e) {
+            lastError = e.getMessage();
+            LOG.warn("Send private message error: {}", lastError);
+        }
+        return msgSent;
+    }
+
+    /**
+     * Send a request for the list of commands that server supports.
+     */
+    public void askSupportedCommands() {
+
+        sendHelp(false);
+    }
+
+    /**
+     * A help command waiting for its reply
+     */
+    private static class PendingHelp {
+        final long sentNanos;
+        // Sent by the heartbeat or the RTT probe: the listeners don't see the reply
+        final boolean probe;
+
+        PendingHelp(long sentNanos, boolean probe) {
+            this.sentNanos = sentNanos;
+            this.probe = probe;
+        }
+    }
+
+    /**
+     * Send a help command, and remember when, to measure the round-trip time to its reply
+     *
+     * @param probe When true, this is a probe and the reply is not passed to the listeners
+     * @return true on success, false otherwise
+     */
+    private boolean sendHelp(boolean probe) {
+        lanes.acquire(WriteLanes.CONTROL);
+        try {
+            // In the lane, so the queue has the same order as the commands on the wire
+            pendingHelp.add(new PendingHelp(System.nanoTime(), probe));
+            writeCommand("help\n");
+            return true;
+        } catch (IOException e) {
+            lastError = e.getMessage();
+            LOG.warn("Send command error: {}", lastError);
+            return false;
+        } finally {
+            lanes.release(WriteLanes.CONTROL);
+        }
+    }
+
+    /**
+     * Measure the round-trip time continuously: send a "help" probe every intervalMillis, and
+     * record the time to its "supported" reply in the latency histogram (as for every help
+     * command). The replies to the probes are not passed to the listeners. Takes effect when the
+     * listen thread is started.
+     *
+     * @param intervalMillis Time between probes, 0 to disable
+     */
+    public void setRttProbe(long intervalMillis) {
+        rttProbeMillis = intervalMillis;
+    }
+
+    /**
+     * @return Round-trip times of the help commands on the current connection (including the RTT
+     * and heartbeat probes), over the last minute
+     */
+    public LatencyHistogram getLatencyHistogram() {
+        return latency;
+    }
+
+    /**
+     * Enable or disable stream compression. When enabled (default) and the server lists "deflate" among
+     * the supported commands, the connection is switched to a DEFLATE-compressed stream. Call
+     * askSupportedCommands() to trigger the negotiation.
+     *
+     * @param enabled When true, compression is used if the server supports it
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        compressionEnabled = enabled;
+    }
+
+    /**
+     * @return true if the connection has been switched to a compressed stream
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * Ask the server to compress the connection in both directions. Everything we send after the
+     * "deflate" command is compressed. The server replies with "deflateok", after which everything we
+     * receive is compressed. Each command is sync-flushed, so it reaches the other side immediately.
+     */
+    private void startCompression() {
+        lanes.acquire(WriteLanes.CONTROL);
+        try {
+            // After the switch to frames the stream can't change any more. No stream when replaying.
+            if (output != null && !compressed && frameWriter == null) {
+                writeCommand(DEFLATE_CMD + "\n");
+                deflater = new Deflater();
+                output = new DeflaterOutputStream(output, deflater, true);
+                compressed = true;
+            }
+        } catch (IOException e) {
+            lastError = e.getMessage();
+            LOG.warn("Send command error: {}", lastError);
+        } finally {
+            lanes.release(WriteLanes.CONTROL);
+        }
+    }
+
+    /**
+     * Enable or disable binary framing. When enabled (default) and the server lists "binary" among
+     * the supported commands, the connection is switched to length-prefixed frames (see
+     * BinaryFraming), which are read without scanning for line ends. Call askSupportedCommands() to
+     * trigger the negotiation.
+     *
+     * @param enabled When true, binary framing is used if the server supports it
+     */
+    public void setBinaryFramingEnabled(boolean enabled) {
+        binaryFramingEnabled = enabled;
+    }
+
+    /**
+     * @return true if the connection has been switched to binary frames
+     */
+    public boolean isBinaryFraming() {
+        return frameWriter != null;
+    }
+
+    /**
+     * Ask the server to switch the connection to binary frames in both directions. Everything we
+     * send after the "binary" command is framed. The server replies with "binaryok", after which
+     * everything we receive is framed. When the connection is also compressed, the frames are inside
+     * the compressed stream.
+     */
+    private void startBinaryFraming() {
+        lanes.acquire(WriteLanes.CONTROL);
+        try {
+            // No stream when replaying a capture
+            if (output != null && frameWriter == null) {
+                writeCommand(BinaryFraming.BINARY_CMD + "\n");
+                frameWriter = new BinaryFraming.Writer(output, false);
+            }
+        } catch (IOException e) {
+            lastError = e.getMessage();
+            LOG.warn("Send command error: {}", lastError);
+        } finally {
+            lanes.release(WriteLanes.CONTROL);
+        }
+    }
+
+    /**
+     * Start recording every line sent to and received from the server (see TrafficCapture)
+     *
+     * @param file Where to write the capture
+     * @throws IOException When the file can't be created
+     */
+    public void startCapture(File file) throws IOException {
+        startCapture(new FileOutputStream(file));
+    }
+
+    /**
+     * Start recording every line sent to and received from the server (see TrafficCapture)
+     *
+     * @param stream Where to write the capture. It is closed by stopCapture().
+     * @throws IOException When the capture header can't be written
+     */
+    public void startCapture(OutputStream stream) throws IOException {
+        stopCapture();
+        capture = new TrafficCapture(stream);
+    }
+
+    /**
+     * Stop recording and close the capture file
+     */
+    public void stopCapture() {
+        TrafficCapture c = capture;
+        capture = null;
+        if (c != null) {
+            c.close();
+        }
+    }
+
+    /**
+     * Wait for chat server's response
+     *
+     * @param socket The connection being read. If it fails, only this connection is closed.
+     * @return one line of text (one command) received from the server
+     */
+    private String waitServerResponse(Socket socket) {
+
+        String messageFromServer;
+        try {
+            messageFromServer = fromServer.readLine();
+            TrafficCapture c = capture;
+            if (c != null && messageFromServer != null) {
+                c.record(true, messageFromServer);
+            }
+            Heartbeat h = heartbeat;
+            if (h != null && messageFromServer != null) {
+                h.lineReceived();
+            }
+            if (messageFromServer == null) {
+                // The server closed the connection
+                if (socket == connection) {
+                    disconnect();
+                }
+                messageFromServer = "";
+            }
+            return messageFromServer;
+        } catch (IOException e) {
+            if (socket == connection) {
+                lastError = e.getMessage();
+                LOG.warn("Wait for server response error: {}", lastError);
+                // The stream is broken, reading again would fail the same way
+                disconnect();
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Wait for the next frame from the chat server
+     *
+     * @param socket The connection being read. If it fails, only this connection is closed.
+     * @param frames The frame reader of the connection
+     * @return true when a frame was read, false when the connection is closed
+     */
+    private boolean waitServerFrame(Socket socket, BinaryFraming.Reader frames) {
+        try {
+            if (frames.next()) {
+                TrafficCapture c = capture;
+                if (c != null) {
+                    c.record(true, frames.toLine());
+                }
+                Heartbeat h = heartbeat;
+                if (h != null) {
+                    h.lineReceived();
+                }
+                return true;
+            }
+            // The server closed the connection
+            if (socket == connection) {
+                disconnect();
+            }
+        } catch (IOException e) {
+            if (socket == connection) {
+                lastError = e.getMessage();
+                LOG.warn("Wait for server response error: {}", lastError);
+                disconnect();
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the last error message
+     *
+     * @return Error message or "" if there has been no error
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Start listening for incoming commands from the server in a new CPU thread. Only one thread
+     * listens to a connection: calling this again for the same connection does nothing.
+     */
+    public synchronized void startListenThread() {
+
+        if (listenThread != null && listenThread.isAlive() && listenConnection == connection) {
+            return;
+        }
+        listenConnection = connection;
+        listenThread = new Thread(this::parseIncomingCommands, "TCPClient-listen");
+        listenThread.start();
+        if (heartbeatIdleMillis > 0 && connection != null) {
+            startHeartbeat(connection);
+        }
+        if (rttProbeMillis > 0 && connection != null) {
+            Socket socket = connection;
+            RttProbe p = new RttProbe(() -> {
+                if (socket == connection) {
+                    sendHelp(true);
+                }
+            }, TimerWheel.shared(), rttProbeMillis);
+            rttProbe = p;
+            p.start();
+        }
+    }
+
+    /**
+     * Watch the connection with a heartbeat on the shared timer wheel
+     *
+     * @param socket The connection to watch
+     */
+    private void startHeartbeat(Socket socket) {
+        Heartbeat h = new Heartbeat(new Heartbeat.Connection() {
+            @Override
+            public void sendProbe() {
+                if (socket == connection) {
+                    sendHelp(true);
+                }
+            }
+
+            @Override
+            public void dead(String reason) {
+                synchronized (TCPClient.this) {
+                    if (socket == connection) {
+                        lastError = reason;
+                        LOG.warn("Heartbeat: {}", reason);
+                        disconnect();
+                    }
+                }
+            }
+        }, TimerWheel.shared(), heartbeatIdleMillis, heartbeatReplyMillis);
+        heartbeat = h;
+        h.start();
+    }
+
+    /**
+     * @return Number of registered listeners
+     */
+    public int getListenerCount() {
+        return listeners.size();
+    }
+
+    /**
+     * Read incoming messages one by one, generate events for the listeners. A loop that runs until
+     * the connection is closed.
+     */
+    private void parseIncomingCommands() {
+        // Stop when this connection is closed, even if a new one has been opened in the meantime
+        Socket socket = connection;
+        while (socket != null && socket == connection) {
+            BinaryFraming.Reader frames = frameReader;
+            if (frames == null) {
+                handleServerLine(waitServerResponse(socket));
+            } else if (waitServerFrame(socket, frames)) {
+                handleServerFrame(frames);
+            }
+        }
+        // This thread is the only user of the decompressor, so it frees it
+        Inflater inf = inflater;
+        if (inf != null) {
+            inflater = null;
+            inf.end();
+        }
+    }
+
+    /**
+     * Handle one frame received from the server. The chat messages and their replies are taken
+     * straight from the frame fields; the other commands are rare and go through the text parser.
+     *
+     * @param frame The reader, positioned at the frame
+     */
+    private void handleServerFrame(BinaryFraming.Reader frame) {
+        switch (frame.getOpcode()) {
+            case BinaryFraming.OP_MSG:
+                receiveMessage(false, frame.getUser(), frame.getPayload());
+                break;
+            case BinaryFraming.OP_PRIVMSG:
+                receiveMessage(true, frame.getUser(), frame.getPayload());
+                break;
+            case BinaryFraming.OP_MSGOK:
+                messageReplied();
+                break;
+            default:
+                handleServerLine(frame.toLine());
+        }
+    }
+
+    /**
+     * Parse one line (one command) received from the server and generate events for the listeners.
+     * Also used by CaptureReplayer to feed recorded traffic through the parser.
+     *
+     * @param line The line, without the newline
+     */
+    void handleServerLine(String line) {
+        String[] arg = line.split(" ", 2);
+        String serverCommand = arg[0];
+        String serverArgument = null;
+
+        if (arg.length > 1)
+            serverArgument = arg[1];
+
+        if (serverCommand != null)
+            switch (serverCommand){
+                case "loginok":
+                    onLoginResult(true, serverArgument);
+                    break;
+
+                case  "loginerr":
+                    onLoginResult(false,serverArgument);
+                    break;
+                case "users":
+                    if (serverArgument != null){
+                    String[] users = serverArgument.split(" ");
+                    PresenceService p = presence;
+                    if (p != null) {
+                        // Compared with the last list, and given to all sessions
+                        p.update(users);
+                    } else {
+                        this.onUsersList(users);
+                    }}
+                    break;
+
+                case  "msgok":
+                    messageReplied();
+                    break;
+
+                case "msgerr":
+                    messageReplied();
+                    onMsgError(serverArgument);
+                    break;
+
+                case "cmderr":
+                    onCmdError(serverArgument);
+                    break;
+
+                case "":
+                    break;
+
+                case "msg":
+                    String[] serverArgsBits = serverArgument.split(" ", 2);
+                    receiveMessage(false, serverArgsBits[0],serverArgsBits[1]);
+                    break;
+
+                case "privmsg":
+                    assert serverArgument != null;
+                    String[] serverArgsBitsPriv = serverArgument.split(" ", 2);
+                    receiveMessage(true, serverArgsBitsPriv[0], serverArgsBitsPriv[1]);
+                    break;
+                case "supported":
+                    PendingHelp help = pendingHelp.poll();
+                    if (help != null) {
+                        latency.record(System.nanoTime() - help.sentNanos);
+                        if (help.probe) {
+                            // Reply to our own probe
+                            RttProbe p = rttProbe;
+                            if (p != null) {
+                                p.replied();
+                            }
+                            break;
+                        }
+                    }
+                    String[] commands = serverArgument.split(" ");
+                    this.onSupported(commands);
+                    boolean deflate = compressionEnabled && Arrays.asList(commands).contains(DEFLATE_CMD);
+                    boolean binary = binaryFramingEnabled
+                            && Arrays.asList(commands).contains(BinaryFraming.BINARY_CMD);
+                    if (deflate || binary) {
+                        // Writing may wait behind a chat message stuck in a full send buffer, so not on
+                        // the listen thread, which must keep reading for the buffer to drain
+                        Socket socket = connection;
+                        Heartbeat.WORKERS.execute(() -> {
+                            if (socket != connection) {
+                                return;
+                            }
+                            if (deflate) {
+                                startCompression();
+                            }
+                            // After compression: the frames go inside the compressed stream
+                            if (binary) {
+                                startBinaryFraming();
+                            }
+                        });
+                    }
+                    break;
+
+                case DEFLATE_OK:
+                    // The rest of the incoming stream is compressed, including bytes already read ahead
+                    inflater = new Inflater();
+                    fromServer.setInput(new InflaterInputStream(fromServer.detach(), inflater, 8192));
+                    break;
+
+                case BinaryFraming.BINARY_OK:
+                    // The rest of the incoming stream is frames, including bytes already read ahead.
+                    // Not when replaying a capture: there is no stream then.
+                    if (fromServer != null) {
+                        frameReader = new BinaryFraming.Reader(fromServer.detach(),
+                                BinaryFraming.DEFAULT_MAX_FRAME_LENGTH);
+                    }
+                    break;
+
+                default:
+                    LOG.warn("Unknown server command: {} {}", serverCommand, serverArgument);
+
+            }
+    }
+
+    /**
+     * Observe the round-trip time of chat messages: from writing a msg/privmsg command to receiving
+     * its msgok or msgerr reply. Used by ServerPool for health scoring.
+     *
+     * @param observer Gets each round-trip time in nanoseconds, on the listen thread. Null to stop.
+     */
+    void setMessageRttObserver(LongConsumer observer) {
+        messageRttObserver = observer;
+        if (observer == null) {
+            messageSendTimes.clear();
+        }
+    }
+
+    /**
+     * A msgok or msgerr reply arrived for the oldest chat message waiting for one
+     */
+    private void messageReplied() {
+        Long sent = messageSendTimes.poll();
+        LongConsumer observer = messageRttObserver;
+        if (sent != null && observer != null) {
+            observer.accept(System.nanoTime() - sent);
+        }
+    }
+
+    /**
+     * Handle an incoming message. Chunked frames are collected until the message is complete, then
+     * the listeners are notified once.
+     *
+     * @param priv   When true, this is a private message
+     * @param sender Username of the sender
+     * @param text   Message text
+     */
+    private void receiveMessage(boolean priv, String sender, String text) {
+        if (text.startsWith(ChunkFraming.PREFIX)) {
+            text = reassembler.accept(priv, sender, text);
+            if (text == null) {
+                // More frames to come
+                return;
+            }
+        }
+        MessageFilter filter = messageFilter;
+        if (filter == null) {
+            onMsgReceived(new TextMessage(sender, priv, text));
+            return;
+        }
+        MessageFilter.Result result = filter.check(sender, text);
+        if (result.getVerdict() == MessageFilter.Verdict.PASS) {
+            onMsgReceived(new TextMessage(sender, priv, text, result.getHighlights()));
+        }
+    }
+
+    /**
+     * Check incoming chat messages against filter rules before the listeners are notified: messages
+     * from blocked senders or with muted keywords are dropped, and highlights are added to the rest
+     *
+     * @param filter The filter, or null to deliver all messages unchanged
+     */
+    public void setMessageFilter(MessageFilter filter) {
+        messageFilter = filter;
+    }
+
+    /**
+     * @return The message filter, or null
+     */
+    public MessageFilter getMessageFilter() {
+        return messageFilter;
+    }
+
+    /**
+     * Register a new listener for events (login result, incoming message, etc)
+     *
+     * @param listener user listening to chat server
+     */
+    public void addListener(ChatListener listener) {
+        if (!listeners.contains(listener)) {
+            listeners.add(listener);
+        }
+    }
+
+    /**
+     * Unregister an event listener
+     *
+     * @param listener user listening to chat server
+     */
+    public void removeListener(ChatListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Subscribe to one type of event. Unlike a ChatListener, the subscriber only gets the events it
+     * asked for.
+     *
+     * @param event   The event type, for example ChatEvent.USER_LIST
+     * @param handler Gets the data of each event, on the listen thread
+     * @param <T>     Type of the event data
+     * @return The subscription, to cancel it
+     */
+    public <T> Subscription subscribe(ChatEvent<T> event, Consumer<? super T> handler) {
+        return subscribe(new EventDispatcher.Subscriber(event, null, null, handler));
+    }
+
+    /**
+     * Subscribe to chat messages of one kind, or from one sender. The messages are looked up by
+     * sender, so many subscribers for different senders cost no more per message than one.
+     *
+     * @param sender  Username of the sender, or null for messages from everybody
+     * @param priv    true for private messages only, false for public messages only, null for both
+     * @param handler Gets each matching message, on the listen thread
+     * @return The subscription, to cancel it
+     */
+    public Subscription subscribeMessages(String sender, Boolean priv, Consumer<? super TextMessage> handler) {
+        return subscribe(new EventDispatcher.Subscriber(ChatEvent.MESSAGE, sender, priv, handler));
+    }
+
+    private Subscription subscribe(EventDispatcher.Subscriber subscriber) {
+        subscriptions.add(subscriber);
+        return new Subscription(subscriptions, subscriber);
+    }
+
+    /**
+     * @return Number of active subscriptions
+     */
+    public int getSubscriptionCount() {
+        return subscriptions.size();
+    }
+
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+    // The following methods are all event notifiers - notify all the listeners about a specific event.
+    // By "event" here we mean "information received from the chat server".
+    ///////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Notify listeners that login operation is complete (either with success or
+     * failure)
+     *
+     * @param success When true, login successful. When false, it failed
+     * @param errMsg  Error message if any
+     */
+    private void onLoginResult(boolean success, String errMsg) {
+        for (ChatListener l : listeners) {
+            l.onLoginResult(success, errMsg);
+        }
+        subscriptions.dispatch(success ? ChatEvent.LOGIN_OK : ChatEvent.LOGIN_ERROR, errMsg);
+    }
+
+    /**
+     * Notify listeners that socket was closed by the remote end (server or
+     * Internet error)
+     */
+    private void onDisconnect() {
+        for (ChatListener l : listeners) {
+            l.onDisconnect();
+        }
+        subscriptions.dispatch(ChatEvent.DISCONNECT, null);
+    }
+
+    /**
+     * Notify listeners that server sent us a list of currently connected users
+     *
+     * @param users List with usernames
+     */
+    private void onUsersList(String[] users) {
+        for (ChatListener l : listeners) {
+            l.onUserList(users);
+        }
+        subscriptions.dispatch(ChatEvent.USER_LIST, users);
+    }
+
+    /**
+     * Notify listeners that a message is received from the server
+     *
+     * @param message The message
+     */
+    private void onMsgReceived(TextMessage message) {
+        for (ChatListener l : listeners) {
+            l.onMessageReceived(message);
+        }
+        subscriptions.dispatchMessage(message);
+    }
+
+    /**
+     * Notify listeners that our message was not delivered
+     *
+     * @param errMsg Error description returned by the server
+     */
+    private void onMsgError(String errMsg) {
+        for (ChatListener l : listeners) {
+            l.onMessageError(errMsg);
+        }
+        subscriptions.dispatch(ChatEvent.MESSAGE_ERROR, errMsg);
+    }
+
+    /**
+     * Notify listeners that command was not understood by the server.
+     *
+     * @param errMsg Error message
+     */
+    private void onCmdError(String errMsg) {
+        for (ChatListener l : listeners) {
+            l.onCommandError(errMsg);
+        }
+        subscriptions.dispatch(ChatEvent.COMMAND_ERROR, errMsg);
+    }
+
+    /**
+     * Notify listeners that a help response (supported commands) was received
+     * from the server
+     *
+     * @param commands Commands supported by the server
+     */
+    private void onSupported(String[] commands) {
+        for (ChatListener l : listeners) {
+            l.onSupportedCommands(commands);
+        }
+        subscriptions.dispatch(ChatEvent.SUPPORTED, commands);
+    }
+}
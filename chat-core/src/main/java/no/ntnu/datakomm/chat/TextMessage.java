@@ -10,6 +10,7 @@ public class TextMessage {
     private final String sender;
     private final boolean priv;
     private final String text;
+    private final int[] highlights;
 
     /**
      * @param sender Username of the sender
@@ -17,9 +18,20 @@ public class TextMessage {
      * @param text Text of the message
      */
     public TextMessage(String sender, boolean priv, String text) {
+        this(sender, priv, text, new int[0]);
+    }
+
+    /**
+     * @param sender Username of the sender
+     * @param priv When true, message is private
+     * @param text Text of the message
+     * @param highlights Parts of the text to highlight, as pairs of start and end index
+     */
+    public TextMessage(String sender, boolean priv, String text, int[] highlights) {
         this.sender = sender;
         this.priv = priv;
         this.text = text;
+        this.highlights = highlights;
     }
 
     public String getSender() {
@@ -34,6 +46,14 @@ public class TextMessage {
         return text;
     }
 
+    /**
+     * @return Parts of the text to highlight (see MessageFilter), as pairs of start and end index in
+     * increasing order. Empty when nothing is highlighted.
+     */
+    public int[] getHighlights() {
+        return highlights;
+    }
+
     @Override
     public String toString() {
         return (priv ? "PRIVATE " : "") + " from " + sender + ": " + text;
@@ -0,0 +1,142 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel: one thread serves the timeouts of any number of connections. Time is
+ * divided into ticks, and the wheel has one slot per tick. A timeout is put in the slot where it
+ * expires, with the number of full turns left. Each tick the thread looks only at one slot, so
+ * scheduling and cancelling are O(1), and thousands of connections cost no more threads than one.
+ * <p>
+ * Timeouts fire up to one tick late. The tasks run on the wheel thread, so they must be short and
+ * must never block (hand blocking work to another thread).
+ */
+public class TimerWheel {
+
+    private static final ChatLog LOG = ChatLog.get();
+
+    /**
+     * A scheduled task
+     */
+    public static class Timeout {
+        private final Runnable task;
+        private long rounds;
+        private volatile boolean cancelled = false;
+
+        private Timeout(Runnable task, long rounds) {
+            this.task = task;
+            this.rounds = rounds;
+        }
+
+        /**
+         * Stop the task from running, if it has not run yet
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private static TimerWheel shared = null;
+
+    private final long tickNanos;
+    private final List<Timeout>[] slots;
+    private final long startNanos;
+    // Number of ticks processed so far
+    private long tick = 0;
+
+    /**
+     * Start a timer wheel with its own thread
+     *
+     * @param tickMillis Length of one tick in milliseconds: the precision of the timeouts
+     * @param slotCount  Number of slots. Timeouts up to tickMillis * slotCount away need no extra turns.
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long tickMillis, int slotCount) {
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        slots = (List<Timeout>[]) new ArrayList<?>[slotCount];
+        for (int i = 0; i < slotCount; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        startNanos = System.nanoTime();
+        Thread thread = new Thread(this::run, "TimerWheel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The wheel shared by all clients in this process: 50 ms ticks, 512 slots
+     */
+    public static synchronized TimerWheel shared() {
+        if (shared == null) {
+            shared = new TimerWheel(50, 512);
+        }
+        return shared;
+    }
+
+    /**
+     * Run a task once, after a delay
+     *
+     * @param task  The task. It runs on the wheel thread.
+     * @param delay Delay
+     * @param unit  Unit of the delay
+     * @return Handle that can cancel the task
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        synchronized (slots) {
+            // The tick in which the task expires. Round up, so it never fires early
+            long elapsedTicks = (System.nanoTime() - startNanos) / tickNanos;
+            long delayTicks = (unit.toNanos(Math.max(0, delay)) + tickNanos - 1) / tickNanos;
+            long expiresTick = Math.max(tick + 1, elapsedTicks + 1 + delayTicks);
+            // The slot is visited every slots.length ticks, the first time within one turn
+            Timeout timeout = new Timeout(task, (expiresTick - tick - 1) / slots.length);
+            slots[(int) (expiresTick % slots.length)].add(timeout);
+            return timeout;
+        }
+    }
+
+    private void run() {
+        List<Timeout> expired = new ArrayList<>();
+        while (true) {
+            long sleepNanos = startNanos + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            synchronized (slots) {
+                tick++;
+                Iterator<Timeout> it = slots[(int) (tick % slots.length)].iterator();
+                while (it.hasNext()) {
+                    Timeout t = it.next();
+                    if (t.cancelled) {
+                        it.remove();
+                    } else if (t.rounds > 0) {
+                        t.rounds--;
+                    } else {
+                        it.remove();
+                        expired.add(t);
+                    }
+                }
+            }
+            for (Timeout t : expired) {
+                if (!t.cancelled) {
+                    try {
+                        t.task.run();
+                    } catch (RuntimeException e) {
+                        LOG.error("Timer task error: {}", e);
+                    }
+                }
+            }
+            expired.clear();
+        }
+    }
+}
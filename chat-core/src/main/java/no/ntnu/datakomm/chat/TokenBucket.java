@@ -0,0 +1,78 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Token bucket rate limiter. Tokens are added at a fixed rate up to a maximum (the burst size);
+ * every operation takes one token. A full bucket allows a short burst, after that operations are
+ * spaced out at the given rate.
+ */
+public class TokenBucket {
+
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param perSecond Tokens added per second (the sustained rate)
+     * @param burst     Maximum number of tokens in the bucket. The bucket starts full.
+     */
+    public TokenBucket(double perSecond, int burst) {
+        if (perSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate must be positive and burst at least 1");
+        }
+        this.tokensPerNano = perSecond / 1e9;
+        this.capacity = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Take a token if one is available, don't wait
+     *
+     * @return true if a token was taken, false if the bucket is empty
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Take a token, wait until one is available if necessary
+     *
+     * @return true if the caller had to wait (the operation was throttled)
+     * @throws InterruptedException When interrupted while waiting
+     */
+    public boolean acquire() throws InterruptedException {
+        boolean waited = false;
+        long waitNanos;
+        while ((waitNanos = nanosUntilToken()) > 0) {
+            waited = true;
+            Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+        }
+        return waited;
+    }
+
+    /**
+     * Take a token if available
+     *
+     * @return 0 if a token was taken, otherwise nanoseconds until the next token is available
+     */
+    private synchronized long nanosUntilToken() {
+        refill();
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,89 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Records the lines a client sends and receives, with nanosecond timestamps, in a compact binary
+ * file. The file can be read with CaptureReader and fed back through the client with CaptureReplayer.
+ * <p>
+ * File format: the magic "CHATCAP1", the capture start time (long, milliseconds since the epoch),
+ * then one record per line: direction byte ('I' inbound, 'O' outbound), nanoseconds since the
+ * previous record (varint), UTF-8 length (varint) and the UTF-8 bytes of the line without newline.
+ */
+public class TrafficCapture {
+
+    private static final ChatLog LOG = ChatLog.get();
+
+    static final String MAGIC = "CHATCAP1";
+    static final byte INBOUND = 'I';
+    static final byte OUTBOUND = 'O';
+
+    private final DataOutputStream out;
+    private long lastNanos;
+    private boolean failed = false;
+
+    /**
+     * Start a capture. Writes the file header.
+     *
+     * @param stream Where to write the capture. It is closed by close().
+     * @throws IOException When writing the header fails
+     */
+    public TrafficCapture(OutputStream stream) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(stream, 65536));
+        out.write(MAGIC.getBytes(StandardCharsets.US_ASCII));
+        out.writeLong(System.currentTimeMillis());
+        lastNanos = System.nanoTime();
+    }
+
+    /**
+     * Record one line. A write error stops the capture, but never disturbs the connection.
+     *
+     * @param inbound When true, the line was received from the server, otherwise sent to it
+     * @param line    The line, without the newline
+     */
+    public synchronized void record(boolean inbound, String line) {
+        if (failed) {
+            return;
+        }
+        long now = System.nanoTime();
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        try {
+            out.writeByte(inbound ? INBOUND : OUTBOUND);
+            writeVarLong(out, now - lastNanos);
+            writeVarLong(out, bytes.length);
+            out.write(bytes);
+        } catch (IOException e) {
+            failed = true;
+            LOG.warn("Capture error, capture stopped: {}", e.getMessage());
+        }
+        lastNanos = now;
+    }
+
+    /**
+     * Write buffered records and close the file
+     */
+    public synchronized void close() {
+        try {
+            out.close();
+        } catch (IOException e) {
+            LOG.warn("Capture close error: {}", e.getMessage());
+        }
+        failed = true;
+    }
+
+    /**
+     * Write a non-negative number, 7 bits per byte, lowest bits first. The high bit is set on all
+     * bytes except the last.
+     */
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
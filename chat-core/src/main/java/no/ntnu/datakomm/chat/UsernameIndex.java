@@ -0,0 +1,147 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Username index for prefix autocomplete. The usernames are kept in a sorted array (case-insensitive
+ * order), so the names starting with a prefix are found with a binary search, even with hundreds of
+ * thousands of users.
+ * <p>
+ * update() is meant to be called with every user list from the server, on a background thread. It
+ * only applies the difference to the previous list, and publishes a new immutable snapshot, so
+ * complete() can be called from any thread (for example the GUI thread) without locking.
+ */
+public class UsernameIndex {
+
+    /**
+     * Immutable sorted arrays: keys[i] is names[i] in lower case
+     */
+    private static class Snapshot {
+        final String[] keys;
+        final String[] names;
+
+        Snapshot(String[] keys, String[] names) {
+            this.keys = keys;
+            this.names = names;
+        }
+    }
+
+    private volatile Snapshot snapshot = new Snapshot(new String[0], new String[0]);
+
+    /**
+     * Replace the indexed usernames with a new list. Only the names that were added or removed since
+     * the last list cost anything beyond a linear merge.
+     *
+     * @param usernames All usernames currently connected
+     */
+    public synchronized void update(String[] usernames) {
+        Snapshot old = snapshot;
+        Set<String> current = new HashSet<>(Arrays.asList(usernames));
+        Set<String> previous = new HashSet<>(Arrays.asList(old.names));
+        List<String> added = new ArrayList<>();
+        for (String name : current) {
+            if (!name.isEmpty() && !previous.contains(name)) {
+                added.add(name);
+            }
+        }
+        int removed = 0;
+        for (String name : old.names) {
+            if (!current.contains(name)) {
+                removed++;
+            }
+        }
+        if (added.isEmpty() && removed == 0) {
+            // The usual case: nobody joined or left
+            return;
+        }
+        added.sort((a, b) -> compare(a.toLowerCase(Locale.ROOT), a, b.toLowerCase(Locale.ROOT), b));
+
+        // Merge the old names that are still present with the sorted new ones
+        int size = old.names.length - removed + added.size();
+        String[] keys = new String[size];
+        String[] names = new String[size];
+        int i = 0;
+        int j = 0;
+        int k = 0;
+        while (i < old.names.length || j < added.size()) {
+            if (i < old.names.length && !current.contains(old.names[i])) {
+                i++;
+                continue;
+            }
+            boolean takeOld;
+            if (i >= old.names.length) {
+                takeOld = false;
+            } else if (j >= added.size()) {
+                takeOld = true;
+            } else {
+                String newName = added.get(j);
+                takeOld = compare(old.keys[i], old.names[i], newName.toLowerCase(Locale.ROOT), newName) <= 0;
+            }
+            if (takeOld) {
+                keys[k] = old.keys[i];
+                names[k++] = old.names[i++];
+            } else {
+                String newName = added.get(j++);
+                keys[k] = newName.toLowerCase(Locale.ROOT);
+                names[k++] = newName;
+            }
+        }
+        snapshot = new Snapshot(keys, names);
+    }
+
+    /**
+     * Find usernames starting with the given prefix, ignoring case
+     *
+     * @param prefix The beginning of the username
+     * @param limit  Maximum number of results
+     * @return Matching usernames in alphabetical order, at most limit of them
+     */
+    public List<String> complete(String prefix, int limit) {
+        Snapshot s = snapshot;
+        String key = prefix.toLowerCase(Locale.ROOT);
+        int first = lowerBound(s.keys, key);
+        List<String> result = new ArrayList<>(Math.min(limit, 16));
+        for (int i = first; i < s.keys.length && result.size() < limit && s.keys[i].startsWith(key); i++) {
+            result.add(s.names[i]);
+        }
+        return result.isEmpty() ? Collections.<String>emptyList() : result;
+    }
+
+    /**
+     * @return Number of indexed usernames
+     */
+    public int size() {
+        return snapshot.names.length;
+    }
+
+    /**
+     * @return Index of the first key that is not smaller than the given key
+     */
+    private static int lowerBound(String[] keys, String key) {
+        int low = 0;
+        int high = keys.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (keys[mid].compareTo(key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Order by lower case key; names that differ only in case are ordered by the name itself
+     */
+    private static int compare(String keyA, String nameA, String keyB, String nameB) {
+        int c = keyA.compareTo(keyB);
+        return c != 0 ? c : nameA.compareTo(nameB);
+    }
+}
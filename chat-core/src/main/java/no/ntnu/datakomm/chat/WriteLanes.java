@@ -0,0 +1,52 @@
+package no.ntnu.datakomm.chat;
+
+/**
+ * Decides which thread writes to the socket next. There are two lanes: control commands (login,
+ * users, help, ...) and bulk chat messages. When the socket is free, a waiting control command
+ * always goes before a waiting chat message, so login and presence refreshes don't wait behind a
+ * busy publisher. Within a lane, writers go strictly in the order they arrived, so messages in the
+ * same lane are never reordered.
+ */
+class WriteLanes {
+
+    static final int CONTROL = 0;
+    static final int BULK = 1;
+
+    // Ticket numbers per lane: the next one to give out, and the one whose turn it is
+    private final long[] nextTicket = new long[2];
+    private final long[] serving = new long[2];
+    private boolean busy = false;
+
+    /**
+     * Wait for the turn to write. Must be followed by release() with the same lane.
+     *
+     * @param lane CONTROL or BULK
+     */
+    synchronized void acquire(int lane) {
+        long ticket = nextTicket[lane]++;
+        boolean interrupted = false;
+        while (busy || serving[lane] != ticket || (lane == BULK && serving[CONTROL] != nextTicket[CONTROL])) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                // Giving up the ticket would block the lane, so keep waiting
+                interrupted = true;
+            }
+        }
+        busy = true;
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Let the next writer go
+     *
+     * @param lane The lane given to acquire()
+     */
+    synchronized void release(int lane) {
+        busy = false;
+        serving[lane]++;
+        notifyAll();
+    }
+}
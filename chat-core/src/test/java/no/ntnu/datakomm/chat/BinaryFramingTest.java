@@ -0,0 +1,202 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.DummySupportedReceiver;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the length-prefixed binary framing: encoding and decoding, malformed frames, and the
+ * negotiated switch against a local chat server
+ */
+public class BinaryFramingTest {
+
+    // How many ms to sleep when waiting for server response to arrive
+    private static final int THREAD_SLEEP_TIME = 500;
+
+    private LocalChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new LocalChatServer();
+        server.setBinarySupported(true);
+        server.setDeflateSupported(true);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Returns at most one byte per read, like a connection where every byte arrives separately
+     */
+    private static class OneByteInputStream extends FilterInputStream {
+        OneByteInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            return super.read(b, off, Math.min(1, len));
+        }
+    }
+
+    /**
+     * Frames come back with the same fields, also when they arrive one byte at a time and are
+     * larger than the read buffer
+     *
+     * @throws Exception When the frames can't be read
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryFraming.Writer writer = new BinaryFraming.Writer(bytes, true);
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            large.append("æøå ");
+        }
+        writer.writeLine("msg alice Hello, Ålesund!");
+        writer.writeLine("privmsg bob two\nlines");
+        writer.writeLine("msgok");
+        writer.writeLine("supported login msg binary");
+        writer.writeLine("msg carol " + large);
+        writer.writeLine("weird command");
+        writer.flush();
+
+        BinaryFraming.Reader reader = new BinaryFraming.Reader(
+                new OneByteInputStream(new ByteArrayInputStream(bytes.toByteArray())), 1000000);
+        assertTrue(reader.next());
+        assertEquals(BinaryFraming.OP_MSG, reader.getOpcode());
+        assertEquals("alice", reader.getUser());
+        assertEquals("Hello, Ålesund!", reader.getPayload());
+        assertEquals("msg alice Hello, Ålesund!", reader.toLine());
+        assertTrue(reader.next());
+        assertEquals(BinaryFraming.OP_PRIVMSG, reader.getOpcode());
+        assertEquals("bob", reader.getUser());
+        assertEquals("two\nlines", reader.getPayload());
+        assertTrue(reader.next());
+        assertEquals(BinaryFraming.OP_MSGOK, reader.getOpcode());
+        assertEquals("msgok", reader.toLine());
+        assertTrue(reader.next());
+        assertEquals("", reader.getUser());
+        assertEquals("supported login msg binary", reader.toLine());
+        assertTrue(reader.next());
+        assertEquals("carol", reader.getUser());
+        assertEquals(large.toString(), reader.getPayload());
+        assertTrue(reader.next());
+        assertEquals(BinaryFraming.OP_TEXT, reader.getOpcode());
+        assertEquals("weird command", reader.toLine());
+        assertFalse(reader.next());
+    }
+
+    /**
+     * Frames that are too long, cut off or have fields outside the frame are rejected
+     */
+    @Test
+    public void testMalformedFrames() {
+        // Longer than the limit
+        assertBad(new byte[]{(byte) 0x80, (byte) 0x80, 0x01, 4, 0});
+        // Length varint that never ends
+        assertBad(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x01});
+        // User longer than the frame
+        assertBad(new byte[]{3, 4, 9, 'a'});
+        // Unknown opcode
+        assertBad(new byte[]{2, (byte) 200, 0});
+        // Too short for opcode and user length
+        assertBad(new byte[]{1, 4});
+        // Stream ends inside the frame
+        try {
+            new BinaryFraming.Reader(new ByteArrayInputStream(new byte[]{10, 4, 0, 'a'}), 1000).next();
+            fail("Cut-off frame accepted");
+        } catch (EOFException e) {
+            // Expected
+        } catch (IOException e) {
+            fail(e.toString());
+        }
+    }
+
+    private static void assertBad(byte[] frame) {
+        try {
+            new BinaryFraming.Reader(new ByteArrayInputStream(frame), 1000).next();
+            fail("Bad frame accepted");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * When the server advertises "binary", clients switch to frames (inside the compressed stream
+     * when compression is also used), and talk with clients that still use text lines
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testNegotiatedFraming() throws InterruptedException {
+        TCPClient c1 = new TCPClient();
+        TCPClient c2 = new TCPClient();
+        TCPClient c3 = new TCPClient();
+        c2.setCompressionEnabled(false);
+        c3.setBinaryFramingEnabled(false);
+        assertTrue(c1.connect(server.getHost(), server.getPort()));
+        assertTrue(c2.connect(server.getHost(), server.getPort()));
+        assertTrue(c3.connect(server.getHost(), server.getPort()));
+        c1.startListenThread();
+        c2.startListenThread();
+        c3.startListenThread();
+        DummySupportedReceiver supported = new DummySupportedReceiver();
+        DummyMsgReceiver rec1 = new DummyMsgReceiver();
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        DummyMsgReceiver rec3 = new DummyMsgReceiver();
+        c1.addListener(supported);
+        c1.addListener(rec1);
+        c2.addListener(rec2);
+        c3.addListener(rec3);
+
+        c1.askSupportedCommands();
+        c2.askSupportedCommands();
+        c3.askSupportedCommands();
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(supported.contains("binary"));
+        assertTrue(c1.isBinaryFraming());
+        assertTrue(c1.isCompressed());
+        assertTrue(c2.isBinaryFraming());
+        assertFalse(c2.isCompressed());
+        assertFalse(c3.isBinaryFraming());
+
+        c1.tryLogin("UnitTestBin1");
+        c2.tryLogin("UnitTestBin2");
+        c3.tryLogin("UnitTestText");
+        Thread.sleep(THREAD_SLEEP_TIME);
+        final String MSG_TEXT = "[Unittest] Framed message with UTF-8: Ålesund æøå";
+        for (int i = 0; i < 10; i++) {
+            assertTrue(c1.sendPublicMessage(MSG_TEXT + " " + i));
+        }
+        assertTrue(c3.sendPrivateMessage("UnitTestBin2", "From text to frames"));
+        assertTrue(c2.sendPrivateMessage("UnitTestText", "From frames to text"));
+        Thread.sleep(THREAD_SLEEP_TIME);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(rec2.hasReceived(new TextMessage("UnitTestBin1", false, MSG_TEXT + " " + i)));
+            assertTrue(rec3.hasReceived(new TextMessage("UnitTestBin1", false, MSG_TEXT + " " + i)));
+        }
+        assertTrue(rec2.hasReceived(new TextMessage("UnitTestText", true, "From text to frames")));
+        assertTrue(rec3.hasReceived(new TextMessage("UnitTestBin2", true, "From frames to text")));
+        assertNull(rec1.getMsgError());
+
+        c1.disconnect();
+        c2.disconnect();
+        c3.disconnect();
+    }
+}
@@ -0,0 +1,139 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test traffic capture and replay
+ */
+public class CaptureTest {
+
+    // How many ms to sleep when waiting for server response to arrive
+    private static final int THREAD_SLEEP_TIME = 500;
+
+    private LocalChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new LocalChatServer();
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Record a short session
+     *
+     * @return The capture file contents
+     */
+    private byte[] recordSession() throws Exception {
+        TCPClient c1 = new TCPClient();
+        TCPClient c2 = new TCPClient();
+        assertTrue(c1.connect(server.getHost(), server.getPort()));
+        assertTrue(c2.connect(server.getHost(), server.getPort()));
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        c2.startCapture(file);
+        c1.startListenThread();
+        c2.startListenThread();
+        c1.tryLogin("UnitTestCapture");
+        c2.tryLogin("UnitTestCapture2");
+        Thread.sleep(THREAD_SLEEP_TIME);
+        c1.sendPublicMessage("[Unittest] captured 1");
+        c1.sendPublicMessage("[Unittest] captured 2");
+        c1.sendPrivateMessage("UnitTestCapture2", "[Unittest] captured private");
+        c2.refreshUserList();
+        Thread.sleep(THREAD_SLEEP_TIME);
+        c2.stopCapture();
+        c1.disconnect();
+        c2.disconnect();
+        return file.toByteArray();
+    }
+
+    /**
+     * The capture holds both directions, in order, with increasing timestamps
+     *
+     * @throws Exception When the capture fails or test is interrupted while sleeping
+     */
+    @Test
+    public void testCapture() throws Exception {
+        CaptureReader reader = new CaptureReader(new ByteArrayInputStream(recordSession()));
+        assertTrue(reader.getStartTime() > 0);
+        List<String> lines = new ArrayList<>();
+        long lastNanos = -1;
+        CaptureReader.Record record;
+        while ((record = reader.next()) != null) {
+            assertTrue(record.getNanos() >= lastNanos);
+            lastNanos = record.getNanos();
+            lines.add((record.isInbound() ? "I " : "O ") + record.getLine());
+        }
+        assertTrue(lines.indexOf("O login UnitTestCapture2") < lines.indexOf("I loginok"));
+        assertTrue(lines.contains("I msg UnitTestCapture [Unittest] captured 1"));
+        assertTrue(lines.contains("I privmsg UnitTestCapture [Unittest] captured private"));
+        assertTrue(lines.contains("O users"));
+    }
+
+    /**
+     * Replaying the capture generates the same events as the live session
+     *
+     * @throws Exception When the capture fails or test is interrupted while sleeping
+     */
+    @Test
+    public void testReplay() throws Exception {
+        byte[] file = recordSession();
+
+        CaptureReplayer replayer = new CaptureReplayer();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        DummyMsgReceiver messages = new DummyMsgReceiver();
+        replayer.addListener(counter);
+        replayer.addListener(messages);
+        replayer.replay(new ByteArrayInputStream(file), 0);
+        assertEquals(1, counter.loginSuccess);
+        assertEquals(3, counter.msg);
+        assertEquals(1, counter.userList);
+        assertTrue(messages.hasReceived(new TextMessage("UnitTestCapture", true, "[Unittest] captured private")));
+
+        // With the original timing, the replay takes about as long as the recording
+        long start = System.nanoTime();
+        new CaptureReplayer().replay(new ByteArrayInputStream(file), 1);
+        assertTrue(System.nanoTime() - start >= THREAD_SLEEP_TIME * 1000000L);
+    }
+
+    /**
+     * A capture from a server that offers compression and binary frames replays without trying
+     * to negotiate them
+     *
+     * @throws Exception When the capture fails
+     */
+    @Test
+    public void testReplayWithExtensionsAdvertised() throws Exception {
+        ByteArrayOutputStream file = new ByteArrayOutputStream();
+        TrafficCapture capture = new TrafficCapture(file);
+        capture.record(true, "supported msg privmsg users help deflate binary");
+        capture.record(true, "binaryok");
+        capture.record(true, "msg alice hello");
+        capture.close();
+
+        CaptureReplayer replayer = new CaptureReplayer();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        DummyMsgReceiver messages = new DummyMsgReceiver();
+        replayer.addListener(counter);
+        replayer.addListener(messages);
+        replayer.replay(new ByteArrayInputStream(file.toByteArray()), 0);
+        assertEquals(1, counter.supported);
+        assertTrue(messages.hasReceived(new TextMessage("alice", false, "hello")));
+    }
+}
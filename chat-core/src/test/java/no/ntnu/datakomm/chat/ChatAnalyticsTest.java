@@ -0,0 +1,154 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the message history store and the analytics over it
+ */
+public class ChatAnalyticsTest {
+
+    // How many ms to sleep when waiting for server response to arrive
+    private static final int THREAD_SLEEP_TIME = 500;
+
+    private static final long HOUR = 3600000L;
+    // 2020-01-01 00:00 UTC
+    private static final long START = 1577836800000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Messages are stored in several segments and read back in order
+     *
+     * @throws Exception When the history can't be written or read
+     */
+    @Test
+    public void testHistorySegments() throws Exception {
+        File dir = folder.newFolder("history");
+        MessageHistory history = new MessageHistory(dir, 10);
+        for (int i = 0; i < 25; i++) {
+            history.append(START + i, new TextMessage("user" + (i % 3), i % 5 == 0, "text æøå " + i));
+        }
+        history.close();
+        // Reopening continues in a new segment
+        history = new MessageHistory(dir, 10);
+        history.append(START + 25, new TextMessage("user0", false, "after reopen"));
+        history.close();
+
+        List<File> segments = MessageHistory.listSegments(dir);
+        assertEquals(4, segments.size());
+        List<String> texts = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        for (File segment : segments) {
+            MessageHistory.readSegment(segment, (time, message) -> {
+                times.add(time);
+                texts.add(message.getText());
+            });
+        }
+        assertEquals(26, texts.size());
+        assertEquals("text æøå 0", texts.get(0));
+        assertEquals("text æøå 24", texts.get(24));
+        assertEquals("after reopen", texts.get(25));
+        for (int i = 0; i < times.size(); i++) {
+            assertEquals(START + i, (long) times.get(i));
+        }
+    }
+
+    /**
+     * Counters are exact, and the same whether segments are analysed in parallel or one by one
+     *
+     * @throws Exception When the history can't be written or read
+     */
+    @Test
+    public void testReport() throws Exception {
+        File dir = folder.newFolder("history");
+        MessageHistory history = new MessageHistory(dir, 1000);
+        int count = 20000;
+        for (int i = 0; i < count; i++) {
+            // Sender i % 4, one message in ten private, ten messages per hour
+            history.append(START + (i / 10) * HOUR, new TextMessage("user" + (i % 4), i % 10 == 0,
+                    "Hello world, message " + (i % 7 == 0 ? "spam spam" : "ok") + " no"));
+        }
+        history.close();
+
+        AtomicInteger segmentReports = new AtomicInteger();
+        ChatAnalytics.Report parallel = new ChatAnalytics(new ForkJoinPool(4)).analyze(dir,
+                r -> segmentReports.incrementAndGet());
+        ChatAnalytics.Report sequential = new ChatAnalytics(new ForkJoinPool(1)).analyze(dir);
+        assertEquals(20, segmentReports.get());
+
+        for (ChatAnalytics.Report report : new ChatAnalytics.Report[]{parallel, sequential}) {
+            assertEquals(count, report.getMessageCount());
+            assertEquals(count / 10, report.getPrivateCount());
+            assertEquals(count - count / 10, report.getPublicCount());
+            assertEquals(1.0 / 9, report.getPrivatePublicRatio(), 1e-9);
+            assertEquals(4, report.getMessagesPerSender().size());
+            assertEquals(count / 4, (long) report.getMessagesPerSender().get("user3"));
+            assertEquals(count / 10, report.getMessagesPerHour().size());
+            assertEquals(START, (long) report.getMessagesPerHour().firstKey());
+            assertEquals(10, (long) report.getMessagesPerHour().get(START + 5 * HOUR));
+
+            List<Map.Entry<String, Long>> top = report.getTopTerms(3);
+            assertEquals(3, top.size());
+            // "hello", "world" and "message" are in every message; ties are ordered alphabetically
+            assertEquals("hello", top.get(0).getKey());
+            assertEquals("message", top.get(1).getKey());
+            assertEquals("world", top.get(2).getKey());
+            assertEquals(count, (long) top.get(0).getValue());
+            // "no" is too short to be a term
+            assertFalse(report.getTopTerms(100).stream().anyMatch(e -> e.getKey().equals("no")));
+            long spam = (count + 6) / 7 * 2;
+            assertEquals(spam, (long) report.getTopTerms(4).get(3).getValue());
+        }
+    }
+
+    /**
+     * A client with the history as listener stores the messages it receives
+     *
+     * @throws Exception When the test server fails or test is interrupted while sleeping
+     */
+    @Test
+    public void testHistoryListener() throws Exception {
+        LocalChatServer server = new LocalChatServer();
+        server.start();
+        try {
+            File dir = folder.newFolder("history");
+            MessageHistory history = new MessageHistory(dir, 1000);
+            TCPClient sender = new TCPClient();
+            TCPClient receiver = new TCPClient();
+            assertTrue(sender.connect(server.getHost(), server.getPort()));
+            assertTrue(receiver.connect(server.getHost(), server.getPort()));
+            receiver.addListener(history);
+            sender.startListenThread();
+            receiver.startListenThread();
+            sender.tryLogin("UnitTestHistory");
+            receiver.tryLogin("UnitTestHistory2");
+            Thread.sleep(THREAD_SLEEP_TIME);
+            sender.sendPublicMessage("[Unittest] stored");
+            sender.sendPrivateMessage("UnitTestHistory2", "[Unittest] stored private");
+            Thread.sleep(THREAD_SLEEP_TIME);
+            sender.disconnect();
+            receiver.disconnect();
+            history.close();
+
+            ChatAnalytics.Report report = new ChatAnalytics().analyze(dir);
+            assertEquals(2, report.getMessageCount());
+            assertEquals(1, report.getPrivateCount());
+            assertEquals(2, (long) report.getMessagesPerSender().get("UnitTestHistory"));
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the asynchronous log: formatting, levels, rate limiting, a full buffer and the rolling file
+ */
+public class ChatLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Collects the lines in memory. Can be made to block, like a slow console.
+     */
+    private static class ListOutput implements ChatLog.Output {
+        final List<String> lines = new CopyOnWriteArrayList<>();
+        final CountDownLatch entered = new CountDownLatch(1);
+        volatile CountDownLatch blocked = null;
+
+        @Override
+        public void write(String line) throws IOException {
+            entered.countDown();
+            CountDownLatch b = blocked;
+            if (b != null) {
+                try {
+                    b.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            lines.add(line);
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+
+    /**
+     * Messages from many threads are all written, formatted, and messages below the level are not
+     *
+     * @throws Exception When test is interrupted while waiting
+     */
+    @Test
+    public void testFormatAndLevels() throws Exception {
+        ListOutput out = new ListOutput();
+        ChatLog log = new ChatLog(out, ChatLog.Level.INFO, 4096, 0);
+        log.debug("not {}", "shown");
+        log.info("Connected to {}:{}", "localhost", 1300);
+        log.warn("No arguments {}");
+        log.error("Too few {} {} {}", "a", "b");
+        assertTrue(log.flush(2000));
+        assertEquals(3, out.lines.size());
+        assertTrue(out.lines.get(0), out.lines.get(0).endsWith(" INFO  [main] Connected to localhost:1300"));
+        assertTrue(out.lines.get(1).endsWith(" WARN  [main] No arguments {}"));
+        assertTrue(out.lines.get(2).endsWith(" ERROR [main] Too few a b {}"));
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 500; i++) {
+                    log.info("Message {}", i);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(log.flush(2000));
+        assertEquals(3 + 2000, out.lines.size());
+        assertEquals(0, log.getDroppedCount());
+        log.close(1000);
+    }
+
+    /**
+     * A message repeated many times is logged at the rate limit, and the next one after the limit
+     * window tells how many were suppressed
+     *
+     * @throws Exception When test is interrupted while sleeping
+     */
+    @Test
+    public void testRateLimit() throws Exception {
+        ListOutput out = new ListOutput();
+        ChatLog log = new ChatLog(out, ChatLog.Level.DEBUG, 4096, 10);
+        for (int i = 0; i < 100; i++) {
+            log.warn("Unknown server command: {}", i);
+        }
+        log.info("Other format");
+        assertTrue(log.flush(2000));
+        assertEquals(11, out.lines.size());
+        assertEquals(90, log.getSuppressedCount());
+        Thread.sleep(1100);
+        log.warn("Unknown server command: {}", "late");
+        assertTrue(log.flush(2000));
+        assertTrue(out.lines.get(11), out.lines.get(11).endsWith("late (90 similar messages suppressed)"));
+        log.close(1000);
+    }
+
+    /**
+     * When the writer is stuck, logging does not block: messages are dropped, and the drop is
+     * reported when the writer continues
+     *
+     * @throws Exception When test is interrupted while waiting
+     */
+    @Test
+    public void testFullBufferDoesNotBlock() throws Exception {
+        ListOutput out = new ListOutput();
+        out.blocked = new CountDownLatch(1);
+        ChatLog log = new ChatLog(out, ChatLog.Level.INFO, 16, 0);
+        log.info("Message {}", 0);
+        assertTrue(out.entered.await(2, TimeUnit.SECONDS));
+        long start = System.nanoTime();
+        for (int i = 1; i < 1000; i++) {
+            log.info("Message {}", i);
+        }
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Logging took " + millis + " ms", millis < 500);
+        // The writer holds one message, the buffer 16
+        assertEquals(1000 - 17, log.getDroppedCount());
+        out.blocked.countDown();
+        out.blocked = null;
+        assertTrue(log.flush(2000));
+        assertEquals(18, out.lines.size());
+        assertEquals("Log buffer full, 983 messages dropped", out.lines.get(17));
+        log.close(1000);
+    }
+
+    /**
+     * The log file is rolled over when it gets too big, and only the given number of old files is
+     * kept
+     *
+     * @throws Exception When the log files can't be read
+     */
+    @Test
+    public void testRollingFile() throws Exception {
+        File file = new File(folder.getRoot(), "chat.log");
+        ChatLog log = new ChatLog(new ChatLog.RollingFileOutput(file, 1000, 2), ChatLog.Level.INFO, 4096, 0);
+        for (int i = 0; i < 100; i++) {
+            log.info("Line number {} with some padding to make it longer", i);
+        }
+        log.close(2000);
+        assertTrue(file.exists() || new File(file.getPath() + ".1").exists());
+        assertTrue(new File(file.getPath() + ".2").exists());
+        assertFalse(new File(file.getPath() + ".3").exists());
+        List<String> last = new ArrayList<>();
+        if (file.exists()) {
+            last = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        }
+        if (last.isEmpty()) {
+            last = Files.readAllLines(new File(file.getPath() + ".1").toPath(), StandardCharsets.UTF_8);
+        }
+        assertTrue(last.get(last.size() - 1).endsWith("Line number 99 with some padding to make it longer"));
+        assertTrue(new File(file.getPath() + ".2").length() <= 1100);
+    }
+}
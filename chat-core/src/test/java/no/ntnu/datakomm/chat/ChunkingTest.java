@@ -0,0 +1,207 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test chunked framing of multi-line and large messages
+ */
+public class ChunkingTest {
+
+    // How many ms to sleep when waiting for server response to arrive
+    private static final int THREAD_SLEEP_TIME = 500;
+
+    private LocalChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new LocalChatServer();
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Frames never contain newlines, and the reassembled text equals the original
+     *
+     * @throws IOException When reading the text fails
+     */
+    @Test
+    public void testEncodeDecode() throws IOException {
+        String text = "line 1\nline 2\r\n\\n is not a newline\n~chunk 1 2 $ fake\nemoji 😀 end";
+        ChunkFraming.Encoder encoder = new ChunkFraming.Encoder(new StringReader(text), 7, 10);
+        ChunkFraming.Reassembler reassembler = new ChunkFraming.Reassembler(1000);
+        String frame;
+        String result = null;
+        int frames = 0;
+        while ((frame = encoder.nextFrame()) != null) {
+            assertEquals(-1, frame.indexOf('\n'));
+            assertEquals(-1, frame.indexOf('\r'));
+            assertNull(result);
+            result = reassembler.accept(false, "someone", frame);
+            frames++;
+        }
+        assertTrue(frames > 5);
+        assertEquals(text, result);
+    }
+
+    /**
+     * A message with a missing frame is discarded
+     *
+     * @throws IOException When reading the text fails
+     */
+    @Test
+    public void testMissingFrame() throws IOException {
+        ChunkFraming.Encoder encoder = new ChunkFraming.Encoder(new StringReader("0123456789abcdefghij"), 1, 8);
+        ChunkFraming.Reassembler reassembler = new ChunkFraming.Reassembler(1000);
+        assertNull(reassembler.accept(false, "someone", encoder.nextFrame()));
+        encoder.nextFrame(); // Lost
+        String frame;
+        while ((frame = encoder.nextFrame()) != null) {
+            assertNull(reassembler.accept(false, "someone", frame));
+        }
+        assertEquals(1, reassembler.getDiscardedCount());
+    }
+
+    /**
+     * Messages whose last frame never comes are evicted to make room, so new chunked messages
+     * still get through; a new connection forgets them all
+     *
+     * @throws IOException When reading the text fails
+     */
+    @Test
+    public void testAbandonedMessagesEvicted() throws IOException {
+        ChunkFraming.Reassembler reassembler = new ChunkFraming.Reassembler(1000);
+        for (int i = 0; i < 100; i++) {
+            ChunkFraming.Encoder abandoned = new ChunkFraming.Encoder(new StringReader("0123456789abcdef"), 1, 8);
+            assertNull(reassembler.accept(false, "gone" + i, abandoned.nextFrame()));
+        }
+        ChunkFraming.Encoder encoder = new ChunkFraming.Encoder(new StringReader("0123456789abcdef"), 1, 8);
+        String frame;
+        String result = null;
+        while ((frame = encoder.nextFrame()) != null) {
+            result = reassembler.accept(false, "someone", frame);
+        }
+        assertEquals("0123456789abcdef", result);
+        // Room was made for the last 64 abandoned messages and for the new one
+        assertEquals(100 - 64 + 1, reassembler.getDiscardedCount());
+
+        reassembler.clear();
+        assertEquals(100, reassembler.getDiscardedCount());
+    }
+
+    /**
+     * All unfinished messages together stay within the budget: the least recently active ones are
+     * discarded to make room, and a message larger than the budget is discarded itself
+     *
+     * @throws IOException When reading the text fails
+     */
+    @Test
+    public void testTotalBudget() throws IOException {
+        ChunkFraming.Reassembler reassembler = new ChunkFraming.Reassembler(100);
+        ChunkFraming.Encoder first = new ChunkFraming.Encoder(new StringReader(repeat('a', 200)), 1, 50);
+        ChunkFraming.Encoder second = new ChunkFraming.Encoder(new StringReader(repeat('b', 90)), 2, 50);
+        assertNull(reassembler.accept(false, "someone", first.nextFrame()));
+        // The second message needs the room held by the first one
+        String frame;
+        String result = null;
+        while ((frame = second.nextFrame()) != null) {
+            result = reassembler.accept(false, "someone", frame);
+        }
+        assertEquals(repeat('b', 90), result);
+        assertEquals(1, reassembler.getDiscardedCount());
+
+        ChunkFraming.Encoder tooLarge = new ChunkFraming.Encoder(new StringReader(repeat('c', 200)), 3, 50);
+        while ((frame = tooLarge.nextFrame()) != null) {
+            assertNull(reassembler.accept(false, "someone", frame));
+        }
+        assertEquals(2, reassembler.getDiscardedCount());
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A multi-line message arrives as one message
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testMultiLineMessage() throws InterruptedException {
+        TCPClient c1 = new TCPClient();
+        TCPClient c2 = new TCPClient();
+        assertTrue(c1.connect(server.getHost(), server.getPort()));
+        assertTrue(c2.connect(server.getHost(), server.getPort()));
+        c1.startListenThread();
+        c2.startListenThread();
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        c2.addListener(rec2);
+        c2.addListener(counter);
+        c1.tryLogin("UnitTestLines");
+        c2.tryLogin("UnitTestLines2");
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        final String MSG_TEXT = "[Unittest] first line\nsecond line\nthird line";
+        assertTrue(c1.sendPublicMessage(MSG_TEXT));
+        assertTrue(c1.sendPrivateMessage("UnitTestLines2", MSG_TEXT));
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(rec2.hasReceived(new TextMessage("UnitTestLines", false, MSG_TEXT)));
+        assertTrue(rec2.hasReceived(new TextMessage("UnitTestLines", true, MSG_TEXT)));
+        assertEquals(2, counter.msg);
+
+        c1.disconnect();
+        c2.disconnect();
+    }
+
+    /**
+     * A large message from a stream is sent in many frames and arrives as one message
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testLargeStreamedMessage() throws InterruptedException {
+        TCPClient c1 = new TCPClient();
+        TCPClient c2 = new TCPClient();
+        c1.setMaxFrameLength(500);
+        assertTrue(c1.connect(server.getHost(), server.getPort()));
+        assertTrue(c2.connect(server.getHost(), server.getPort()));
+        c2.startListenThread();
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        c2.addListener(rec2);
+        c1.tryLogin("UnitTestLarge");
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            expected.append("row ").append(i).append('\n');
+        }
+        long bytesBefore = server.getBytesReceived();
+        Reader text = new StringReader(expected.toString());
+        assertTrue(c1.sendPublicMessage(text));
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(rec2.hasReceived(new TextMessage("UnitTestLarge", false, expected.toString())));
+        assertTrue(server.getBytesReceived() - bytesBefore > expected.length());
+
+        c1.disconnect();
+        c2.disconnect();
+    }
+}
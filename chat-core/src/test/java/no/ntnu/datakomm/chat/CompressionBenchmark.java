@@ -0,0 +1,83 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+
+/**
+ * Compare plain and compressed connections: bytes on the wire and CPU time per message. One client
+ * sends chat-like messages through a local server to another client. Run it with the test classpath:
+ * <p>
+ * {@code java -cp target/classes:target/test-classes no.ntnu.datakomm.chat.CompressionBenchmark [messages]}
+ */
+public class CompressionBenchmark {
+
+    // Typical chat traffic: short, repetitive sentences
+    private static final String[] SAMPLE_TEXTS = {
+            "hi everyone, is the server up again?",
+            "yes, the server is up again, I just logged in",
+            "did anyone finish the assignment for tomorrow?",
+            "not yet, the assignment for tomorrow is quite long",
+            "see you all in the lab tomorrow"
+    };
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        // Warm up both paths first, then measure
+        run(false, messages / 10, false);
+        run(true, messages / 10, false);
+        run(false, messages, true);
+        run(true, messages, true);
+    }
+
+    private static void run(boolean compress, int messages, boolean report) throws Exception {
+        LocalChatServer server = new LocalChatServer();
+        server.setDeflateSupported(true);
+        server.start();
+
+        TCPClient sender = new TCPClient();
+        TCPClient receiver = new TCPClient();
+        sender.setCompressionEnabled(compress);
+        receiver.setCompressionEnabled(compress);
+        sender.connect(server.getHost(), server.getPort());
+        receiver.connect(server.getHost(), server.getPort());
+        sender.startListenThread();
+        receiver.startListenThread();
+        sender.askSupportedCommands();
+        receiver.askSupportedCommands();
+        sender.tryLogin("bench");
+        Thread.sleep(500);
+
+        CountDownLatch received = new CountDownLatch(messages);
+        receiver.addListener(new EmptyChatListener() {
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                received.countDown();
+            }
+        });
+
+        long bytesBefore = server.getBytesReceived() + server.getBytesSent();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long cpuBefore = threads.getCurrentThreadCpuTime();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            sender.sendPublicMessage(SAMPLE_TEXTS[i % SAMPLE_TEXTS.length] + " #" + i);
+        }
+        long sendCpu = threads.getCurrentThreadCpuTime() - cpuBefore;
+        received.await();
+        long elapsed = System.nanoTime() - start;
+        long bytes = server.getBytesReceived() + server.getBytesSent() - bytesBefore;
+
+        if (report) {
+            System.out.printf("%-10s messages=%d wire bytes/msg=%.1f sender CPU/msg=%.2fus total time=%dms%n",
+                    compress ? "deflate" : "plain", messages, (double) bytes / messages,
+                    sendCpu / 1000.0 / messages, elapsed / 1000000);
+        }
+        sender.disconnect();
+        receiver.disconnect();
+        server.stop();
+    }
+}
@@ -0,0 +1,115 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.DummySupportedReceiver;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the negotiated stream compression against a local chat server
+ */
+public class CompressionTest {
+
+    // How many ms to sleep when waiting for server response to arrive
+    private static final int THREAD_SLEEP_TIME = 500;
+
+    private LocalChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new LocalChatServer();
+        server.setDeflateSupported(true);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * When the server advertises "deflate", both clients switch to compression and messages still
+     * arrive intact
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testCompressedMessages() throws InterruptedException {
+        TCPClient c1 = new TCPClient();
+        TCPClient c2 = new TCPClient();
+        assertTrue(c1.connect(server.getHost(), server.getPort()));
+        assertTrue(c2.connect(server.getHost(), server.getPort()));
+        c1.startListenThread();
+        c2.startListenThread();
+        DummySupportedReceiver supported = new DummySupportedReceiver();
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        c1.addListener(supported);
+        c2.addListener(rec2);
+
+        c1.askSupportedCommands();
+        c2.askSupportedCommands();
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(supported.contains("deflate"));
+        assertTrue(c1.isCompressed());
+        assertTrue(c2.isCompressed());
+
+        c1.tryLogin("UnitTestZip");
+        Thread.sleep(THREAD_SLEEP_TIME);
+        final String MSG_TEXT = "[Unittest] Compressed message with UTF-8: Ålesund æøå";
+        for (int i = 0; i < 10; i++) {
+            assertTrue(c1.sendPublicMessage(MSG_TEXT + " " + i));
+        }
+        Thread.sleep(THREAD_SLEEP_TIME);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(rec2.hasReceived(new TextMessage("UnitTestZip", false, MSG_TEXT + " " + i)));
+        }
+
+        c1.disconnect();
+        c2.disconnect();
+    }
+
+    /**
+     * When compression is disabled on the client, the connection stays plain even if the server
+     * supports compression
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testCompressionDisabled() throws InterruptedException {
+        TCPClient c1 = new TCPClient();
+        c1.setCompressionEnabled(false);
+        assertTrue(c1.connect(server.getHost(), server.getPort()));
+        c1.startListenThread();
+        c1.askSupportedCommands();
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertFalse(c1.isCompressed());
+        c1.disconnect();
+    }
+
+    /**
+     * When the server does not advertise "deflate", the client does not ask for it
+     *
+     * @throws Exception When test is interrupted while sleeping or the server can't start
+     */
+    @Test
+    public void testServerWithoutCompression() throws Exception {
+        LocalChatServer plainServer = new LocalChatServer();
+        plainServer.start();
+        TCPClient c1 = new TCPClient();
+        assertTrue(c1.connect(plainServer.getHost(), plainServer.getPort()));
+        c1.startListenThread();
+        DummySupportedReceiver supported = new DummySupportedReceiver();
+        c1.addListener(supported);
+        c1.askSupportedCommands();
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(supported.contains("msg"));
+        assertFalse(supported.contains("deflate"));
+        assertFalse(c1.isCompressed());
+        c1.disconnect();
+        plainServer.stop();
+    }
+}
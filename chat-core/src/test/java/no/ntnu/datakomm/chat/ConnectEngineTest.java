@@ -0,0 +1,171 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the connect engine: timeouts, address cache, address racing and socket options
+ */
+public class ConnectEngineTest {
+
+    // An address that never answers (TEST-NET-1, RFC 5737): the attempt either hangs or fails at once
+    private static final String BLACKHOLE = "192.0.2.1";
+
+    private LocalChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new LocalChatServer();
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Resolver that returns fixed addresses and counts the lookups
+     */
+    private static class FixedResolver implements ConnectEngine.Resolver {
+        final AtomicInteger lookups = new AtomicInteger();
+        final InetAddress[] addresses;
+
+        FixedResolver(String... ips) throws IOException {
+            addresses = new InetAddress[ips.length];
+            for (int i = 0; i < ips.length; i++) {
+                addresses[i] = InetAddress.getByName(ips[i]);
+            }
+        }
+
+        @Override
+        public InetAddress[] resolve(String host) {
+            lookups.incrementAndGet();
+            return addresses;
+        }
+    }
+
+    /**
+     * The socket options are set, and the connect is measured
+     *
+     * @throws Exception When connecting fails
+     */
+    @Test
+    public void testSocketOptionsAndMetrics() throws Exception {
+        ConnectEngine engine = new ConnectEngine();
+        engine.setBufferSizes(32768, 65536);
+        Socket socket = engine.connect(server.getHost(), server.getPort());
+        assertTrue(socket.isConnected());
+        assertTrue(socket.getTcpNoDelay());
+        assertTrue(socket.getKeepAlive());
+        socket.close();
+        assertEquals(1, engine.getConnectCount());
+        assertEquals(0, engine.getFailureCount());
+        assertTrue(engine.getLastConnectNanos() > 0);
+        assertEquals(engine.getLastConnectNanos(), engine.getMaxConnectNanos());
+        assertEquals(InetAddress.getByName(server.getHost()), engine.getLastAddress());
+    }
+
+    /**
+     * Resolved addresses are reused until the TTL expires
+     *
+     * @throws Exception When connecting fails or test is interrupted while sleeping
+     */
+    @Test
+    public void testDnsCache() throws Exception {
+        FixedResolver resolver = new FixedResolver("127.0.0.1");
+        ConnectEngine engine = new ConnectEngine(resolver);
+        engine.setDnsTtl(300);
+        engine.connect("chat.example", server.getPort()).close();
+        engine.connect("chat.example", server.getPort()).close();
+        assertEquals(1, resolver.lookups.get());
+        assertEquals(1, engine.getDnsHits());
+        Thread.sleep(400);
+        engine.connect("chat.example", server.getPort()).close();
+        assertEquals(2, resolver.lookups.get());
+        assertEquals(2, engine.getDnsMisses());
+    }
+
+    /**
+     * When the first address does not answer, the next one is tried after the attempt delay
+     * instead of after the connect timeout
+     *
+     * @throws Exception When connecting fails
+     */
+    @Test
+    public void testAddressRacing() throws Exception {
+        ConnectEngine engine = new ConnectEngine(new FixedResolver(BLACKHOLE, "127.0.0.1"));
+        engine.setConnectTimeout(10000);
+        engine.setAttemptDelay(100);
+        long start = System.currentTimeMillis();
+        Socket socket = engine.connect("chat.example", server.getPort());
+        long elapsed = System.currentTimeMillis() - start;
+        assertEquals(InetAddress.getByName("127.0.0.1"), socket.getInetAddress());
+        assertTrue("Connect took " + elapsed + " ms", elapsed < 2000);
+        assertEquals(2, engine.getAttemptCount());
+        socket.close();
+    }
+
+    /**
+     * A server that doesn't answer fails within the connect timeout
+     */
+    @Test
+    public void testTimeout() {
+        ConnectEngine engine = new ConnectEngine();
+        engine.setConnectTimeout(300);
+        long start = System.currentTimeMillis();
+        try {
+            engine.connect(BLACKHOLE, 1300).close();
+            fail("Connected to an address that should not answer");
+        } catch (IOException e) {
+            // Expected
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Connect took " + elapsed + " ms", elapsed < 2000);
+        assertEquals(1, engine.getFailureCount());
+        assertEquals(0, engine.getConnectCount());
+    }
+
+    /**
+     * The families of the resolved addresses alternate, starting with the preferred one
+     *
+     * @throws Exception When the addresses can't be created
+     */
+    @Test
+    public void testInterleave() throws Exception {
+        InetAddress[] addresses = new FixedResolver("::1", "::2", "::3", "10.0.0.1", "10.0.0.2").addresses;
+        List<InetAddress> ordered = ConnectEngine.interleave(addresses);
+        String[] expected = {"::1", "10.0.0.1", "::2", "10.0.0.2", "::3"};
+        assertEquals(expected.length, ordered.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(InetAddress.getByName(expected[i]), ordered.get(i));
+        }
+    }
+
+    /**
+     * TCPClient connects through its engine, also with a connect timeout
+     */
+    @Test
+    public void testClientUsesEngine() {
+        TCPClient client = new TCPClient();
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        assertEquals(1, client.getConnectEngine().getConnectCount());
+        client.disconnect();
+
+        client.getConnectEngine().setConnectTimeout(300);
+        long start = System.currentTimeMillis();
+        assertFalse(client.connect(BLACKHOLE, 1300));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertFalse(client.isConnectionActive());
+    }
+}
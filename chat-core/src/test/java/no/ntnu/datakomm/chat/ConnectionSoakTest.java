@@ -0,0 +1,197 @@
+package no.ntnu.datakomm.chat;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.sun.management.UnixOperatingSystemMXBean;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Soak test: clients connect, log in, send, poll the user list and disconnect, over and over, against
+ * a local server. Between cycles the test checks that threads, heap, file descriptors and listeners
+ * don't grow. The normal build runs it for a few seconds; run it for hours with -Psoak (or set the
+ * duration with -Dsoak.seconds=N).
+ */
+public class ConnectionSoakTest {
+
+    // Clients per cycle, and messages each of them sends
+    private static final int CLIENTS = 5;
+    private static final int MESSAGES = 20;
+    // Check resources every this many cycles (the first check is the baseline)
+    private static final int CHECK_EVERY = 10;
+    // How much resources may grow over the baseline
+    private static final int THREAD_SLACK = 10;
+    private static final int FD_SLACK = 20;
+    private static final long HEAP_SLACK = 32L * 1024 * 1024;
+
+    private LocalChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new LocalChatServer();
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Does what GUIController does with the events, without JavaFX: keeps a window of recent
+     * messages, the user list and the autocomplete index.
+     */
+    private static class GuiLikeListener extends EmptyChatListener {
+        private static final int WINDOW = 500;
+        private final LinkedList<TextMessage> messages = new LinkedList<>();
+        private final UsernameIndex usernames = new UsernameIndex();
+        private String[] userList = new String[0];
+
+        @Override
+        public synchronized void onMessageReceived(TextMessage message) {
+            messages.add(message);
+            if (messages.size() > WINDOW) {
+                messages.removeFirst();
+            }
+        }
+
+        @Override
+        public synchronized void onUserList(String[] usernames) {
+            this.usernames.update(usernames);
+            userList = usernames;
+        }
+    }
+
+    /**
+     * Cycle clients until the soak duration is over, check resources every few cycles
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testNoResourceGrowth() throws InterruptedException {
+        long durationMs = Long.getLong("soak.seconds", 5) * 1000;
+        long deadline = System.currentTimeMillis() + durationMs;
+
+        // One long-lived client reconnects every cycle and re-registers its listener, like the GUI does
+        TCPClient reconnecting = new TCPClient();
+        GuiLikeListener reconnectingListener = new GuiLikeListener();
+
+        int cycle = 0;
+        long baseThreads = -1;
+        long baseHeap = -1;
+        long baseFds = -1;
+        while (System.currentTimeMillis() < deadline) {
+            List<TCPClient> clients = new ArrayList<>();
+            assertTrue(reconnecting.connect(server.getHost(), server.getPort()));
+            reconnecting.addListener(reconnectingListener);
+            reconnecting.startListenThread();
+            clients.add(reconnecting);
+            for (int i = 0; i < CLIENTS; i++) {
+                TCPClient c = new TCPClient();
+                assertTrue(c.connect(server.getHost(), server.getPort()));
+                c.addListener(new GuiLikeListener());
+                c.startListenThread();
+                clients.add(c);
+            }
+            for (int i = 0; i < clients.size(); i++) {
+                clients.get(i).tryLogin("soak" + i);
+            }
+            for (int m = 0; m < MESSAGES; m++) {
+                for (TCPClient c : clients) {
+                    c.sendPublicMessage("soak message " + m);
+                    if (m % 5 == 0) {
+                        c.refreshUserList();
+                    }
+                }
+            }
+            Thread.sleep(50);
+
+            // While connected: exactly one listen thread per client, however often the list was refreshed
+            assertEquals(clients.size(), countThreads("TCPClient-listen"));
+            assertEquals(1, reconnecting.getListenerCount());
+
+            for (TCPClient c : clients) {
+                c.disconnect();
+            }
+            cycle++;
+
+            if (cycle % CHECK_EVERY == 0) {
+                waitForServerSessions(0);
+                assertEquals(0, waitForThreadsToExit("TCPClient-listen"));
+                Thread.sleep(100);
+                long threads = ManagementFactory.getThreadMXBean().getThreadCount();
+                long heap = heapAfterGc();
+                long fds = openFileDescriptors();
+                if (baseThreads < 0) {
+                    baseThreads = threads;
+                    baseHeap = heap;
+                    baseFds = fds;
+                } else {
+                    assertTrue("Threads grew from " + baseThreads + " to " + threads + " after " + cycle + " cycles",
+                            threads <= baseThreads + THREAD_SLACK);
+                    assertTrue("Heap grew from " + baseHeap + " to " + heap + " after " + cycle + " cycles",
+                            heap <= baseHeap + HEAP_SLACK);
+                    assertTrue("File descriptors grew from " + baseFds + " to " + fds + " after " + cycle + " cycles",
+                            fds <= baseFds + FD_SLACK);
+                }
+            }
+        }
+        assertTrue(cycle > 0);
+        assertEquals(0, waitForThreadsToExit("TCPClient-listen"));
+    }
+
+    private static int countThreads(String name) {
+        int count = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(t.getName()) && t.isAlive()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Threads of closed connections need a moment to notice. Wait until they are gone.
+     *
+     * @return Number of threads still alive after waiting
+     */
+    private static int waitForThreadsToExit(String name) throws InterruptedException {
+        int count = countThreads(name);
+        for (int i = 0; i < 100 && count > 0; i++) {
+            Thread.sleep(10);
+            count = countThreads(name);
+        }
+        return count;
+    }
+
+    private void waitForServerSessions(int sessions) throws InterruptedException {
+        for (int i = 0; i < 100 && server.getSessionCount() > sessions; i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static long heapAfterGc() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * @return Open file descriptors of this process, or 0 where that can't be measured
+     */
+    private static long openFileDescriptors() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof UnixOperatingSystemMXBean) {
+            return ((UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount();
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,103 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compare decoding incoming chat messages from text lines and from binary frames: the text path
+ * scans for the newline and splits the line on spaces, as TCPClient does; the binary path reads the
+ * fields from the frame. The streams are in memory, so only the decoding is measured. Run it with
+ * the test classpath:
+ * <p>
+ * {@code java -cp target/classes:target/test-classes no.ntnu.datakomm.chat.FramingBenchmark [messages] [length]}
+ */
+public class FramingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int length = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append("see you all in the lab tomorrow, æøå ");
+        }
+        String message = text.substring(0, length);
+
+        ByteArrayOutputStream lines = new ByteArrayOutputStream();
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        BinaryFraming.Writer writer = new BinaryFraming.Writer(frames, true);
+        for (int i = 0; i < messages; i++) {
+            String line = "msg user" + (i % 50) + " " + message;
+            lines.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+            writer.writeLine(line);
+        }
+        byte[] lineBytes = lines.toByteArray();
+        byte[] frameBytes = frames.toByteArray();
+
+        // Warm up both paths first, then measure
+        for (int i = 0; i < 5; i++) {
+            decodeLines(lineBytes);
+            decodeFrames(frameBytes);
+        }
+        report("text", messages, lineBytes.length, time(() -> decodeLines(lineBytes)));
+        report("binary", messages, frameBytes.length, time(() -> decodeFrames(frameBytes)));
+    }
+
+    private interface Decode {
+        long run() throws IOException;
+    }
+
+    /**
+     * @return Best time of several runs, in nanoseconds
+     */
+    private static long time(Decode decode) throws IOException {
+        long best = Long.MAX_VALUE;
+        long check = 0;
+        for (int i = 0; i < 10; i++) {
+            long start = System.nanoTime();
+            check += decode.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        if (check == 42) {
+            // Never true, keeps the result alive
+            System.out.println();
+        }
+        return best;
+    }
+
+    private static void report(String name, int messages, int bytes, long nanos) {
+        System.out.printf("%-7s messages=%d bytes/msg=%.1f decode time/msg=%.1fns%n",
+                name, messages, (double) bytes / messages, (double) nanos / messages);
+    }
+
+    /**
+     * The text path of TCPClient: read a line, split off the command, then the sender
+     */
+    private static long decodeLines(byte[] bytes) throws IOException {
+        LineReader reader = new LineReader(new ByteArrayInputStream(bytes));
+        long sum = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            String[] arg = line.split(" ", 2);
+            String[] senderAndText = arg[1].split(" ", 2);
+            sum += senderAndText[0].length() + senderAndText[1].length();
+        }
+        return sum;
+    }
+
+    /**
+     * The binary path of TCPClient: read a frame, take the sender and the text
+     */
+    private static long decodeFrames(byte[] bytes) throws IOException {
+        BinaryFraming.Reader reader = new BinaryFraming.Reader(new ByteArrayInputStream(bytes),
+                BinaryFraming.DEFAULT_MAX_FRAME_LENGTH);
+        long sum = 0;
+        while (reader.next()) {
+            if (reader.getOpcode() == BinaryFraming.OP_MSG) {
+                sum += reader.getUser().length() + reader.getPayload().length();
+            }
+        }
+        return sum;
+    }
+}
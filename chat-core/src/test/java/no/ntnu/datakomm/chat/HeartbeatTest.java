@@ -0,0 +1,118 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test dead connection detection with the heartbeat, and the timer wheel it runs on
+ */
+public class HeartbeatTest {
+
+    private LocalChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new LocalChatServer();
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Timeouts fire after their delay, in order, and cancelled ones never fire
+     *
+     * @throws Exception When test is interrupted while waiting
+     */
+    @Test
+    public void testTimerWheel() throws Exception {
+        // Few slots, so the longer delays need several turns of the wheel
+        TimerWheel wheel = new TimerWheel(10, 8);
+        List<Integer> fired = new CopyOnWriteArrayList<>();
+        CountDownLatch done = new CountDownLatch(3);
+        long start = System.nanoTime();
+        long[] firedAfter = new long[4];
+        int[] delays = {250, 30, 120, 60};
+        TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[delays.length];
+        for (int i = 0; i < delays.length; i++) {
+            int index = i;
+            timeouts[i] = wheel.schedule(() -> {
+                firedAfter[index] = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                fired.add(delays[index]);
+                done.countDown();
+            }, delays[i], TimeUnit.MILLISECONDS);
+        }
+        timeouts[2].cancel();
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        assertEquals(3, fired.size());
+        assertEquals(Integer.valueOf(30), fired.get(0));
+        assertEquals(Integer.valueOf(60), fired.get(1));
+        assertEquals(Integer.valueOf(250), fired.get(2));
+        for (int i : new int[]{0, 1, 3}) {
+            assertTrue("Fired early: " + firedAfter[i] + " < " + delays[i], firedAfter[i] >= delays[i]);
+        }
+    }
+
+    /**
+     * A connection where the server stops answering is detected as dead within idle + reply time
+     *
+     * @throws Exception When test is interrupted while sleeping
+     */
+    @Test
+    public void testDeadConnection() throws Exception {
+        TCPClient client = new TCPClient();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        client.setHeartbeat(200, 300);
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        client.startListenThread();
+        server.setFrozen(true);
+        long start = System.currentTimeMillis();
+        while (client.isConnectionActive() && System.currentTimeMillis() - start < 3000) {
+            Thread.sleep(20);
+        }
+        long elapsed = System.currentTimeMillis() - start;
+        assertFalse("Dead connection not detected", client.isConnectionActive());
+        assertTrue("Detected after " + elapsed + " ms", elapsed >= 400 && elapsed < 1500);
+        assertEquals(1, counter.disconn);
+        assertTrue(client.getLastError().contains("dead"));
+    }
+
+    /**
+     * An idle but healthy connection stays open, and the listeners don't see the probe replies
+     *
+     * @throws Exception When test is interrupted while sleeping
+     */
+    @Test
+    public void testIdleConnectionStaysOpen() throws Exception {
+        TCPClient client = new TCPClient();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        client.setHeartbeat(100, 300);
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        client.startListenThread();
+        Thread.sleep(1000);
+        assertTrue(client.isConnectionActive());
+        assertTrue(client.getHeartbeatProbeCount() >= 3);
+        assertEquals(0, counter.supported);
+        // A help the user asks for is still delivered
+        client.askSupportedCommands();
+        Thread.sleep(100);
+        assertEquals(1, counter.supported);
+        client.disconnect();
+        assertEquals(1, counter.disconn);
+    }
+}
@@ -0,0 +1,163 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the round-trip time probe and the rolling latency histogram
+ */
+public class LatencyProbeTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private LocalChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new LocalChatServer();
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Percentiles are within a bucket of the real value, and never above the largest sample
+     */
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram h = new LatencyHistogram();
+        long now = 0;
+        for (int i = 1; i <= 100; i++) {
+            h.record(i * MS, now);
+        }
+        assertEquals(100, h.getCount(now));
+        double median = h.getPercentileMillis(50, now);
+        assertTrue("Median " + median, median >= 50 && median <= 50 * 1.19);
+        double p99 = h.getPercentileMillis(99, now);
+        assertTrue("p99 " + p99, p99 >= 99 && p99 <= 100);
+        assertEquals(100.0, h.getPercentileMillis(100, now), 0.001);
+        assertEquals(0, LatencyHistogram.bucket(500));
+        assertEquals(LatencyHistogram.getBucketCount() - 1, LatencyHistogram.bucket(TimeUnit.HOURS.toNanos(1)));
+        for (long nanos : new long[]{1500, 42 * MS, 3000 * MS}) {
+            int b = LatencyHistogram.bucket(nanos);
+            assertTrue(nanos / 1e6 <= LatencyHistogram.getBucketUpperMillis(b));
+            assertTrue(nanos / 1e6 > LatencyHistogram.getBucketUpperMillis(b - 1));
+        }
+    }
+
+    /**
+     * Old samples roll out of the window, slice by slice
+     */
+    @Test
+    public void testRollingWindow() {
+        LatencyHistogram h = new LatencyHistogram(600);
+        long start = TimeUnit.SECONDS.toNanos(10);
+        h.record(500 * MS, start);
+        h.record(10 * MS, start + 300 * MS);
+        assertEquals(2, h.getCount(start + 300 * MS));
+        assertEquals(500.0, h.getMaxMillis(start + 300 * MS), 0.001);
+        // The slow sample is gone, the fast one is still there
+        assertEquals(1, h.getCount(start + 700 * MS));
+        assertEquals(10.0, h.getMaxMillis(start + 700 * MS), 0.001);
+        assertEquals(0, h.getCount(start + 2000 * MS));
+        assertEquals(0, h.getPercentileMillis(50, start + 2000 * MS), 0.001);
+        assertEquals(2, h.getTotalCount());
+    }
+
+    /**
+     * A steady round-trip time has no jitter, one that alternates has
+     */
+    @Test
+    public void testJitter() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(-1, h.getLastMillis(), 0.001);
+        for (int i = 0; i < 50; i++) {
+            h.record(20 * MS, 0);
+        }
+        assertEquals(0, h.getJitterMillis(), 0.001);
+        for (int i = 0; i < 200; i++) {
+            h.record((i % 2 == 0 ? 10 : 30) * MS, 0);
+        }
+        assertEquals(20, h.getJitterMillis(), 0.5);
+        assertEquals(30, h.getLastMillis(), 0.001);
+        h.reset();
+        assertEquals(0, h.getCount(0));
+        assertEquals(0, h.getJitterMillis(), 0.001);
+    }
+
+    /**
+     * The probe measures the round-trip time without the listeners seeing its replies, and a slow
+     * server shows as a longer round-trip time
+     *
+     * @throws Exception When test is interrupted while sleeping
+     */
+    @Test
+    public void testProbe() throws Exception {
+        TCPClient client = new TCPClient();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        client.setRttProbe(100);
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        client.startListenThread();
+        Thread.sleep(550);
+        LatencyHistogram latency = client.getLatencyHistogram();
+        assertTrue("Probes: " + latency.getCount(), latency.getCount() >= 4);
+        assertEquals(0, counter.supported);
+        assertTrue(latency.getLastMillis() >= 0 && latency.getLastMillis() < 100);
+
+        // A help the user asks for is delivered, and measured too
+        long before = latency.getTotalCount();
+        client.askSupportedCommands();
+        Thread.sleep(100);
+        assertEquals(1, counter.supported);
+        assertTrue(latency.getTotalCount() > before);
+
+        client.disconnect();
+        assertEquals(1, counter.disconn);
+        assertEquals(1, counter.supported);
+
+        // A server that reads slowly: each probe takes a while to get through
+        LocalChatServer slow = new LocalChatServer();
+        slow.setReceiveRate(50);
+        slow.start();
+        try {
+            assertTrue(client.connect(slow.getHost(), slow.getPort()));
+            assertEquals(0, latency.getTotalCount());
+            client.startListenThread();
+            Thread.sleep(500);
+            assertTrue("Max " + latency.getMaxMillis(), latency.getMaxMillis() >= 50);
+            client.disconnect();
+        } finally {
+            slow.stop();
+        }
+    }
+
+    /**
+     * No new probe is sent while the last one is unanswered, as on a stalled connection
+     *
+     * @throws Exception When test is interrupted while sleeping
+     */
+    @Test
+    public void testNoProbeWhileOutstanding() throws Exception {
+        AtomicInteger sent = new AtomicInteger();
+        RttProbe probe = new RttProbe(sent::incrementAndGet, TimerWheel.shared(), 20);
+        probe.start();
+        Thread.sleep(300);
+        assertEquals(1, sent.get());
+        probe.replied();
+        Thread.sleep(300);
+        assertEquals(2, sent.get());
+        probe.stop();
+    }
+}
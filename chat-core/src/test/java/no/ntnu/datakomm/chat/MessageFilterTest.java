@@ -0,0 +1,171 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the keyword matcher and the message filter, alone and on the receive path of a client
+ */
+public class MessageFilterTest {
+
+    // How many ms to sleep when waiting for server response to arrive
+    private static final int THREAD_SLEEP_TIME = 500;
+
+    /**
+     * @return The matches as "keyword:start-end", in the order they are found
+     */
+    private static List<String> matches(KeywordMatcher matcher, String text) {
+        List<String> found = new ArrayList<>();
+        matcher.search(text, (keyword, start, end) -> {
+            found.add(keyword + ":" + start + "-" + end);
+            return true;
+        });
+        return found;
+    }
+
+    /**
+     * Overlapping keywords, keywords inside other keywords, phrases and case are all handled, and
+     * only whole words match
+     */
+    @Test
+    public void testKeywordMatcher() {
+        KeywordMatcher matcher = new KeywordMatcher(Arrays.asList("he", "she", "hers", "new york", "Ærø", ""));
+        assertEquals(Arrays.asList("1:0-3"), matches(matcher, "she"));
+        assertEquals(Arrays.asList("1:0-3", "0:4-6"), matches(matcher, "she he"));
+        assertEquals(Arrays.asList("2:0-4"), matches(matcher, "HERS!"));
+        assertEquals(Arrays.asList(), matches(matcher, "ushers, shell, hen"));
+        assertEquals(Arrays.asList("3:7-15"), matches(matcher, "off to New York."));
+        assertEquals(Arrays.asList("4:6-9"), matches(matcher, "Visit ÆRØ"));
+        assertFalse(matcher.isEmpty());
+        assertTrue(new KeywordMatcher(Arrays.asList("")).isEmpty());
+
+        // Many keywords, named after numbers in base 7: word12 is keyword 9, word2000 is keyword 686
+        List<String> keywords = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            keywords.add("word" + Integer.toString(i, 7));
+        }
+        KeywordMatcher many = new KeywordMatcher(keywords);
+        String text = "word12 and word0, not word12x or xword3; word9 word2000";
+        assertEquals(Arrays.asList("9:0-6", "0:11-16", "686:47-55"), matches(many, text));
+    }
+
+    /**
+     * Blocked senders, muted keywords and highlights give the right verdicts and counts
+     *
+     * @throws Exception When the rules can't be compiled
+     */
+    @Test
+    public void testVerdicts() throws Exception {
+        MessageFilter filter = new MessageFilter();
+        assertEquals(MessageFilter.Verdict.PASS, filter.check("bob", "anything").getVerdict());
+        filter.setRules(new MessageFilter.Rules()
+                .block("Spammer")
+                .mute("spoiler")
+                .highlightAll(Arrays.asList("alice", "alice smith", "release"))
+                .highlight("spoiler")).get(5, TimeUnit.SECONDS);
+
+        assertEquals(MessageFilter.Verdict.BLOCKED, filter.check("SPAMMER", "hi alice").getVerdict());
+        assertEquals(MessageFilter.Verdict.MUTED, filter.check("bob", "Alice: SPOILER ahead").getVerdict());
+        MessageFilter.Result plain = filter.check("bob", "nothing to see");
+        assertEquals(MessageFilter.Verdict.PASS, plain.getVerdict());
+        assertEquals(0, plain.getHighlights().length);
+        MessageFilter.Result result = filter.check("bob", "Alice Smith: the release is out, alice");
+        assertEquals(MessageFilter.Verdict.PASS, result.getVerdict());
+        // "alice" is inside "alice smith", so the two are merged
+        assertArrayEquals(new int[]{0, 11, 17, 24, 33, 38}, result.getHighlights());
+
+        assertEquals(5, filter.getCheckedCount());
+        assertEquals(1, filter.getBlockedCount());
+        assertEquals(1, filter.getMutedCount());
+        assertEquals(1, filter.getHighlightedCount());
+        assertEquals(3.0 / 5, filter.getMatchRate(), 1e-9);
+    }
+
+    /**
+     * Rules files are parsed, and errors in them are reported with the line number
+     *
+     * @throws Exception When the rules can't be parsed
+     */
+    @Test
+    public void testParseRules() throws Exception {
+        MessageFilter filter = new MessageFilter();
+        filter.setRules(MessageFilter.Rules.parse(new StringReader(
+                "# My rules\n\nblock troll\n  mute  buy now \nhighlight meeting\n"))).get(5, TimeUnit.SECONDS);
+        assertEquals(MessageFilter.Verdict.BLOCKED, filter.check("Troll", "hello").getVerdict());
+        assertEquals(MessageFilter.Verdict.MUTED, filter.check("bob", "Buy now!").getVerdict());
+        assertEquals(MessageFilter.Verdict.PASS, filter.check("bob", "buy it now").getVerdict());
+        assertArrayEquals(new int[]{4, 11}, filter.check("bob", "the meeting").getHighlights());
+        try {
+            MessageFilter.Rules.parse(new StringReader("block a\nignore b\n"));
+            fail("Unknown rule accepted");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("line 2"));
+        }
+    }
+
+    /**
+     * The client drops blocked and muted messages before its listeners see them, and delivers
+     * highlights with the rest
+     *
+     * @throws Exception When test is interrupted while sleeping
+     */
+    @Test
+    public void testReceivePath() throws Exception {
+        LocalChatServer server = new LocalChatServer();
+        server.start();
+        try {
+            TCPClient receiver = new TCPClient();
+            MessageFilter filter = new MessageFilter();
+            filter.setRules(new MessageFilter.Rules().block("UnitTestSpam").mute("muted").highlight("UnitTestRecv"))
+                    .get(5, TimeUnit.SECONDS);
+            receiver.setMessageFilter(filter);
+            List<TextMessage> received = new CopyOnWriteArrayList<>();
+            receiver.addListener(new EmptyChatListener() {
+                @Override
+                public void onMessageReceived(TextMessage message) {
+                    received.add(message);
+                }
+            });
+            TCPClient spam = new TCPClient();
+            TCPClient sender = new TCPClient();
+            for (TCPClient c : new TCPClient[]{receiver, spam, sender}) {
+                assertTrue(c.connect(server.getHost(), server.getPort()));
+                c.startListenThread();
+            }
+            receiver.tryLogin("UnitTestRecv");
+            spam.tryLogin("UnitTestSpam");
+            sender.tryLogin("UnitTestSend");
+            Thread.sleep(THREAD_SLEEP_TIME);
+
+            spam.sendPublicMessage("[Unittest] buy things");
+            sender.sendPublicMessage("[Unittest] this one is muted");
+            sender.sendPublicMessage("[Unittest] hello unittestrecv");
+            sender.sendPublicMessage("[Unittest] plain");
+            Thread.sleep(THREAD_SLEEP_TIME);
+
+            assertEquals(2, received.size());
+            assertEquals("[Unittest] hello unittestrecv", received.get(0).getText());
+            assertArrayEquals(new int[]{17, 29}, received.get(0).getHighlights());
+            assertEquals(0, received.get(1).getHighlights().length);
+            assertEquals(1, filter.getBlockedCount());
+            assertEquals(1, filter.getMutedCount());
+
+            for (TCPClient c : new TCPClient[]{receiver, spam, sender}) {
+                c.disconnect();
+            }
+        } finally {
+            server.stop();
+        }
+    }
+}
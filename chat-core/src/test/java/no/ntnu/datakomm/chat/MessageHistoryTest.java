@@ -0,0 +1,64 @@
+package no.ntnu.datakomm.chat;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the paged access to the message history, as used by the GUI to scroll back
+ */
+public class MessageHistoryTest {
+
+    // 2020-01-01 00:00 UTC
+    private static final long START = 1577836800000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Pages are read back by number, including the page still being written, with the messages we
+     * sent marked
+     *
+     * @throws Exception When the history can't be written or read
+     */
+    @Test
+    public void testHistoryPages() throws Exception {
+        File dir = folder.newFolder("history");
+        MessageHistory history = new MessageHistory(dir, 10);
+        assertEquals(0, history.getNewestPage());
+        assertEquals(0, history.getOldestPage());
+        for (int i = 0; i < 25; i++) {
+            TextMessage m = new TextMessage("user", i % 4 == 0, "page text " + i);
+            assertEquals(i / 10 + 1, i % 3 == 0 ? history.appendSent(START + i, m) : history.append(START + i, m));
+        }
+        assertEquals(3, history.getNewestPage());
+        assertEquals(1, history.getOldestPage());
+
+        List<MessageHistory.Record> page = history.readPage(2);
+        assertEquals(10, page.size());
+        assertEquals("page text 10", page.get(0).getMessage().getText());
+        assertEquals(START + 10, page.get(0).getTime());
+        for (int i = 0; i < page.size(); i++) {
+            int n = 10 + i;
+            assertEquals(n % 3 == 0, page.get(i).isSent());
+            assertEquals(n % 4 == 0, page.get(i).getMessage().isPrivate());
+        }
+        // The newest page is flushed before it is read
+        assertEquals(5, history.readPage(3).size());
+        history.append(START + 25, new TextMessage("user", false, "page text 25"));
+        assertEquals(6, history.readPage(3).size());
+        assertTrue(history.readPage(4).isEmpty());
+        history.close();
+
+        // Reopened, the old pages stay readable and new messages start a new page
+        history = new MessageHistory(dir, 10);
+        assertEquals(3, history.getNewestPage());
+        assertEquals(4, history.append(START + 26, new TextMessage("user", false, "after reopen")));
+        history.close();
+    }
+}
@@ -0,0 +1,261 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.helpers.FaultInjectingProxy;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the client on bad network paths: the connection to the local server goes through a
+ * FaultInjectingProxy that fragments, coalesces, delays, throttles, stalls or resets the traffic.
+ * No message may be lost or reordered, and dead connections must be noticed.
+ */
+public class NetworkFaultTest {
+
+    // How many ms to sleep when waiting for server response to arrive
+    private static final int THREAD_SLEEP_TIME = 500;
+
+    private LocalChatServer server;
+    private FaultInjectingProxy proxy;
+    private final List<TCPClient> clients = new ArrayList<>();
+
+    @Before
+    public void startServer() throws Exception {
+        server = new LocalChatServer();
+        server.setBinarySupported(true);
+        server.setDeflateSupported(true);
+        server.start();
+        proxy = new FaultInjectingProxy(server.getHost(), server.getPort());
+        proxy.start();
+    }
+
+    @After
+    public void stopServer() {
+        for (TCPClient c : clients) {
+            c.disconnect();
+        }
+        proxy.stop();
+        server.stop();
+    }
+
+    /**
+     * Keeps the received messages in order
+     */
+    private static class OrderedReceiver extends EmptyChatListener {
+        private final List<String> texts = new ArrayList<>();
+
+        @Override
+        public synchronized void onMessageReceived(TextMessage message) {
+            texts.add(message.getText());
+        }
+
+        synchronized int size() {
+            return texts.size();
+        }
+
+        synchronized List<String> getTexts() {
+            return new ArrayList<>(texts);
+        }
+    }
+
+    /**
+     * Wait until a condition is true, at most the given time
+     */
+    private static void waitFor(BooleanSupplier condition, long millis) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (!condition.getAsBoolean() && System.currentTimeMillis() - start < millis) {
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Connect through the proxy, negotiate the protocol extensions and log in
+     */
+    private TCPClient login(String username, boolean extensions, OrderedReceiver receiver)
+            throws InterruptedException {
+        TCPClient c = new TCPClient();
+        c.setCompressionEnabled(extensions);
+        c.setBinaryFramingEnabled(extensions);
+        assertTrue(c.connect(proxy.getHost(), proxy.getPort()));
+        clients.add(c);
+        if (receiver != null) {
+            c.addListener(receiver);
+        }
+        c.startListenThread();
+        c.askSupportedCommands();
+        c.tryLogin(username);
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(extensions, c.isBinaryFraming());
+        return c;
+    }
+
+    /**
+     * Send numbered messages from one client and check that the other gets all of them, in order
+     */
+    private static void sendAndCheck(TCPClient sender, OrderedReceiver receiver, String prefix, int count,
+                                     long waitMillis) throws InterruptedException {
+        int before = receiver.size();
+        for (int i = 0; i < count; i++) {
+            assertTrue(sender.sendPublicMessage(prefix + " " + i));
+        }
+        waitFor(() -> receiver.size() >= before + count, waitMillis);
+        List<String> texts = receiver.getTexts();
+        assertEquals(before + count, texts.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(prefix + " " + i, texts.get(before + i));
+        }
+    }
+
+    /**
+     * Lines and frames split over many reads, and many of them arriving in one read, are all
+     * parsed, with plain text lines and with compressed binary frames
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testFragmentationAndCoalescing() throws InterruptedException {
+        for (boolean extensions : new boolean[]{false, true}) {
+            String suffix = extensions ? "Bin" : "Text";
+            OrderedReceiver receiver = new OrderedReceiver();
+            TCPClient sender = login("UnitTestFragSend" + suffix, extensions, null);
+            login("UnitTestFragRecv" + suffix, extensions, receiver);
+
+            proxy.setFragmentation(3, 1);
+            long writes = proxy.getWriteCount();
+            sendAndCheck(sender, receiver, "[Unittest] Fragmented æøå " + suffix, 30, 10000);
+            assertTrue(proxy.getWriteCount() - writes > 60);
+
+            proxy.setFragmentation(0, 0);
+            proxy.setCoalescing(50);
+            writes = proxy.getWriteCount();
+            sendAndCheck(sender, receiver, "[Unittest] Coalesced " + suffix, 200, 5000);
+            // Many messages per write; without coalescing it would be at least one write per message
+            assertTrue(proxy.getWriteCount() - writes < 200);
+            proxy.setCoalescing(0);
+        }
+    }
+
+    /**
+     * With latency, jitter and a bandwidth cap, all messages arrive in order, and the throughput
+     * stays close to the cap
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testLatencyJitterAndBandwidth() throws InterruptedException {
+        OrderedReceiver receiver = new OrderedReceiver();
+        TCPClient sender = login("UnitTestSlowSend", false, null);
+        login("UnitTestSlowRecv", false, receiver);
+        final long rate = 20000;
+        proxy.setLatency(40, 30);
+        proxy.setBandwidth(rate);
+
+        StringBuilder text = new StringBuilder("[Unittest] Throttled");
+        while (text.length() < 200) {
+            text.append(" padding");
+        }
+        int count = 100;
+        long forwarded = proxy.getBytesForwarded();
+        long start = System.nanoTime();
+        sendAndCheck(sender, receiver, text.toString(), count, 20000);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        // Each message passes the proxy twice: to the server, and to the receiver
+        long bytes = proxy.getBytesForwarded() - forwarded;
+        assertTrue(bytes >= 2L * count * text.length());
+        double minSeconds = bytes / 2.0 / rate;
+        assertTrue("Faster than the cap: " + seconds + " s", seconds >= minSeconds * 0.8);
+        assertTrue("Throughput far below the cap: " + seconds + " s", seconds <= minSeconds * 3 + 1);
+    }
+
+    /**
+     * A stalled path is noticed by the heartbeat and reported as a disconnect; before that, data
+     * sent during a short stall is delivered when the path recovers
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testStall() throws InterruptedException {
+        OrderedReceiver receiver = new OrderedReceiver();
+        TCPClient sender = login("UnitTestStallSend", false, null);
+        TCPClient c = login("UnitTestStallRecv", false, receiver);
+
+        proxy.setStalled(true);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(sender.sendPublicMessage("[Unittest] Stalled " + i));
+        }
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(0, receiver.size());
+        proxy.setStalled(false);
+        waitFor(() -> receiver.size() == 5, 5000);
+        assertEquals(5, receiver.size());
+
+        c.disconnect();
+        c = new TCPClient();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        c.addListener(counter);
+        c.setHeartbeat(200, 300);
+        assertTrue(c.connect(proxy.getHost(), proxy.getPort()));
+        clients.add(c);
+        c.startListenThread();
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(0, counter.disconn);
+        proxy.setStalled(true);
+        TCPClient stalled = c;
+        waitFor(() -> counter.disconn == 1, 5000);
+        assertEquals(1, counter.disconn);
+        assertFalse(stalled.isConnectionActive());
+    }
+
+    /**
+     * When the path resets the connection, a failover session moves to another server and logs in
+     * again, and messages sent afterwards are delivered
+     *
+     * @throws Exception When test is interrupted while sleeping
+     */
+    @Test
+    public void testResetAndFailover() throws Exception {
+        LocalChatServer other = new LocalChatServer();
+        other.start();
+        try {
+            ServerPool pool = ServerPool.parse(proxy.getHost() + ":" + proxy.getPort() + ", "
+                    + other.getHost() + ":" + other.getPort(), 1300);
+            FailoverSession session = pool.newSession(new TCPClient(), false);
+            DummyResponseCounter counter = new DummyResponseCounter();
+            session.addListener(counter);
+            assertTrue(session.open());
+            session.login("UnitTestReset");
+            Thread.sleep(THREAD_SLEEP_TIME);
+            assertEquals(proxy.getPort(), session.getEndpoint().getPort());
+            assertEquals(1, counter.loginSuccess);
+
+            proxy.resetConnections();
+            assertEquals(1, proxy.getResetCount());
+            waitFor(() -> counter.loginSuccess == 2, 5000);
+            assertEquals(2, counter.loginSuccess);
+            assertEquals(0, counter.disconn);
+            assertEquals(other.getPort(), session.getEndpoint().getPort());
+
+            TCPClient c = new TCPClient();
+            OrderedReceiver receiver = new OrderedReceiver();
+            c.addListener(receiver);
+            assertTrue(c.connect(other.getHost(), other.getPort()));
+            clients.add(c);
+            c.startListenThread();
+            c.tryLogin("UnitTestResetRecv");
+            Thread.sleep(THREAD_SLEEP_TIME);
+            sendAndCheck(session.getClient(), receiver, "[Unittest] After reset", 20, 5000);
+            session.close();
+        } finally {
+            other.stop();
+        }
+    }
+}
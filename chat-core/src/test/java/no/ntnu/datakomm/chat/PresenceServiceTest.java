@@ -0,0 +1,203 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the presence service shared by many sessions to one server: one poll for all sessions, the
+ * same list for all of them, join and leave events, and the adaptive poll interval
+ */
+public class PresenceServiceTest {
+
+    // How many ms to sleep when waiting for server response to arrive
+    private static final int THREAD_SLEEP_TIME = 500;
+
+    private LocalChatServer server;
+    private final List<TCPClient> clients = new ArrayList<>();
+
+    @Before
+    public void startServer() throws Exception {
+        server = new LocalChatServer();
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        for (TCPClient c : clients) {
+            c.setPresenceService(null);
+            c.disconnect();
+        }
+        server.stop();
+    }
+
+    /**
+     * Remembers the last user list
+     */
+    private static class LastList extends EmptyChatListener {
+        volatile List<String> users = null;
+        volatile int lists = 0;
+
+        @Override
+        public void onUserList(String[] usernames) {
+            users = Arrays.asList(usernames);
+            lists++;
+        }
+    }
+
+    private TCPClient connect(String username, PresenceService presence) {
+        TCPClient c = new TCPClient();
+        assertTrue(c.connect(server.getHost(), server.getPort()));
+        c.startListenThread();
+        c.tryLogin(username);
+        c.setPresenceService(presence);
+        clients.add(c);
+        return c;
+    }
+
+    /**
+     * Many sessions that keep asking for the user list cost the server one poll per interval, and
+     * all of them get the same list
+     *
+     * @throws Exception When test is interrupted while sleeping
+     */
+    @Test
+    public void testSharedPoll() throws Exception {
+        PresenceService presence = new PresenceService(TimerWheel.shared(), 200, 1600);
+        int sessions = 10;
+        List<LastList> lists = new ArrayList<>();
+        for (int i = 0; i < sessions; i++) {
+            LastList list = new LastList();
+            connect("Bot" + i, presence).addListener(list);
+            lists.add(list);
+        }
+        Thread.sleep(THREAD_SLEEP_TIME);
+        // Each session asks every 50 ms, like a GUI polling much too often
+        for (int round = 0; round < 30; round++) {
+            for (TCPClient c : clients) {
+                c.refreshUserList();
+            }
+            Thread.sleep(50);
+        }
+        Thread.sleep(THREAD_SLEEP_TIME);
+        long polls = server.getCommandCount("users");
+        assertTrue("Server got " + polls + " polls", polls >= 2 && polls <= 15);
+        assertEquals(polls, presence.getPollCount());
+        List<String> all = Arrays.asList(presence.getUsers());
+        assertEquals(sessions, all.size());
+        for (LastList list : lists) {
+            assertTrue(list.lists >= 30);
+            assertEquals(all, list.users);
+        }
+    }
+
+    /**
+     * Users that come and go give join and leave events, and the poll slows down while nothing
+     * changes
+     *
+     * @throws Exception When test is interrupted while sleeping
+     */
+    @Test
+    public void testJoinLeave() throws Exception {
+        PresenceService presence = new PresenceService(TimerWheel.shared(), 100, 400);
+        List<String> events = new CopyOnWriteArrayList<>();
+        presence.addListener(new PresenceService.Listener() {
+            @Override
+            public void onJoin(String username) {
+                events.add("+" + username);
+            }
+
+            @Override
+            public void onLeave(String username) {
+                events.add("-" + username);
+            }
+        });
+        connect("Watcher", presence);
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(events.isEmpty());
+        assertEquals(Arrays.asList("Watcher"), Arrays.asList(presence.getUsers()));
+
+        // A session that is not attached to the service
+        TCPClient other = new TCPClient();
+        assertTrue(other.connect(server.getHost(), server.getPort()));
+        other.tryLogin("Visitor");
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(Arrays.asList("+Visitor"), events);
+        other.disconnect();
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(Arrays.asList("+Visitor", "-Visitor"), events);
+        assertEquals(1, presence.getJoinCount());
+        assertEquals(1, presence.getLeaveCount());
+
+        // Nothing changes: the interval grows to the maximum
+        Thread.sleep(1500);
+        assertEquals(400, presence.getPollIntervalMillis());
+        // The first list, the join and the leave
+        assertEquals(3, presence.getVersion());
+    }
+
+    /**
+     * A listener that blocks does not hold the service lock, so the other sessions and the polls
+     * go on meanwhile, and the events still come in the order the lists were taken
+     *
+     * @throws Exception When test is interrupted while waiting
+     */
+    @Test
+    public void testSlowListener() throws Exception {
+        PresenceService presence = new PresenceService(TimerWheel.shared(), 100, 400);
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> events = new CopyOnWriteArrayList<>();
+        presence.addListener(new PresenceService.Listener() {
+            @Override
+            public void onJoin(String username) {
+                if (username.equals("bob")) {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                events.add("+" + username);
+            }
+
+            @Override
+            public void onLeave(String username) {
+                events.add("-" + username);
+            }
+        });
+        presence.update(new String[]{"alice"});
+        presence.update(new String[]{"alice", "bob"});
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        // Other clients' lists are taken while the listener is still busy
+        Thread other = new Thread(() -> {
+            presence.update(new String[]{"alice", "bob", "carol"});
+            presence.update(new String[]{"alice", "carol"});
+        });
+        other.start();
+        other.join(5000);
+        assertFalse(other.isAlive());
+        assertEquals(Arrays.asList("alice", "carol"), Arrays.asList(presence.getUsers()));
+
+        release.countDown();
+        for (int i = 0; i < 100 && events.size() < 3; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(Arrays.asList("+bob", "+carol", "-bob"), events);
+        assertEquals(2, presence.getJoinCount());
+        assertEquals(4, presence.getVersion());
+    }
+}
@@ -0,0 +1,149 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that control commands are written ahead of bulk chat messages
+ */
+public class PriorityLanesTest {
+
+    // Rate at which the server reads from each client, in bytes per second: a slow link
+    private static final long LINK_RATE = 200000;
+    private static final int BULK_MESSAGE_LENGTH = 8000;
+    private static final int BULK_SENDERS = 4;
+
+    private LocalChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new LocalChatServer();
+        server.setReceiveRate(LINK_RATE);
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * A control writer that arrives while bulk writers are waiting goes right after the current
+     * writer, and the bulk writers keep their order
+     *
+     * @throws Exception When test is interrupted while sleeping
+     */
+    @Test
+    public void testLaneOrder() throws Exception {
+        WriteLanes lanes = new WriteLanes();
+        List<String> order = new CopyOnWriteArrayList<>();
+        lanes.acquire(WriteLanes.BULK);
+        List<Thread> threads = new ArrayList<>();
+        for (String name : new String[]{"bulk1", "bulk2", "bulk3", "control1", "control2"}) {
+            int lane = name.startsWith("control") ? WriteLanes.CONTROL : WriteLanes.BULK;
+            Thread t = new Thread(() -> {
+                lanes.acquire(lane);
+                order.add(name);
+                lanes.release(lane);
+            });
+            t.start();
+            threads.add(t);
+            // Make the arrival order certain
+            Thread.sleep(50);
+        }
+        lanes.release(WriteLanes.BULK);
+        for (Thread t : threads) {
+            t.join(1000);
+        }
+        assertEquals(Arrays.asList("control1", "control2", "bulk1", "bulk2", "bulk3"), order);
+    }
+
+    /**
+     * Login latency stays low while several publisher threads saturate the link with large messages
+     *
+     * @throws Exception When test is interrupted while sleeping
+     */
+    @Test
+    public void testLoginLatencyUnderLoad() throws Exception {
+        TCPClient client = new TCPClient();
+        client.setMaxFrameLength(BULK_MESSAGE_LENGTH * 2);
+        // Small send buffer, so the link is full after a few messages
+        client.getConnectEngine().setBufferSizes(8192, 0);
+        Semaphore loginResults = new Semaphore(0);
+        client.addListener(new EmptyChatListener() {
+            @Override
+            public void onLoginResult(boolean success, String errMsg) {
+                loginResults.release();
+            }
+        });
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        client.startListenThread();
+
+        long idle = median(measureLogins(client, loginResults, 5));
+
+        char[] filler = new char[BULK_MESSAGE_LENGTH];
+        Arrays.fill(filler, 'x');
+        String bulk = new String(filler);
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Thread> senders = new ArrayList<>();
+        for (int i = 0; i < BULK_SENDERS; i++) {
+            Thread t = new Thread(() -> {
+                while (running.get() && client.sendPublicMessage(bulk)) {
+                    // Send as fast as the link takes them
+                }
+            });
+            t.start();
+            senders.add(t);
+        }
+        // Let the link fill up
+        Thread.sleep(500);
+        List<Long> loaded = measureLogins(client, loginResults, 10);
+        running.set(false);
+        client.disconnect();
+        for (Thread t : senders) {
+            t.join(2000);
+        }
+
+        // One bulk message takes this long on the link
+        long messageMillis = BULK_MESSAGE_LENGTH * 1000L / LINK_RATE;
+        long median = median(loaded);
+        System.out.println("Login latency ms, idle: " + idle + ", under load: " + loaded);
+        // The login waits for the bytes already in the socket buffers and at most one bulk write,
+        // not behind every waiting publisher (that would be about BULK_SENDERS + 2 messages)
+        assertTrue("Median login latency " + median + " ms", median < idle + 5 * messageMillis);
+        assertTrue("Max login latency " + Collections.max(loaded) + " ms",
+                Collections.max(loaded) < idle + 12 * messageMillis);
+    }
+
+    private static List<Long> measureLogins(TCPClient client, Semaphore results, int count) throws Exception {
+        List<Long> millis = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            long start = System.nanoTime();
+            client.tryLogin("UnitTestLanes");
+            assertTrue(results.tryAcquire(5, TimeUnit.SECONDS));
+            millis.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            Thread.sleep(50);
+        }
+        return millis;
+    }
+
+    private static long median(List<Long> values) {
+        List<Long> sorted = new ArrayList<>(values);
+        Collections.sort(sorted);
+        return sorted.get(sorted.size() / 2);
+    }
+}
@@ -0,0 +1,186 @@
+package no.ntnu.datakomm.chat;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the token bucket and the rate-limited outbound queue
+ */
+public class RateLimitTest {
+
+    // How many ms to sleep when waiting for server response to arrive
+    private static final int THREAD_SLEEP_TIME = 500;
+
+    private LocalChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new LocalChatServer();
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * A full bucket allows a burst, then it is empty until tokens are refilled
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testTokenBucket() throws InterruptedException {
+        TokenBucket bucket = new TokenBucket(20, 3);
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        // One token every 50ms
+        Thread.sleep(60);
+        assertTrue(bucket.tryAcquire());
+        assertFalse(bucket.tryAcquire());
+        // acquire() waits for the next token
+        long start = System.nanoTime();
+        assertTrue(bucket.acquire());
+        assertTrue(System.nanoTime() - start >= 30000000);
+    }
+
+    /**
+     * Messages are sent no faster than the limit, and all of them arrive
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testBlockingQueueKeepsRate() throws InterruptedException {
+        TCPClient sender = new TCPClient();
+        TCPClient receiver = new TCPClient();
+        sender.setRateLimit(50, 5, 10, OutboundQueue.OverflowPolicy.BLOCK);
+        assertTrue(sender.connect(server.getHost(), server.getPort()));
+        assertTrue(receiver.connect(server.getHost(), server.getPort()));
+        receiver.startListenThread();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        receiver.addListener(counter);
+        sender.tryLogin("UnitTestRate");
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 30; i++) {
+            assertTrue(sender.sendPublicMessage("[Unittest] rate limited " + i));
+        }
+        // 5 messages in the burst, then 25 at 50 per second: at least 500ms
+        while (sender.getOutboundQueue().getSentCount() < 30) {
+            Thread.sleep(10);
+        }
+        long elapsedMs = (System.nanoTime() - start) / 1000000;
+        assertTrue("Sent too fast: " + elapsedMs + "ms", elapsedMs >= 450);
+        assertTrue(sender.getOutboundQueue().getThrottledCount() >= 20);
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(30, counter.msg);
+
+        sender.disconnect();
+        receiver.disconnect();
+    }
+
+    /**
+     * With FAIL_FAST, messages are refused when the queue is full
+     */
+    @Test
+    public void testFailFast() {
+        TCPClient sender = new TCPClient();
+        sender.setRateLimit(1, 1, 3, OutboundQueue.OverflowPolicy.FAIL_FAST);
+        assertTrue(sender.connect(server.getHost(), server.getPort()));
+        int accepted = 0;
+        for (int i = 0; i < 10; i++) {
+            if (sender.sendPublicMessage("[Unittest] fail fast " + i)) {
+                accepted++;
+            }
+        }
+        // The writer sends one message and holds one while waiting for a token, three more fit in the queue
+        assertTrue(accepted <= 5);
+        assertEquals(10 - accepted, sender.getOutboundQueue().getRejectedCount());
+        assertEquals("Outbound queue is full", sender.getLastError());
+        sender.disconnect();
+    }
+
+    /**
+     * With DROP_OLDEST, sending never fails and old messages are discarded
+     */
+    @Test
+    public void testDropOldest() {
+        TCPClient sender = new TCPClient();
+        sender.setRateLimit(1, 1, 3, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        assertTrue(sender.connect(server.getHost(), server.getPort()));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(sender.sendPublicMessage("[Unittest] drop oldest " + i));
+        }
+        assertTrue(sender.getOutboundQueue().getDroppedCount() >= 5);
+        assertEquals(3, sender.getOutboundQueue().getDepth());
+        sender.disconnect();
+    }
+
+    /**
+     * With DROP_OLDEST, the frames of a chunked message are never discarded, so the message arrives
+     * whole even when plain messages are discarded around it
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testDropOldestKeepsChunkedMessages() throws InterruptedException {
+        TCPClient sender = new TCPClient();
+        TCPClient receiver = new TCPClient();
+        sender.setRateLimit(20, 1, 3, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+        sender.setMaxFrameLength(20);
+        assertTrue(sender.connect(server.getHost(), server.getPort()));
+        assertTrue(receiver.connect(server.getHost(), server.getPort()));
+        receiver.startListenThread();
+        DummyMsgReceiver messages = new DummyMsgReceiver();
+        receiver.addListener(messages);
+        sender.tryLogin("UnitTestDropChunk");
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10; i++) {
+            text.append("[Unittest] line ").append(i).append('\n');
+        }
+        assertTrue(sender.sendPublicMessage(text.toString()));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(sender.sendPublicMessage("[Unittest] drop " + i));
+        }
+        while (sender.getOutboundQueue().getDepth() > 0) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(messages.hasReceived(new TextMessage("UnitTestDropChunk", false, text.toString())));
+        sender.disconnect();
+        receiver.disconnect();
+    }
+
+    /**
+     * While disconnected, messages are refused under every policy, and BLOCK does not wait for room
+     * that will never come
+     */
+    @Test
+    public void testRefusedWhileDisconnected() {
+        for (OutboundQueue.OverflowPolicy policy : OutboundQueue.OverflowPolicy.values()) {
+            TCPClient sender = new TCPClient();
+            sender.setRateLimit(1, 1, 2, policy);
+            for (int i = 0; i < 5; i++) {
+                assertFalse(sender.sendPublicMessage("[Unittest] never connected " + i));
+            }
+            assertTrue(sender.connect(server.getHost(), server.getPort()));
+            sender.disconnect();
+            for (int i = 0; i < 5; i++) {
+                assertFalse(sender.sendPublicMessage("[Unittest] disconnected " + i));
+            }
+            assertEquals("Not connected", sender.getLastError());
+            assertEquals(0, sender.getOutboundQueue().getDepth());
+        }
+    }
+}
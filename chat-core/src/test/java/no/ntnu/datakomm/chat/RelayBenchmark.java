@@ -0,0 +1,61 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.concurrent.CountDownLatch;
+
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+
+/**
+ * Relay throughput: one publisher floods a source server, a relay mirrors to several target servers,
+ * and one reader on every target counts the arrivals. Run it with the test classpath:
+ * <p>
+ * {@code java -cp target/classes:target/test-classes no.ntnu.datakomm.chat.RelayBenchmark [messages] [targets]}
+ */
+public class RelayBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int targetCount = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        LocalChatServer source = new LocalChatServer();
+        source.start();
+        TCPClient publisher = connect(source, "publisher");
+        TCPClient relayIn = connect(source, "relay");
+
+        ChatRelay relay = new ChatRelay(relayIn, messages);
+        CountDownLatch arrived = new CountDownLatch(messages * targetCount);
+        LocalChatServer[] targets = new LocalChatServer[targetCount];
+        for (int i = 0; i < targetCount; i++) {
+            targets[i] = new LocalChatServer();
+            targets[i].start();
+            relay.addTarget(connect(targets[i], "relay"));
+            TCPClient reader = connect(targets[i], "reader");
+            reader.addListener(new EmptyChatListener() {
+                @Override
+                public void onMessageReceived(TextMessage message) {
+                    arrived.countDown();
+                }
+            });
+        }
+        relay.start();
+        Thread.sleep(500);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            publisher.sendPublicMessage("benchmark message number " + i);
+        }
+        arrived.await();
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("messages=%d targets=%d relayed/s=%.0f dropped=%d%n", messages, targetCount,
+                messages / (elapsed / 1e9), relay.getDroppedCount());
+        System.exit(0);
+    }
+
+    private static TCPClient connect(LocalChatServer server, String username) {
+        TCPClient client = new TCPClient();
+        client.connect(server.getHost(), server.getPort());
+        client.startListenThread();
+        client.tryLogin(username);
+        return client;
+    }
+}
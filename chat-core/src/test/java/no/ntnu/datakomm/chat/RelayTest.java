@@ -0,0 +1,205 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.EmptyChatListener;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test mirroring messages between two local chat servers
+ */
+public class RelayTest {
+
+    // How many ms to sleep when waiting for server response to arrive
+    private static final int THREAD_SLEEP_TIME = 500;
+
+    private LocalChatServer serverA;
+    private LocalChatServer serverB;
+
+    @Before
+    public void startServers() throws Exception {
+        serverA = new LocalChatServer();
+        serverB = new LocalChatServer();
+        serverA.start();
+        serverB.start();
+    }
+
+    @After
+    public void stopServers() {
+        serverA.stop();
+        serverB.stop();
+    }
+
+    /**
+     * Connect a client to the server, start listening and log in
+     */
+    private TCPClient connect(LocalChatServer server, String username) {
+        TCPClient client = new TCPClient();
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        client.startListenThread();
+        client.tryLogin(username);
+        return client;
+    }
+
+    /**
+     * Public messages on A arrive on B, tagged with the original sender
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testRelayOneWay() throws InterruptedException {
+        TCPClient publisher = connect(serverA, "publisher");
+        TCPClient relayIn = connect(serverA, "relayin");
+        TCPClient relayOut = connect(serverB, "relayout");
+        TCPClient reader = connect(serverB, "reader");
+        DummyMsgReceiver received = new DummyMsgReceiver();
+        reader.addListener(received);
+        ChatRelay relay = new ChatRelay(relayIn, 100);
+        relay.addTarget(relayOut);
+        relay.start();
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        publisher.sendPublicMessage("[Unittest] mirrored");
+        publisher.sendPrivateMessage("relayin", "[Unittest] private, not mirrored");
+        publisher.sendPublicMessage("[Unittest] two\nlines");
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(received.hasReceived(new TextMessage("relayout", false,
+                ChatRelay.RELAY_TAG + "publisher [Unittest] mirrored")));
+        assertTrue(received.hasReceived(new TextMessage("relayout", false,
+                ChatRelay.RELAY_TAG + "publisher [Unittest] two\nlines")));
+        assertEquals(2, relay.getRelayedCount());
+
+        relay.stop();
+        publisher.disconnect();
+        relayIn.disconnect();
+        relayOut.disconnect();
+        reader.disconnect();
+    }
+
+    /**
+     * A target connection that switched to binary frames gets the pre-encoded frames
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testRelayToBinaryTarget() throws InterruptedException {
+        serverB.setBinarySupported(true);
+        TCPClient publisher = connect(serverA, "publisher");
+        TCPClient relayIn = connect(serverA, "relayin");
+        TCPClient relayOut = connect(serverB, "relayout");
+        relayOut.askSupportedCommands();
+        TCPClient reader = connect(serverB, "reader");
+        DummyMsgReceiver received = new DummyMsgReceiver();
+        reader.addListener(received);
+        ChatRelay relay = new ChatRelay(relayIn, 100);
+        relay.addTarget(relayOut);
+        relay.start();
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(relayOut.isBinaryFraming());
+
+        publisher.sendPublicMessage("[Unittest] framed æøå");
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(received.hasReceived(new TextMessage("relayout", false,
+                ChatRelay.RELAY_TAG + "publisher [Unittest] framed æøå")));
+        assertEquals(1, relay.getWrittenCount());
+
+        relay.stop();
+        publisher.disconnect();
+        relayIn.disconnect();
+        relayOut.disconnect();
+        reader.disconnect();
+    }
+
+    /**
+     * Chunked messages go through the target queue and keep their place among the other messages,
+     * and a target that can't be written to doesn't stop the relay
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testChunkedInOrder() throws InterruptedException {
+        TCPClient publisher = connect(serverA, "publisher");
+        TCPClient relayIn = connect(serverA, "relayin");
+        TCPClient relayOut = connect(serverB, "relayout");
+        TCPClient reader = connect(serverB, "reader");
+        List<String> texts = Collections.synchronizedList(new ArrayList<>());
+        reader.addListener(new EmptyChatListener() {
+            @Override
+            public void onMessageReceived(TextMessage message) {
+                texts.add(message.getText());
+            }
+        });
+        ChatRelay relay = new ChatRelay(relayIn, 100);
+        relay.addTarget(new TCPClient());
+        relay.addTarget(relayOut);
+        relay.start();
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        publisher.sendPublicMessage("[Unittest] one");
+        publisher.sendPublicMessage("[Unittest] two\nlines");
+        publisher.sendPublicMessage("[Unittest] three");
+        Thread.sleep(THREAD_SLEEP_TIME);
+        String prefix = ChatRelay.RELAY_TAG + "publisher ";
+        assertEquals(Arrays.asList(prefix + "[Unittest] one", prefix + "[Unittest] two\nlines",
+                prefix + "[Unittest] three"), texts);
+        // Written to relayout, dropped for the target that never connected
+        assertEquals(3, relay.getWrittenCount());
+        assertEquals(3, relay.getDroppedCount());
+
+        relay.stop();
+        publisher.disconnect();
+        relayIn.disconnect();
+        relayOut.disconnect();
+        reader.disconnect();
+    }
+
+    /**
+     * Two relays in opposite directions don't send messages back and forth
+     *
+     * @throws InterruptedException When test is interrupted while sleeping
+     */
+    @Test
+    public void testNoLoops() throws InterruptedException {
+        TCPClient publisher = connect(serverA, "publisher");
+        TCPClient inA = connect(serverA, "ina");
+        TCPClient outA = connect(serverA, "outa");
+        TCPClient inB = connect(serverB, "inb");
+        TCPClient outB = connect(serverB, "outb");
+        TCPClient reader = connect(serverB, "reader");
+        DummyResponseCounter counter = new DummyResponseCounter();
+        reader.addListener(counter);
+        ChatRelay aToB = new ChatRelay(inA, 100);
+        aToB.addTarget(outB);
+        ChatRelay bToA = new ChatRelay(inB, 100);
+        bToA.addTarget(outA);
+        aToB.start();
+        bToA.start();
+        Thread.sleep(THREAD_SLEEP_TIME);
+
+        publisher.sendPublicMessage("[Unittest] only once");
+        Thread.sleep(THREAD_SLEEP_TIME * 2);
+        assertEquals(1, counter.msg);
+        assertEquals(1, aToB.getRelayedCount());
+        assertEquals(0, bToA.getRelayedCount());
+        assertEquals(1, bToA.getSuppressedCount());
+
+        aToB.stop();
+        bToA.stop();
+        publisher.disconnect();
+        inA.disconnect();
+        outA.disconnect();
+        inB.disconnect();
+        outB.disconnect();
+        reader.disconnect();
+    }
+}
@@ -0,0 +1,201 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the server pool: health scoring, failover and least-loaded assignment, with several local
+ * servers of which some are stopped in the middle of the test
+ */
+public class ServerPoolTest {
+
+    // How many ms to sleep when waiting for server response to arrive
+    private static final int THREAD_SLEEP_TIME = 500;
+    private static final int SERVER_COUNT = 3;
+
+    private final List<LocalChatServer> servers = new ArrayList<>();
+    private ServerPool pool;
+
+    @Before
+    public void startServers() throws Exception {
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < SERVER_COUNT; i++) {
+            LocalChatServer server = new LocalChatServer();
+            server.start();
+            servers.add(server);
+            list.append(server.getHost()).append(':').append(server.getPort()).append(", ");
+        }
+        pool = ServerPool.parse(list.toString(), 1300);
+    }
+
+    @After
+    public void stopServers() {
+        for (LocalChatServer server : servers) {
+            server.stop();
+        }
+    }
+
+    /**
+     * @return The local server behind an endpoint
+     */
+    private LocalChatServer serverOf(ServerPool.Endpoint endpoint) {
+        for (LocalChatServer server : servers) {
+            if (server.getPort() == endpoint.getPort()) {
+                return server;
+            }
+        }
+        throw new AssertionError("Unknown endpoint " + endpoint);
+    }
+
+    /**
+     * Wait until a condition is true, at most a few seconds
+     */
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (!condition.getAsBoolean() && System.currentTimeMillis() - start < 5000) {
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * The pool is parsed from a list, and the chat message round-trip time is measured
+     *
+     * @throws Exception When test is interrupted while sleeping
+     */
+    @Test
+    public void testParseAndScoring() throws Exception {
+        assertEquals(SERVER_COUNT, pool.getEndpoints().size());
+        assertEquals(1300, ServerPool.parse("a.example b.example:1400", 1300).getEndpoints().get(0).getPort());
+        assertEquals(1400, ServerPool.parse("a.example b.example:1400", 1300).getEndpoints().get(1).getPort());
+
+        FailoverSession session = pool.newSession(new TCPClient(), false);
+        assertTrue(session.open());
+        session.login("UnitTestPool");
+        Thread.sleep(THREAD_SLEEP_TIME);
+        for (int i = 0; i < 10; i++) {
+            session.getClient().sendPublicMessage("[Unittest] score " + i);
+        }
+        Thread.sleep(THREAD_SLEEP_TIME);
+        ServerPool.Endpoint e = session.getEndpoint();
+        assertTrue(e.getConnectMillis() > 0);
+        assertTrue(e.getRttMillis() > 0);
+        assertEquals(0, e.getErrorRate(), 0);
+        assertEquals(1, e.getActiveSessions());
+        session.close();
+        assertEquals(0, e.getActiveSessions());
+        assertNull(session.getEndpoint());
+    }
+
+    /**
+     * When the server of a session dies, the session moves to another server and logs in again,
+     * and its listeners don't see a disconnect. The dead server is avoided afterwards.
+     *
+     * @throws Exception When test is interrupted while sleeping
+     */
+    @Test
+    public void testFailover() throws Exception {
+        FailoverSession session = pool.newSession(new TCPClient(), false);
+        DummyResponseCounter counter = new DummyResponseCounter();
+        session.addListener(counter);
+        assertTrue(session.open());
+        session.login("UnitTestFailover");
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(1, counter.loginSuccess);
+
+        ServerPool.Endpoint first = session.getEndpoint();
+        serverOf(first).stop();
+        waitFor(() -> session.getEndpoint() != null && session.getEndpoint() != first && counter.loginSuccess == 2);
+        ServerPool.Endpoint second = session.getEndpoint();
+        assertNotNull(second);
+        assertNotSame(first, second);
+        assertEquals(2, counter.loginSuccess);
+        assertEquals(0, counter.disconn);
+        assertEquals(1, session.getFailoverCount());
+        assertEquals(1, serverOf(second).getSessionCount());
+
+        assertFalse(first.isHealthy());
+        assertTrue(first.getErrorRate() > 0);
+        assertNotSame(first, pool.best());
+
+        // A message through the new server reaches a client there
+        TCPClient other = new TCPClient();
+        DummyResponseCounter otherCounter = new DummyResponseCounter();
+        other.addListener(otherCounter);
+        assertTrue(other.connect(second.getHost(), second.getPort()));
+        other.startListenThread();
+        session.getClient().sendPublicMessage("[Unittest] after failover");
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertEquals(1, otherCounter.msg);
+        other.disconnect();
+
+        // When every server is gone, the listeners are told
+        for (LocalChatServer server : servers) {
+            server.stop();
+        }
+        waitFor(() -> counter.disconn == 1);
+        assertEquals(1, counter.disconn);
+        assertNull(session.getEndpoint());
+    }
+
+    /**
+     * A message whose write failed gets no reply, so it must not take the send time that belongs to
+     * a later reply
+     */
+    @Test
+    public void testFailedWriteGivesNoRtt() {
+        TCPClient client = new TCPClient();
+        List<Long> samples = new ArrayList<>();
+        client.setMessageRttObserver(samples::add);
+        assertTrue(client.connect(servers.get(0).getHost(), servers.get(0).getPort()));
+        client.disconnect();
+        assertFalse(client.sendPublicMessage("[Unittest] never written"));
+        client.handleServerLine("msgok");
+        assertTrue(samples.isEmpty());
+    }
+
+    /**
+     * Many sessions are spread evenly over the servers, and when a server is killed its sessions are
+     * spread over the rest
+     *
+     * @throws Exception When test is interrupted while sleeping
+     */
+    @Test
+    public void testLeastLoaded() throws Exception {
+        int sessionCount = 30;
+        List<FailoverSession> sessions = new ArrayList<>();
+        for (int i = 0; i < sessionCount; i++) {
+            FailoverSession s = pool.newSession(new TCPClient(), true);
+            assertTrue(s.open());
+            s.login("UnitTestLoad" + i);
+            sessions.add(s);
+        }
+        Thread.sleep(THREAD_SLEEP_TIME);
+        for (LocalChatServer server : servers) {
+            assertEquals(sessionCount / SERVER_COUNT, server.getSessionCount());
+        }
+
+        LocalChatServer killed = servers.get(0);
+        killed.stop();
+        waitFor(() -> servers.get(1).getSessionCount() + servers.get(2).getSessionCount() == sessionCount);
+        assertEquals(sessionCount, servers.get(1).getSessionCount() + servers.get(2).getSessionCount());
+        assertEquals(sessionCount / 2, servers.get(1).getSessionCount(), 2);
+        int moved = 0;
+        for (FailoverSession s : sessions) {
+            assertTrue(s.getClient().isConnectionActive());
+            moved += s.getFailoverCount();
+            s.close();
+        }
+        assertEquals(sessionCount / SERVER_COUNT, moved);
+        for (ServerPool.Endpoint e : pool.getEndpoints()) {
+            assertEquals(0, e.getActiveSessions());
+        }
+    }
+}
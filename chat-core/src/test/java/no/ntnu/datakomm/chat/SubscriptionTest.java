@@ -0,0 +1,101 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import no.ntnu.datakomm.chat.helpers.DummyResponseCounter;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the typed subscriptions: each event reaches only the subscribers that asked for it. The
+ * server lines are fed straight into the parser, as the capture replay does.
+ */
+public class SubscriptionTest {
+
+    /**
+     * With many subscribers for different senders, a message only reaches the subscribers for its
+     * sender and kind
+     */
+    @Test
+    public void testNarrowMessageSubscribers() {
+        TCPClient client = new TCPClient();
+        int count = 300;
+        AtomicInteger[] calls = new AtomicInteger[count];
+        for (int i = 0; i < count; i++) {
+            AtomicInteger c = new AtomicInteger();
+            calls[i] = c;
+            client.subscribeMessages("User" + i, true, m -> c.incrementAndGet());
+        }
+        List<TextMessage> publicFromAll = new ArrayList<>();
+        List<TextMessage> all = new ArrayList<>();
+        client.subscribeMessages(null, false, publicFromAll::add);
+        client.subscribe(ChatEvent.MESSAGE, all::add);
+        assertEquals(count + 2, client.getSubscriptionCount());
+
+        client.handleServerLine("privmsg User7 Only for the subscriber of User7");
+        client.handleServerLine("msg User7 A public message");
+        client.handleServerLine("privmsg Nobody Not subscribed");
+        for (int i = 0; i < count; i++) {
+            assertEquals("User" + i, i == 7 ? 1 : 0, calls[i].get());
+        }
+        assertEquals(1, publicFromAll.size());
+        assertEquals(new TextMessage("User7", false, "A public message"), publicFromAll.get(0));
+        assertEquals(3, all.size());
+    }
+
+    /**
+     * The other event types arrive with their data, next to the classic listeners
+     */
+    @Test
+    public void testTypedEvents() {
+        TCPClient client = new TCPClient();
+        DummyResponseCounter counter = new DummyResponseCounter();
+        client.addListener(counter);
+        List<String> events = new ArrayList<>();
+        client.subscribe(ChatEvent.USER_LIST, users -> events.add("users " + Arrays.asList(users)));
+        client.subscribe(ChatEvent.SUPPORTED, commands -> events.add("supported " + commands.length));
+        client.subscribe(ChatEvent.LOGIN_OK, arg -> events.add("loginok"));
+        client.subscribe(ChatEvent.LOGIN_ERROR, err -> events.add("loginerr " + err));
+        client.subscribe(ChatEvent.MESSAGE_ERROR, err -> events.add("msgerr " + err));
+        client.subscribe(ChatEvent.COMMAND_ERROR, err -> events.add("cmderr " + err));
+
+        client.handleServerLine("users alice bob");
+        client.handleServerLine("supported login msg users");
+        client.handleServerLine("loginerr username already in use");
+        client.handleServerLine("loginok");
+        client.handleServerLine("msgerr unauthorized");
+        client.handleServerLine("cmderr command not supported");
+        assertEquals(Arrays.asList("users [alice, bob]", "supported 3", "loginerr username already in use",
+                "loginok", "msgerr unauthorized", "cmderr command not supported"), events);
+        assertEquals(1, counter.userList);
+        assertEquals(1, counter.supported);
+        assertEquals(1, counter.loginError);
+        assertEquals(1, counter.loginSuccess);
+        assertEquals(1, counter.msgErr);
+        assertEquals(1, counter.cmdErr);
+    }
+
+    /**
+     * A cancelled subscription gets no more events
+     */
+    @Test
+    public void testCancel() {
+        TCPClient client = new TCPClient();
+        List<String> users = new ArrayList<>();
+        Subscription fromAlice = client.subscribeMessages("alice", null, m -> users.add(m.getSender()));
+        Subscription lists = client.subscribe(ChatEvent.USER_LIST, u -> users.add("list"));
+        client.handleServerLine("msg alice one");
+        client.handleServerLine("users alice");
+        fromAlice.cancel();
+        lists.cancel();
+        fromAlice.cancel();
+        assertEquals(0, client.getSubscriptionCount());
+        client.handleServerLine("msg alice two");
+        client.handleServerLine("users alice");
+        assertEquals(Arrays.asList("alice", "list"), users);
+    }
+}
@@ -0,0 +1,74 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.net.ssl.SSLContext;
+
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import no.ntnu.datakomm.chat.helpers.TestTls;
+
+/**
+ * Measure TLS handshake latency against a local TLS chat server: full handshakes (every client has
+ * its own context, so nothing is cached) versus resumed ones (all reconnects share one context).
+ * Run it with the test classpath:
+ * <p>
+ * {@code java -cp target/classes:target/test-classes no.ntnu.datakomm.chat.TlsHandshakeBenchmark [connections]}
+ */
+public class TlsHandshakeBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        LocalChatServer server = new LocalChatServer();
+        server.setSslContext(TestTls.serverContext());
+        server.start();
+
+        // Warm up the TLS code first
+        measure(server, connections / 4, false);
+        measure(server, connections / 4, true);
+
+        report("full", measure(server, connections, false));
+        report("resumed", measure(server, connections, true));
+        server.stop();
+    }
+
+    /**
+     * Connect and disconnect the given number of times
+     *
+     * @param server    The server to connect to
+     * @param count     Number of connections
+     * @param sharedCtx When true, all connections share one TLS context (and session cache)
+     * @return Handshake times in microseconds, sorted
+     */
+    private static List<Long> measure(LocalChatServer server, int count, boolean sharedCtx) throws Exception {
+        SSLContext shared = TestTls.clientContext();
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            TCPClient client = new TCPClient();
+            client.setSslContext(sharedCtx ? shared : TestTls.clientContext());
+            if (client.connect(server.getHost(), server.getPort())) {
+                // The first connection of the shared context can't resume anything
+                if (!sharedCtx || client.isLastSessionResumed()) {
+                    times.add(client.getLastHandshakeNanos() / 1000);
+                }
+                // Let the client read the session ticket before closing
+                client.startListenThread();
+                Thread.sleep(20);
+                client.disconnect();
+            }
+        }
+        Collections.sort(times);
+        return times;
+    }
+
+    private static void report(String name, List<Long> times) {
+        if (times.isEmpty()) {
+            System.out.println(name + ": no handshakes measured");
+            return;
+        }
+        System.out.println(name + ": handshakes=" + times.size()
+                + " median=" + times.get(times.size() / 2) + "us"
+                + " p90=" + times.get(times.size() * 9 / 10) + "us"
+                + " max=" + times.get(times.size() - 1) + "us");
+    }
+}
@@ -0,0 +1,108 @@
+package no.ntnu.datakomm.chat;
+
+import javax.net.ssl.SSLContext;
+
+import no.ntnu.datakomm.chat.helpers.DummyMsgReceiver;
+import no.ntnu.datakomm.chat.helpers.LocalChatServer;
+import no.ntnu.datakomm.chat.helpers.TestTls;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test TLS connections and session resumption against a local TLS chat server
+ */
+public class TlsTest {
+
+    // How many ms to sleep when waiting for server response to arrive
+    private static final int THREAD_SLEEP_TIME = 500;
+
+    private LocalChatServer server;
+
+    @Before
+    public void startServer() throws Exception {
+        server = new LocalChatServer();
+        server.setSslContext(TestTls.serverContext());
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop();
+    }
+
+    /**
+     * Messages go through a TLS connection
+     *
+     * @throws Exception When TLS setup fails or test is interrupted while sleeping
+     */
+    @Test
+    public void testTlsMessages() throws Exception {
+        SSLContext context = TestTls.clientContext();
+        TCPClient c1 = new TCPClient();
+        TCPClient c2 = new TCPClient();
+        c1.setSslContext(context);
+        c2.setSslContext(context);
+        assertTrue(c1.connect(server.getHost(), server.getPort()));
+        assertTrue(c2.connect(server.getHost(), server.getPort()));
+        assertTrue(c1.getLastHandshakeNanos() > 0);
+        c2.startListenThread();
+        DummyMsgReceiver rec2 = new DummyMsgReceiver();
+        c2.addListener(rec2);
+
+        c1.tryLogin("UnitTestTls");
+        Thread.sleep(THREAD_SLEEP_TIME);
+        final String MSG_TEXT = "[Unittest] Message over TLS";
+        c1.sendPublicMessage(MSG_TEXT);
+        Thread.sleep(THREAD_SLEEP_TIME);
+        assertTrue(rec2.hasReceived(new TextMessage("UnitTestTls", false, MSG_TEXT)));
+
+        c1.disconnect();
+        c2.disconnect();
+    }
+
+    /**
+     * A reconnect with the same context resumes the session, a new context does a full handshake
+     *
+     * @throws Exception When TLS setup fails or test is interrupted while sleeping
+     */
+    @Test
+    public void testSessionResumption() throws Exception {
+        SSLContext context = TestTls.clientContext();
+        TCPClient client = new TCPClient();
+        client.setSslContext(context);
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        assertFalse(client.isLastSessionResumed());
+        // With TLS 1.3 the server sends the session ticket after the handshake, the client must read it
+        client.startListenThread();
+        Thread.sleep(THREAD_SLEEP_TIME);
+        client.disconnect();
+
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        assertTrue(client.isLastSessionResumed());
+        client.disconnect();
+
+        client.setSslContext(TestTls.clientContext());
+        assertTrue(client.connect(server.getHost(), server.getPort()));
+        assertFalse(client.isLastSessionResumed());
+        // With TLS 1.3 the server sends the session ticket after the handshake, the client must read it
+        client.startListenThread();
+        Thread.sleep(THREAD_SLEEP_TIME);
+        client.disconnect();
+    }
+
+    /**
+     * A server certificate that the client does not trust is refused
+     *
+     * @throws Exception When TLS setup fails
+     */
+    @Test
+    public void testUntrustedServer() throws Exception {
+        TCPClient client = new TCPClient();
+        client.setSslContext(SSLContext.getDefault());
+        assertFalse(client.connect(server.getHost(), server.getPort()));
+        assertFalse(client.isConnectionActive());
+    }
+}
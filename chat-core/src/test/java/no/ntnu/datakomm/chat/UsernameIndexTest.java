@@ -0,0 +1,74 @@
+package no.ntnu.datakomm.chat;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test username prefix autocomplete
+ */
+public class UsernameIndexTest {
+
+    /**
+     * Prefix search ignores case and returns names in alphabetical order
+     */
+    @Test
+    public void testComplete() {
+        UsernameIndex index = new UsernameIndex();
+        index.update(new String[]{"bob", "Alice", "alfred", "Bobby", "carol"});
+        assertEquals(5, index.size());
+        assertEquals(Arrays.asList("alfred", "Alice"), index.complete("al", 10));
+        assertEquals(Arrays.asList("bob", "Bobby"), index.complete("BO", 10));
+        assertEquals(Collections.singletonList("bob"), index.complete("b", 1));
+        assertEquals(Collections.emptyList(), index.complete("dave", 10));
+    }
+
+    /**
+     * New user lists are applied as differences to the previous one
+     */
+    @Test
+    public void testIncrementalUpdate() {
+        UsernameIndex index = new UsernameIndex();
+        index.update(new String[]{"anna", "bert", "cecilie"});
+        index.update(new String[]{"bert", "cecilie", "anders", "dag"});
+        assertEquals(4, index.size());
+        assertEquals(Collections.singletonList("anders"), index.complete("a", 10));
+        assertEquals(Collections.singletonList("dag"), index.complete("d", 10));
+        index.update(new String[]{});
+        assertEquals(0, index.size());
+        assertEquals(Collections.emptyList(), index.complete("", 10));
+    }
+
+    /**
+     * With 100k users, a lookup takes far less than a millisecond
+     */
+    @Test
+    public void testLargeUserCount() {
+        String[] users = new String[100000];
+        for (int i = 0; i < users.length; i++) {
+            users[i] = "user" + Integer.toString(i * 7919 % 1000003, 36);
+        }
+        UsernameIndex index = new UsernameIndex();
+        index.update(users);
+        // One user leaves and one joins
+        users[42] = "newcomer";
+        index.update(users);
+        assertEquals(100000, index.size());
+        assertEquals(Collections.singletonList("newcomer"), index.complete("newc", 10));
+
+        // Warm up, then measure
+        for (int i = 0; i < 10000; i++) {
+            index.complete("user" + (i % 36), 10);
+        }
+        int lookups = 10000;
+        long start = System.nanoTime();
+        for (int i = 0; i < lookups; i++) {
+            assertEquals(10, index.complete("user" + Integer.toString(i % 35 + 1, 36), 10).size());
+        }
+        long averageNanos = (System.nanoTime() - start) / lookups;
+        assertTrue("Lookup took " + averageNanos + "ns", averageNanos < 1000000);
+    }
+}
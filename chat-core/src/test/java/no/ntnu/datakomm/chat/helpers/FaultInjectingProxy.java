@@ -0,0 +1,399 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A TCP proxy for tests that sits between a client and a server on the local machine and makes the
+ * network path worse on request: latency and jitter, a bandwidth cap, fragmentation (data arrives in
+ * many small reads), coalescing (data arrives in few large reads), stalls and abrupt resets. The
+ * faults apply to both directions and can be changed while connections are open.
+ * <p>
+ * The bytes themselves are never changed, dropped or reordered, as on a real TCP connection: only
+ * when and in which pieces they arrive.
+ */
+public class FaultInjectingProxy {
+
+    // Marks the end of the stream in a direction
+    private static final byte[] END = new byte[0];
+
+    private final String targetHost;
+    private final int targetPort;
+    private ServerSocket serverSocket;
+    private final List<Link> links = new CopyOnWriteArrayList<>();
+
+    private volatile long latencyMillis = 0;
+    private volatile long jitterMillis = 0;
+    private volatile long bytesPerSecond = 0;
+    private volatile int fragmentSize = 0;
+    private volatile long fragmentGapMillis = 0;
+    private volatile long coalesceMillis = 0;
+    private volatile boolean stalled = false;
+
+    private final AtomicLong connectionCount = new AtomicLong();
+    private final AtomicLong resetCount = new AtomicLong();
+    private final AtomicLong bytesForwarded = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+
+    /**
+     * @param targetHost Host of the server to forward to
+     * @param targetPort TCP port of the server
+     */
+    public FaultInjectingProxy(String targetHost, int targetPort) {
+        this.targetHost = targetHost;
+        this.targetPort = targetPort;
+    }
+
+    /**
+     * Delay all data by a fixed time plus a random part. The order of the bytes is kept, so a chunk
+     * never overtakes an earlier one with a longer delay.
+     *
+     * @param latencyMillis Fixed one-way delay
+     * @param jitterMillis  Maximum extra random delay
+     */
+    public void setLatency(long latencyMillis, long jitterMillis) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+    }
+
+    /**
+     * Forward no faster than the given rate, in each direction of each connection
+     *
+     * @param bytesPerSecond Maximum rate, 0 for no limit
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Forward data in pieces of at most the given size, with a pause between them, so the receiver
+     * gets a line or frame over many reads
+     *
+     * @param maxBytes  Largest piece, 0 to forward the data as it was read
+     * @param gapMillis Pause between the pieces
+     */
+    public void setFragmentation(int maxBytes, long gapMillis) {
+        this.fragmentSize = maxBytes;
+        this.fragmentGapMillis = gapMillis;
+    }
+
+    /**
+     * Hold data back for the given time and forward everything that arrived meanwhile in one write,
+     * so the receiver gets many lines or frames in one read
+     *
+     * @param millis How long to collect, 0 to forward at once
+     */
+    public void setCoalescing(long millis) {
+        this.coalesceMillis = millis;
+    }
+
+    /**
+     * Stop or resume forwarding. While stalled, the connections stay open but no data moves, like a
+     * dead network path. Data sent meanwhile is forwarded when the stall ends.
+     *
+     * @param stalled When true, stop forwarding
+     */
+    public void setStalled(boolean stalled) {
+        this.stalled = stalled;
+    }
+
+    /**
+     * Start listening on a free TCP port on the loopback interface
+     *
+     * @return The port number
+     * @throws IOException When the server socket can't be opened
+     */
+    public int start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+        Thread acceptThread = new Thread(this::acceptClients, "FaultInjectingProxy-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return The TCP port the proxy is listening on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Host name the clients should connect to
+     */
+    public String getHost() {
+        return "127.0.0.1";
+    }
+
+    /**
+     * Stop the proxy and close all connections
+     */
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (Link link : links) {
+            link.close(false);
+        }
+    }
+
+    /**
+     * Abort all open connections with a TCP reset, on both the client and the server side, like a
+     * middlebox that drops the connection state
+     */
+    public void resetConnections() {
+        for (Link link : links) {
+            link.close(true);
+            resetCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return Number of connections accepted
+     */
+    public long getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return Number of connections aborted with resetConnections()
+     */
+    public long getResetCount() {
+        return resetCount.get();
+    }
+
+    /**
+     * @return Bytes forwarded, both directions and all connections
+     */
+    public long getBytesForwarded() {
+        return bytesForwarded.get();
+    }
+
+    /**
+     * @return Number of writes the forwarded bytes were split into
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    private void acceptClients() {
+        while (!serverSocket.isClosed()) {
+            Socket client;
+            try {
+                client = serverSocket.accept();
+            } catch (IOException e) {
+                // Server socket closed
+                continue;
+            }
+            try {
+                Socket server = new Socket(targetHost, targetPort);
+                Link link = new Link(client, server);
+                links.add(link);
+                connectionCount.incrementAndGet();
+                link.start();
+            } catch (IOException e) {
+                // Server not reachable: refuse the client as the server would
+                try {
+                    client.close();
+                } catch (IOException ignored) {
+                    // Closing anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * One proxied connection: a client socket, a server socket and a pipe for each direction
+     */
+    private class Link {
+        private final Socket client;
+        private final Socket server;
+        private volatile boolean closed = false;
+
+        Link(Socket client, Socket server) throws IOException {
+            this.client = client;
+            this.server = server;
+            // Every write goes out as its own segment, so fragments are not merged again
+            client.setTcpNoDelay(true);
+            server.setTcpNoDelay(true);
+        }
+
+        void start() throws IOException {
+            new Pipe(this, client.getInputStream(), server.getOutputStream(), "up").start();
+            new Pipe(this, server.getInputStream(), client.getOutputStream(), "down").start();
+        }
+
+        synchronized void close(boolean reset) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            links.remove(this);
+            for (Socket s : new Socket[]{client, server}) {
+                try {
+                    if (reset) {
+                        // Linger 0: close() sends RST instead of FIN
+                        s.setSoLinger(true, 0);
+                    }
+                    s.close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Forwards one direction of a link. The reader thread takes the data as it comes and stamps each
+     * chunk with the time it is due; the writer thread forwards it then, with the faults applied.
+     */
+    private class Pipe {
+        private final Link link;
+        private final InputStream in;
+        private final OutputStream out;
+        private final String name;
+        private final BlockingQueue<Chunk> queue = new LinkedBlockingQueue<>();
+        private long lastDueNanos = 0;
+        // When the bandwidth cap allows the next byte to be sent
+        private long nextSendNanos = 0;
+
+        Pipe(Link link, InputStream in, OutputStream out, String name) {
+            this.link = link;
+            this.in = in;
+            this.out = out;
+            this.name = name;
+        }
+
+        void start() {
+            Thread reader = new Thread(this::read, "FaultInjectingProxy-" + name + "-read");
+            Thread writer = new Thread(this::write, "FaultInjectingProxy-" + name + "-write");
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        private void read() {
+            byte[] buffer = new byte[8192];
+            try {
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    enqueue(Arrays.copyOf(buffer, n));
+                }
+            } catch (IOException e) {
+                // Connection closed or reset
+            }
+            enqueue(END);
+        }
+
+        private void enqueue(byte[] data) {
+            long delay = latencyMillis;
+            long jitter = jitterMillis;
+            if (jitter > 0) {
+                delay += ThreadLocalRandom.current().nextLong(jitter + 1);
+            }
+            long due = Math.max(lastDueNanos, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay));
+            lastDueNanos = due;
+            queue.add(new Chunk(data, due));
+        }
+
+        private void write() {
+            try {
+                while (!link.closed) {
+                    Chunk chunk = queue.take();
+                    sleepUntil(chunk.dueNanos);
+                    while (stalled && !link.closed) {
+                        Thread.sleep(5);
+                    }
+                    byte[] data = chunk.data;
+                    if (data != END && coalesceMillis > 0) {
+                        Thread.sleep(coalesceMillis);
+                        data = drainDue(data);
+                    }
+                    if (data == END) {
+                        break;
+                    }
+                    send(data);
+                }
+            } catch (IOException e) {
+                // Connection closed or reset
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            link.close(false);
+        }
+
+        /**
+         * @return The given data followed by all queued chunks that are due, up to the end marker
+         */
+        private byte[] drainDue(byte[] first) {
+            ByteArrayOutputStream all = new ByteArrayOutputStream();
+            all.write(first, 0, first.length);
+            Chunk next;
+            while ((next = queue.peek()) != null && next.data != END && next.dueNanos <= System.nanoTime()) {
+                queue.poll();
+                all.write(next.data, 0, next.data.length);
+            }
+            return all.toByteArray();
+        }
+
+        private void send(byte[] data) throws IOException, InterruptedException {
+            int piece = fragmentSize;
+            long rate = bytesPerSecond;
+            if (piece <= 0) {
+                // With a cap, send at most 50 ms worth at a time so the rate stays smooth
+                piece = rate > 0 ? (int) Math.max(1, Math.min(data.length, rate / 20)) : data.length;
+            }
+            for (int off = 0; off < data.length; off += piece) {
+                int len = Math.min(piece, data.length - off);
+                if (rate > 0) {
+                    long now = System.nanoTime();
+                    nextSendNanos = Math.max(now, nextSendNanos);
+                    sleepUntil(nextSendNanos);
+                    nextSendNanos += len * 1000000000L / rate;
+                }
+                out.write(data, off, len);
+                out.flush();
+                bytesForwarded.addAndGet(len);
+                writeCount.incrementAndGet();
+                if (off + len < data.length && fragmentSize > 0 && fragmentGapMillis > 0) {
+                    Thread.sleep(fragmentGapMillis);
+                }
+            }
+        }
+
+        private void sleepUntil(long nanos) throws InterruptedException {
+            long wait = nanos - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+    }
+
+    private static class Chunk {
+        final byte[] data;
+        final long dueNanos;
+
+        Chunk(byte[] data, long dueNanos) {
+            this.data = data;
+            this.dueNanos = dueNanos;
+        }
+    }
+}
@@ -0,0 +1,458 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.net.ssl.SSLContext;
+
+import no.ntnu.datakomm.chat.BinaryFraming;
+import no.ntnu.datakomm.chat.LineReader;
+
+/**
+ * A small chat server for tests, running on the local machine. It implements the same text protocol
+ * as the course server (login, msg, privmsg, users, help), so the tests don't need the Internet.
+ * Optional protocol extensions can be switched on before the server is started.
+ */
+public class LocalChatServer {
+
+    private ServerSocket serverSocket;
+    private final List<Session> sessions = new CopyOnWriteArrayList<>();
+    private boolean deflateSupported = false;
+    private boolean binarySupported = false;
+    private SSLContext sslContext = null;
+    // When true, the sessions read but don't answer, like a server behind a dead network path
+    private volatile boolean frozen = false;
+    // When above 0, each session reads at most this many bytes per second, like a slow link
+    private long receiveRate = 0;
+
+    // Bytes as they travel on the wire (after compression, if any), summed over all sessions
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    // Commands received, by command word, summed over all sessions
+    private final Map<String, AtomicLong> commandCounts = new ConcurrentHashMap<>();
+
+    /**
+     * Advertise and support the "deflate" command. Must be called before start().
+     *
+     * @param supported When true, clients may switch to a compressed stream
+     */
+    public void setDeflateSupported(boolean supported) {
+        deflateSupported = supported;
+    }
+
+    /**
+     * Advertise and support the "binary" command (see BinaryFraming). Must be called before start().
+     *
+     * @param supported When true, clients may switch to binary frames
+     */
+    public void setBinarySupported(boolean supported) {
+        binarySupported = supported;
+    }
+
+    /**
+     * Accept TLS connections only. Must be called before start().
+     *
+     * @param context TLS context with the server key and certificate, or null for plain TCP
+     */
+    public void setSslContext(SSLContext context) {
+        sslContext = context;
+    }
+
+    /**
+     * Stop or resume answering. While frozen, the connections stay open but nothing is sent back,
+     * like a half-open connection.
+     *
+     * @param frozen When true, the server stops answering
+     */
+    public void setFrozen(boolean frozen) {
+        this.frozen = frozen;
+    }
+
+    /**
+     * Read from each client no faster than the given rate, like a slow network link. The socket
+     * receive buffer is made small, so a client sending faster is held back quickly. Must be called
+     * before start().
+     *
+     * @param bytesPerSecond Maximum rate, 0 for no limit
+     */
+    public void setReceiveRate(long bytesPerSecond) {
+        receiveRate = bytesPerSecond;
+    }
+
+    /**
+     * Start listening on a free TCP port on the loopback interface
+     *
+     * @return The port number
+     * @throws IOException When the server socket can't be opened
+     */
+    public int start() throws IOException {
+        if (sslContext != null) {
+            serverSocket = sslContext.getServerSocketFactory().createServerSocket();
+        } else {
+            serverSocket = new ServerSocket();
+        }
+        if (receiveRate > 0) {
+            // Inherited by the accepted sockets
+            serverSocket.setReceiveBufferSize(4096);
+        }
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 50);
+        Thread acceptThread = new Thread(this::acceptClients, "LocalChatServer-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return The TCP port the server is listening on
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Host name the clients should connect to
+     */
+    public String getHost() {
+        return "127.0.0.1";
+    }
+
+    /**
+     * Stop the server and close all client connections
+     */
+    public void stop() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (Session s : sessions) {
+            s.close();
+        }
+    }
+
+    /**
+     * @return Number of clients currently connected
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return Bytes received from all clients, as they travelled on the wire
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     * @return Bytes sent to all clients, as they travelled on the wire
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     * @param command A command word, for example "users"
+     * @return How many times the command has been received, from all clients
+     */
+    public long getCommandCount(String command) {
+        AtomicLong count = commandCounts.get(command);
+        return count != null ? count.get() : 0;
+    }
+
+    private void acceptClients() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                Session session = new Session(socket);
+                sessions.add(session);
+                Thread t = new Thread(session::run, "LocalChatServer-session");
+                t.setDaemon(true);
+                t.start();
+            } catch (IOException e) {
+                // Server socket closed
+            }
+        }
+    }
+
+    private Session findSession(String username) {
+        for (Session s : sessions) {
+            if (username.equals(s.username)) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * One connected client
+     */
+    private class Session {
+        private final Socket socket;
+        private final LineReader reader;
+        private OutputStream output;
+        // Not null after the switch to binary frames
+        private BinaryFraming.Reader frameReader = null;
+        private BinaryFraming.Writer frameWriter = null;
+        private String username = null;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            InputStream in = new CountingInputStream(socket.getInputStream(), bytesReceived);
+            if (receiveRate > 0) {
+                in = new ThrottledInputStream(in, receiveRate);
+            }
+            this.reader = new LineReader(in);
+            this.output = new CountingOutputStream(socket.getOutputStream(), bytesSent);
+        }
+
+        void run() {
+            try {
+                while (true) {
+                    String line;
+                    if (frameReader != null) {
+                        line = frameReader.next() ? frameReader.toLine() : null;
+                    } else {
+                        line = reader.readLine();
+                    }
+                    if (line == null) {
+                        break;
+                    }
+                    if (!frozen) {
+                        handle(line);
+                    }
+                }
+            } catch (IOException e) {
+                // Connection closed
+            }
+            close();
+        }
+
+        private void handle(String line) throws IOException {
+            String[] parts = line.split(" ", 2);
+            String argument = parts.length > 1 ? parts[1] : "";
+            commandCounts.computeIfAbsent(parts[0], k -> new AtomicLong()).incrementAndGet();
+            switch (parts[0]) {
+                case "login":
+                    if (!argument.matches("[A-Za-z0-9]+")) {
+                        send("loginerr incorrect username format");
+                    } else if (findSession(argument) != null && findSession(argument) != this) {
+                        send("loginerr username already in use");
+                    } else {
+                        username = argument;
+                        send("loginok");
+                    }
+                    break;
+                case "msg":
+                    if (username == null) {
+                        send("msgerr unauthorized");
+                    } else {
+                        int count = 0;
+                        for (Session s : sessions) {
+                            if (s != this) {
+                                s.send("msg " + username + " " + argument);
+                                count++;
+                            }
+                        }
+                        send("msgok " + count);
+                    }
+                    break;
+                case "privmsg":
+                    String[] recipientAndText = argument.split(" ", 2);
+                    Session recipient = findSession(recipientAndText[0]);
+                    if (username == null) {
+                        send("msgerr unauthorized");
+                    } else if (recipient == null || recipientAndText.length < 2) {
+                        send("msgerr incorrect recipient " + recipientAndText[0]);
+                    } else {
+                        recipient.send("privmsg " + username + " " + recipientAndText[1]);
+                        send("msgok 1");
+                    }
+                    break;
+                case "users":
+                    StringBuilder users = new StringBuilder("users");
+                    for (Session s : sessions) {
+                        if (s.username != null) {
+                            users.append(' ').append(s.username);
+                        }
+                    }
+                    send(users.toString());
+                    break;
+                case "help":
+                    send("supported login msg privmsg users help" + (deflateSupported ? " deflate" : "")
+                            + (binarySupported ? " " + BinaryFraming.BINARY_CMD : ""));
+                    break;
+                case BinaryFraming.BINARY_CMD:
+                    if (binarySupported && frameReader == null) {
+                        startBinaryFraming();
+                    } else {
+                        send("cmderr command not supported");
+                    }
+                    break;
+                case "deflate":
+                    if (deflateSupported && frameReader == null) {
+                        startCompression();
+                    } else {
+                        send("cmderr command not supported");
+                    }
+                    break;
+                default:
+                    send("cmderr command not supported");
+            }
+        }
+
+        /**
+         * Reply "deflateok", then compress everything in both directions
+         */
+        private void startCompression() throws IOException {
+            synchronized (this) {
+                send("deflateok");
+                output = new DeflaterOutputStream(output, true);
+            }
+            reader.setInput(new InflaterInputStream(reader.detach(), new Inflater(), 8192));
+        }
+
+        /**
+         * Reply "binaryok", then use frames in both directions
+         */
+        private void startBinaryFraming() {
+            synchronized (this) {
+                send(BinaryFraming.BINARY_OK);
+                frameWriter = new BinaryFraming.Writer(output, true);
+            }
+            frameReader = new BinaryFraming.Reader(reader.detach(), BinaryFraming.DEFAULT_MAX_FRAME_LENGTH);
+        }
+
+        synchronized void send(String line) {
+            try {
+                if (frameWriter != null) {
+                    frameWriter.writeLine(line);
+                    frameWriter.flush();
+                    return;
+                }
+                output.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+                output.flush();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void close() {
+            sessions.remove(this);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes read from the stream
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final AtomicLong counter;
+
+        CountingInputStream(InputStream in, AtomicLong counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                counter.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                counter.addAndGet(n);
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Reads no faster than a given rate, in small pieces
+     */
+    private static class ThrottledInputStream extends FilterInputStream {
+        private final long bytesPerSecond;
+        private final long start = System.nanoTime();
+        private long total = 0;
+
+        ThrottledInputStream(InputStream in, long bytesPerSecond) {
+            super(in);
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            // Wait until the bytes read so far are within the rate
+            long due = start + total * 1000000000L / bytesPerSecond;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            int n = super.read(b, off, (int) Math.min(len, Math.max(1, bytesPerSecond / 100)));
+            if (n > 0) {
+                total += n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Counts the bytes written to the stream
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final AtomicLong counter;
+
+        CountingOutputStream(OutputStream out, AtomicLong counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.incrementAndGet();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.addAndGet(len);
+        }
+    }
+}
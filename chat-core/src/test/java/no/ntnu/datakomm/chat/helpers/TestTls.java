@@ -0,0 +1,53 @@
+package no.ntnu.datakomm.chat.helpers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+/**
+ * TLS contexts for tests. Both use test-keystore.p12, which holds a self-signed certificate for
+ * localhost and 127.0.0.1. It was generated with:
+ * <p>
+ * {@code keytool -genkeypair -alias localhost -keyalg EC -groupname secp256r1 -keystore test-keystore.p12
+ * -storetype PKCS12 -storepass changeit -dname "CN=localhost" -validity 36500
+ * -ext SAN=dns:localhost,ip:127.0.0.1}
+ */
+public class TestTls {
+
+    private static final char[] PASSWORD = "changeit".toCharArray();
+
+    /**
+     * @return A context for LocalChatServer, with the test key and certificate
+     */
+    public static SSLContext serverContext() throws GeneralSecurityException, IOException {
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(loadKeyStore(), PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return context;
+    }
+
+    /**
+     * @return A new client context that trusts the test certificate. Every context has its own
+     * session cache.
+     */
+    public static SSLContext clientContext() throws GeneralSecurityException, IOException {
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(loadKeyStore());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    private static KeyStore loadKeyStore() throws GeneralSecurityException, IOException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream in = TestTls.class.getClassLoader().getResourceAsStream("test-keystore.p12")) {
+            keyStore.load(in, PASSWORD);
+        }
+        return keyStore;
+    }
+}